@@ -0,0 +1,283 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Generates a synthetic corpus of files for the benchmarks. The
+ * corpus is determined entirely by the seed and the settings, so that
+ * every run of a benchmark searches the same files. The file sizes
+ * follow a log-normal distribution around the mean size, the lines
+ * are made of random lowercase words, a given fraction of the lines
+ * contain the needle, and a given fraction of the files are binary.
+ *
+ * @author  Nathan Fiedler
+ */
+class CorpusGenerator {
+    /** Text placed in the lines that are meant to match. */
+    public static final String NEEDLE = "jrgrepneedle";
+    /** Seed of the random number generator. */
+    private long seed = 1;
+    /** Number of files to generate. */
+    private int fileCount = 1000;
+    /** Mean size of the files, in bytes. */
+    private int meanSize = 16 * 1024;
+    /** Spread of the file sizes, as the standard deviation of their
+     * logarithm; zero makes every file the mean size. */
+    private double sizeSpread = 1.0;
+    /** Mean length of the lines, in bytes. */
+    private int lineLength = 80;
+    /** Fraction of the lines that contain the needle. */
+    private double matchDensity = 0.001;
+    /** Fraction of the files that are binary. */
+    private double binaryRatio = 0.02;
+    /** Number of files in each directory. */
+    private int filesPerDirectory = 100;
+
+    /**
+     * Generates the corpus in the given directory, which is created if
+     * need be. The files are spread over numbered subdirectories.
+     *
+     * @param  dir  directory in which to generate the files.
+     * @exception  IOException
+     *             if writing the files failed.
+     */
+    public void generate(File dir) throws IOException {
+        Random random = new Random(seed);
+        double mu = Math.log(meanSize) - sizeSpread * sizeSpread / 2;
+        byte[] line = new byte[lineLength * 2 + NEEDLE.length() + 1];
+        File subdir = null;
+        for (int ii = 0; ii < fileCount; ii++) {
+            if (ii % filesPerDirectory == 0) {
+                subdir = new File(dir, String.format("d%04d",
+                    ii / filesPerDirectory));
+                if (!subdir.isDirectory() && !subdir.mkdirs()) {
+                    throw new IOException("cannot create " + subdir);
+                }
+            }
+            long size = Math.round(Math.exp(
+                mu + sizeSpread * random.nextGaussian()));
+            boolean binary = random.nextDouble() < binaryRatio;
+            File file = new File(subdir, String.format("f%06d.%s", ii,
+                binary ? "bin" : "txt"));
+            OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(file));
+            try {
+                long written = 0;
+                if (binary) {
+                    // A NUL near the start marks the file as binary.
+                    out.write(0);
+                    written++;
+                }
+                while (written < size) {
+                    int len = fillLine(random, line);
+                    len = (int) Math.min(len, size - written);
+                    out.write(line, 0, len);
+                    written += len;
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Fills the buffer with one line of random words, ending with a
+     * newline, which contains the needle as often as the match
+     * density dictates.
+     *
+     * @param  random  source of randomness.
+     * @param  line    buffer to fill.
+     * @return  length of the line.
+     */
+    private int fillLine(Random random, byte[] line) {
+        int target = 1 + random.nextInt(lineLength * 2 - 1);
+        int len = 0;
+        if (random.nextDouble() < matchDensity) {
+            int at = random.nextInt(target);
+            while (len < at) {
+                len = fillWord(random, line, len, at);
+            }
+            for (int ii = 0; ii < NEEDLE.length(); ii++) {
+                line[len++] = (byte) NEEDLE.charAt(ii);
+            }
+        }
+        while (len < target) {
+            len = fillWord(random, line, len, target);
+        }
+        line[len++] = '\n';
+        return len;
+    }
+
+    /**
+     * Puts a random word followed by a space into the line.
+     *
+     * @param  random  source of randomness.
+     * @param  line    buffer being filled.
+     * @param  start   index at which the word begins.
+     * @param  end     index at which the line should end.
+     * @return  index after the word.
+     */
+    private static int fillWord(Random random, byte[] line, int start,
+                                int end) {
+        int len = Math.min(2 + random.nextInt(8), end - start);
+        for (int ii = 1; ii < len; ii++) {
+            line[start++] = (byte) ('a' + random.nextInt(26));
+        }
+        line[start++] = ' ';
+        return start;
+    }
+
+    /**
+     * Deletes the directory and all that it contains.
+     *
+     * @param  dir  directory to delete.
+     */
+    public static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Sets the seed of the random number generator.
+     *
+     * @param  seed  random seed.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Sets the number of files to generate.
+     *
+     * @param  count  number of files.
+     */
+    public void setFileCount(int count) {
+        fileCount = count;
+    }
+
+    /**
+     * Sets the mean size of the files.
+     *
+     * @param  size  mean size in bytes.
+     */
+    public void setMeanSize(int size) {
+        meanSize = size;
+    }
+
+    /**
+     * Sets the spread of the file sizes, as the standard deviation of
+     * the logarithm of the size. With a spread of 1, a few files are
+     * ten times the mean size; with 0, all are the mean size.
+     *
+     * @param  spread  spread of the sizes.
+     */
+    public void setSizeSpread(double spread) {
+        sizeSpread = spread;
+    }
+
+    /**
+     * Sets the mean length of the lines.
+     *
+     * @param  length  mean line length in bytes.
+     */
+    public void setLineLength(int length) {
+        lineLength = length;
+    }
+
+    /**
+     * Sets the fraction of the lines that contain the needle.
+     *
+     * @param  density  fraction from 0 to 1.
+     */
+    public void setMatchDensity(double density) {
+        matchDensity = density;
+    }
+
+    /**
+     * Sets the fraction of the files that are binary.
+     *
+     * @param  ratio  fraction from 0 to 1.
+     */
+    public void setBinaryRatio(double ratio) {
+        binaryRatio = ratio;
+    }
+
+    /**
+     * Sets the number of files in each directory.
+     *
+     * @param  count  files per directory.
+     */
+    public void setFilesPerDirectory(int count) {
+        filesPerDirectory = count;
+    }
+
+    /**
+     * Generates a corpus from the command line, for searching by hand.
+     *
+     * @param  args  the directory, then optionally the number of
+     *               files, mean size, line length, match density,
+     *               binary ratio, and seed.
+     * @exception  IOException
+     *             if writing the files failed.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: CorpusGenerator <dir> [files]"
+                + " [meanSize] [lineLength] [matchDensity] [binaryRatio]"
+                + " [seed]");
+            System.exit(1);
+        }
+        CorpusGenerator generator = new CorpusGenerator();
+        if (args.length > 1) {
+            generator.setFileCount(Integer.parseInt(args[1]));
+        }
+        if (args.length > 2) {
+            generator.setMeanSize(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            generator.setLineLength(Integer.parseInt(args[3]));
+        }
+        if (args.length > 4) {
+            generator.setMatchDensity(Double.parseDouble(args[4]));
+        }
+        if (args.length > 5) {
+            generator.setBinaryRatio(Double.parseDouble(args[5]));
+        }
+        if (args.length > 6) {
+            generator.setSeed(Long.parseLong(args[6]));
+        }
+        generator.generate(new File(args[0]));
+    }
+}
@@ -0,0 +1,89 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.util.List;
+
+/**
+ * A file search listener for the benchmarks, which counts the files
+ * found and keeps the failure, if any, to be raised afterward.
+ *
+ * @author  Nathan Fiedler
+ */
+class CountingListener implements FileSearchListener {
+    /** Number of files found. */
+    private int found;
+    /** Cause of the search failing, if it failed. */
+    private Throwable failure;
+
+    /**
+     * Returns the number of files found since the last reset, and
+     * resets the count.
+     *
+     * @return  number of files found.
+     * @throws  IllegalStateException
+     *          if the search failed.
+     */
+    public synchronized int reset() {
+        if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+        int count = found;
+        found = 0;
+        return count;
+    }
+
+    /**
+     * Invoked when one or more matching files have been found.
+     *
+     * @param  events  indicate what files were found
+     */
+    public synchronized void filesFound(List<FileFoundEvent> events) {
+        found += events.size();
+    }
+
+    /**
+     * Invoked when a file found earlier no longer matches.
+     *
+     * @param  event  indicates what file no longer matches
+     */
+    public void fileRemoved(FileFoundEvent event) {
+    }
+
+    /**
+     * Invoked when the search has been completed.
+     *
+     * @param  stats  statistics of the completed search.
+     */
+    public void searchComplete(SearchStats stats) {
+    }
+
+    /**
+     * Invoked when the search has failed due to an exception.
+     *
+     * @param  t  throwable indicating cause of failure.
+     */
+    public synchronized void searchFailed(Throwable t) {
+        failure = t;
+    }
+}
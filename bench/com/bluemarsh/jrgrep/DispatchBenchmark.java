@@ -0,0 +1,97 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the delivery of found files to the listeners through
+ * fireFound(), which gathers them into batches. Each operation
+ * reports a number of files and then delivers any still pending.
+ *
+ * @author  Nathan Fiedler
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DispatchBenchmark {
+    /** Number of files reported in each operation. */
+    @Param({"1000"})
+    public int events;
+    /** Number of listeners registered. */
+    @Param({"1", "4"})
+    public int listeners;
+    /** Searcher delivering the files. */
+    private Searcher searcher;
+    /** Names of the files reported. */
+    private String[] names;
+    /** First of the registered listeners. */
+    private CountingListener listener;
+
+    /**
+     * Creates the searcher and registers the listeners.
+     */
+    @Setup
+    public void setUp() {
+        searcher = new Searcher();
+        for (int ii = 0; ii < listeners; ii++) {
+            CountingListener counter = new CountingListener();
+            searcher.addSearchListener(counter);
+            if (listener == null) {
+                listener = counter;
+            }
+        }
+        names = new String[events];
+        for (int ii = 0; ii < events; ii++) {
+            names[ii] = "/corpus/d" + (ii / 100) + "/f" + ii + ".txt";
+        }
+    }
+
+    /**
+     * Reports every file, then delivers those still pending.
+     *
+     * @return  number of files the first listener received.
+     */
+    @Benchmark
+    public int fireFound() {
+        for (String name : names) {
+            searcher.fireFound(name);
+        }
+        searcher.flushFound();
+        return listener.reset();
+    }
+}
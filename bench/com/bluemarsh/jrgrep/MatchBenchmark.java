@@ -0,0 +1,165 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the matching of files on their own, without walking any
+ * directories or notifying any listeners, in both line mode and
+ * DOTALL mode. Each operation searches every file in the corpus.
+ *
+ * @author  Nathan Fiedler
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MatchBenchmark {
+    /** Pattern to match: a plain literal, a regex with a required
+     * literal, and a regex without one. */
+    @Param({"jrgrepneedle", "j[a-z]+needle", "\\bz[a-y]{9}\\b"})
+    public String pattern;
+    /** Mean length of the lines. */
+    @Param({"80", "400"})
+    public int lineLength;
+    /** Fraction of the lines that contain the needle. */
+    @Param({"0.001"})
+    public double matchDensity;
+    /** Directory holding the corpus. */
+    private File corpus;
+    /** Files of the corpus, in a fixed order. */
+    private List<File> files;
+    /** Matcher of the pattern in line mode. */
+    private Searcher.FileMatcher lineMatcher;
+    /** Matcher of the pattern in DOTALL mode. */
+    private Searcher.FileMatcher dotallMatcher;
+
+    /**
+     * Generates the corpus and compiles the pattern.
+     *
+     * @exception  IOException
+     *             if generating the corpus failed.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = Files.createTempDirectory("jrgrep-bench").toFile();
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.setFileCount(200);
+        generator.setLineLength(lineLength);
+        generator.setMatchDensity(matchDensity);
+        generator.generate(corpus);
+        files = new ArrayList<File>();
+        collect(corpus, files);
+        Collections.sort(files);
+        lineMatcher = new Searcher().fileMatcher(pattern);
+        dotallMatcher = new Searcher().fileMatcher("(?s)" + pattern);
+    }
+
+    /**
+     * Deletes the corpus.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CorpusGenerator.delete(corpus);
+    }
+
+    /**
+     * Adds the files under the directory to the list.
+     *
+     * @param  dir    directory to look in.
+     * @param  files  receives the files.
+     */
+    private static void collect(File dir, List<File> files) {
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                collect(file, files);
+            } else {
+                files.add(file);
+            }
+        }
+    }
+
+    /**
+     * Searches every file with the given matcher.
+     *
+     * @param  matcher  matcher to use.
+     * @return  number of files that match.
+     * @exception  IOException
+     *             if reading a file failed.
+     */
+    private int matchAll(Searcher.FileMatcher matcher) throws IOException {
+        int count = 0;
+        for (File file : files) {
+            if (matcher.matches(file)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Matches every file one line at a time.
+     *
+     * @return  number of files that match.
+     * @exception  IOException
+     *             if reading a file failed.
+     */
+    @Benchmark
+    public int lineMode() throws IOException {
+        return matchAll(lineMatcher);
+    }
+
+    /**
+     * Matches every file as a whole, in DOTALL mode.
+     *
+     * @return  number of files that match.
+     * @exception  IOException
+     *             if reading a file failed.
+     */
+    @Benchmark
+    public int dotallMode() throws IOException {
+        return matchAll(dotallMatcher);
+    }
+}
@@ -0,0 +1,125 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures whole searches of a generated corpus: the directory walk
+ * alone, with a filename filter that accepts no files so that none is
+ * opened, and the search from end to end, listing the matching files
+ * to a listener.
+ *
+ * @author  Nathan Fiedler
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SearchBenchmark {
+    /** Pattern to search for. */
+    @Param({"jrgrepneedle", "\\bz[a-y]{9}\\b"})
+    public String pattern;
+    /** Number of threads searching. */
+    @Param({"1", "4"})
+    public int threads;
+    /** Number of files in the corpus. */
+    @Param({"2000"})
+    public int fileCount;
+    /** Fraction of the files that are binary. */
+    @Param({"0.02"})
+    public double binaryRatio;
+    /** Directory holding the corpus. */
+    private File corpus;
+    /** Searcher being measured. */
+    private Searcher searcher;
+    /** Counts the files found. */
+    private CountingListener listener;
+
+    /**
+     * Generates the corpus and creates the searcher.
+     *
+     * @exception  IOException
+     *             if generating the corpus failed.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = Files.createTempDirectory("jrgrep-bench").toFile();
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.setFileCount(fileCount);
+        generator.setBinaryRatio(binaryRatio);
+        generator.generate(corpus);
+        searcher = new Searcher();
+        searcher.setParallelism(threads);
+        listener = new CountingListener();
+        searcher.addSearchListener(listener);
+    }
+
+    /**
+     * Deletes the corpus.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CorpusGenerator.delete(corpus);
+    }
+
+    /**
+     * Walks the corpus without opening any of the files.
+     *
+     * @return  number of files found, which is zero.
+     */
+    @Benchmark
+    public int walk() {
+        searcher.search(corpus, pattern, "\\.none$", true, null);
+        return listener.reset();
+    }
+
+    /**
+     * Searches every file of the corpus for the pattern.
+     *
+     * @return  number of files found.
+     */
+    @Benchmark
+    public int search() {
+        searcher.search(corpus, pattern, "", true, null);
+        return listener.reset();
+    }
+}
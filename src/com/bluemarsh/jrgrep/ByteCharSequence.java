@@ -0,0 +1,150 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A character sequence view of the bytes in a buffer, in which each
+ * byte is one ISO-8859-1 character. This allows a mapped file to be
+ * matched against a regular expression without first decoding the
+ * entire file into a character buffer.
+ *
+ * @author  Nathan Fiedler
+ */
+class ByteCharSequence implements CharSequence {
+    /** Buffer holding the bytes. */
+    private final ByteBuffer buffer;
+    /** Index of the first byte of this sequence within the buffer. */
+    private final int offset;
+    /** Number of bytes in this sequence. */
+    private final int length;
+
+    /**
+     * Constructs a ByteCharSequence over the given range of the
+     * buffer. The buffer position and limit are ignored.
+     *
+     * @param  buffer  buffer holding the bytes.
+     * @param  offset  index of the first byte.
+     * @param  length  number of bytes.
+     */
+    public ByteCharSequence(ByteBuffer buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.capacity()) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Returns the character at the given index.
+     *
+     * @param  index  index of the character.
+     * @return  the character.
+     */
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        return (char) (buffer.get(offset + index) & 0xff);
+    }
+
+    /**
+     * Returns the bytes of this sequence, as the remaining bytes of a
+     * new buffer that shares the content of the underlying buffer.
+     *
+     * @return  buffer positioned at the first byte.
+     */
+    public ByteBuffer bytes() {
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.limit(offset + length);
+        bytes.position(offset);
+        return bytes;
+    }
+
+    /**
+     * Indicates whether every byte in this sequence is ASCII, such
+     * that the characters are the same in any ASCII-based charset.
+     *
+     * @return  true if there are no bytes above 0x7f.
+     */
+    public boolean isAscii() {
+        return isAscii(buffer, offset, offset + length);
+    }
+
+    /**
+     * Indicates whether every byte in the given range of the buffer
+     * is ASCII.
+     *
+     * @param  buffer  buffer holding the bytes.
+     * @param  from    index of the first byte.
+     * @param  to      index after the last byte.
+     * @return  true if there are no bytes above 0x7f.
+     */
+    public static boolean isAscii(ByteBuffer buffer, int from, int to) {
+        for (int ii = from; ii < to; ii++) {
+            if (buffer.get(ii) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of characters in this sequence.
+     *
+     * @return  length of the sequence.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns a view of a part of this sequence. The bytes are not
+     * copied.
+     *
+     * @param  start  index of the first character.
+     * @param  end    index after the last character.
+     * @return  the subsequence.
+     */
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException();
+        }
+        return new ByteCharSequence(buffer, offset + start, end - start);
+    }
+
+    /**
+     * Returns the characters of this sequence as a string.
+     *
+     * @return  string of characters.
+     */
+    public String toString() {
+        char[] chars = new char[length];
+        for (int ii = 0; ii < length; ii++) {
+            chars[ii] = (char) (buffer.get(offset + ii) & 0xff);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,46 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the literal text that a match must contain within a buffer of
+ * bytes, so that the regular expression engine need only examine the
+ * lines around each occurrence.
+ *
+ * @author  Nathan Fiedler
+ */
+interface ByteFinder {
+
+    /**
+     * Finds the first occurrence of the literal text within the given
+     * range of the buffer. The buffer position and limit are ignored.
+     *
+     * @param  buf   buffer to be searched.
+     * @param  from  index at which to start searching.
+     * @param  to    index at which to stop searching (exclusive).
+     * @return  index of the first occurrence, or -1 if not found.
+     */
+    int indexOf(ByteBuffer buf, int from, int to);
+}
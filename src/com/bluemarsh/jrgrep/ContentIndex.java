@@ -0,0 +1,332 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * A content index of a directory tree, used to rule out files that
+ * cannot contain the literal text required by the target pattern,
+ * without opening them. The index lives in a directory of its own,
+ * holding one or more segments and a manifest naming them.
+ *
+ * <p>The index only ever narrows a search: files outside the indexed
+ * tree, files not in the index, and files whose size or modified time
+ * differ from when they were indexed are always searched.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+class ContentIndex {
+    /** Name of the manifest file within the index directory. */
+    private static final String MANIFEST = "index.properties";
+    /** Prefix of segment file names. */
+    private static final String SEGMENT_PREFIX = "seg-";
+    /** Suffix of segment file names. */
+    private static final String SEGMENT_SUFFIX = ".idx";
+    /** Canonical path of the indexed directory tree. */
+    private final File root;
+    /** Prefix shared by the canonical paths of indexed files. */
+    private final String rootPrefix;
+    /** Segments of the index, oldest first. */
+    private final IndexSegment[] segments;
+
+    /**
+     * Constructs a ContentIndex from the given segments.
+     *
+     * @param  root      canonical path of the indexed tree.
+     * @param  segments  segments of the index, oldest first.
+     */
+    private ContentIndex(File root, IndexSegment[] segments) {
+        this.root = root;
+        String path = root.getPath();
+        if (!path.endsWith(File.separator)) {
+            path += File.separator;
+        }
+        rootPrefix = path;
+        this.segments = segments;
+    }
+
+    /**
+     * Opens the index in the given directory.
+     *
+     * @param  directory  index directory.
+     * @return  the index.
+     * @exception  IOException
+     *             if the index could not be read.
+     */
+    public static ContentIndex open(File directory) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Properties manifest = readManifest(directory);
+            String root = manifest.getProperty("root");
+            if (root == null) {
+                throw new IOException("invalid index manifest: " + directory);
+            }
+            List<String> names = getSegmentNames(manifest);
+            IndexSegment[] segments = new IndexSegment[names.size()];
+            try {
+                for (int ii = 0; ii < segments.length; ii++) {
+                    segments[ii] = new IndexSegment(
+                        new File(directory, names.get(ii)));
+                }
+                return new ContentIndex(new File(root), segments);
+            } catch (FileNotFoundException fnfe) {
+                // A compaction replaced the segments after the
+                // manifest was read; read the new manifest.
+                if (attempt == 3) {
+                    throw fnfe;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the canonical path of the indexed directory tree.
+     *
+     * @return  indexed directory.
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Prepares a query for the files that may contain the given
+     * literal. Each byte of the literal is one ISO-8859-1 character.
+     *
+     * @param  literal  text required by the target pattern.
+     * @return  the query, or null if the literal is too short to
+     *          narrow the search.
+     */
+    public Query query(byte[] literal) {
+        if (literal == null || literal.length < 3) {
+            return null;
+        }
+        BitSet[] matches = new BitSet[segments.length];
+        for (int ss = 0; ss < segments.length; ss++) {
+            BitSet files = null;
+            int trigram = 0;
+            for (int ii = 0; ii < literal.length; ii++) {
+                trigram = ((trigram << 8) | (literal[ii] & 0xff)) & 0xffffff;
+                if (ii >= 2) {
+                    BitSet postings = segments[ss].getPostings(trigram);
+                    if (files == null) {
+                        files = postings;
+                    } else {
+                        files.and(postings);
+                    }
+                    if (files.isEmpty()) {
+                        break;
+                    }
+                }
+            }
+            matches[ss] = files;
+        }
+        return new Query(matches);
+    }
+
+    /**
+     * Reads the manifest in the given index directory.
+     *
+     * @param  directory  index directory.
+     * @return  manifest properties.
+     * @exception  IOException
+     *             if the manifest could not be read.
+     */
+    static Properties readManifest(File directory) throws IOException {
+        Properties manifest = new Properties();
+        InputStream is = new FileInputStream(new File(directory, MANIFEST));
+        try {
+            manifest.load(is);
+        } finally {
+            is.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns the names of the segments listed in the manifest.
+     *
+     * @param  manifest  manifest properties.
+     * @return  segment names, oldest first.
+     */
+    static List<String> getSegmentNames(Properties manifest) {
+        List<String> names = new ArrayList<String>();
+        String value = manifest.getProperty("segments", "");
+        String[] parts = value.split(",");
+        for (int ii = 0; ii < parts.length; ii++) {
+            String name = parts[ii].trim();
+            if (name.length() > 0) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns a segment file name not yet used in the directory. The
+     * names are numbered in increasing order, never reusing the name
+     * of a segment that a reader may still have listed.
+     *
+     * @param  directory  index directory.
+     * @return  new segment name.
+     */
+    static String newSegmentName(File directory) {
+        int number = 0;
+        String[] files = directory.list();
+        for (int ii = 0; files != null && ii < files.length; ii++) {
+            String name = files[ii];
+            if (name.startsWith(SEGMENT_PREFIX)
+                && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    number = Math.max(number, Integer.parseInt(
+                        name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException nfe) {
+                    // Not one of ours; ignore it.
+                }
+            }
+        }
+        return SEGMENT_PREFIX + (number + 1) + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * Replaces the manifest in the given directory, then removes any
+     * segments that are no longer listed. The new manifest is moved
+     * into place atomically, so readers see either the old or the
+     * new set of segments.
+     *
+     * @param  directory  index directory.
+     * @param  root       canonical path of the indexed tree.
+     * @param  filter     filename filter pattern of the index.
+     * @param  exclude    directory exclude pattern of the index.
+     * @param  names      segment names, oldest first.
+     * @exception  IOException
+     *             if the manifest could not be written.
+     */
+    static void writeManifest(File directory, File root, String filter,
+                              String exclude, List<String> names)
+        throws IOException {
+        Properties manifest = new Properties();
+        manifest.setProperty("root", root.getPath());
+        manifest.setProperty("filter", filter);
+        manifest.setProperty("exclude", exclude);
+        StringBuilder value = new StringBuilder();
+        for (String name : names) {
+            if (value.length() > 0) {
+                value.append(',');
+            }
+            value.append(name);
+        }
+        manifest.setProperty("segments", value.toString());
+
+        File temp = new File(directory, MANIFEST + ".tmp");
+        OutputStream os = new FileOutputStream(temp);
+        try {
+            manifest.store(os, "JRGrep content index");
+        } finally {
+            os.close();
+        }
+        Files.move(temp.toPath(), new File(directory, MANIFEST).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+
+        // Remove the segments the new manifest no longer refers to.
+        Set<String> keep = new HashSet<String>(names);
+        String[] files = directory.list();
+        for (int ii = 0; files != null && ii < files.length; ii++) {
+            if (files[ii].startsWith(SEGMENT_PREFIX)
+                && files[ii].endsWith(SEGMENT_SUFFIX)
+                && !keep.contains(files[ii])) {
+                new File(directory, files[ii]).delete();
+            }
+        }
+    }
+
+    /**
+     * The files of the index that may contain a particular literal.
+     * Instances are immutable and may be shared between threads.
+     */
+    class Query {
+        /** Files that may match, for each segment; null if every
+         * file in the segment may match. */
+        private final BitSet[] matches;
+
+        /**
+         * Constructs a Query with the given results.
+         *
+         * @param  matches  files that may match, for each segment.
+         */
+        Query(BitSet[] matches) {
+            this.matches = matches;
+        }
+
+        /**
+         * Determines if the given file may contain the literal. This
+         * is true unless the newest entry for the file in the index is
+         * up to date and lacks one of the literal's trigrams.
+         *
+         * @param  filename  canonical path of the file.
+         * @param  size      current size of the file.
+         * @param  modified  current modified time of the file.
+         * @return  false if the file certainly does not match.
+         */
+        public boolean mayMatch(String filename, long size, long modified) {
+            if (!filename.startsWith(rootPrefix)) {
+                return true;
+            }
+            byte[] path = filename.substring(rootPrefix.length()).getBytes(
+                IndexBuilder.PATH_CHARSET);
+            // Newer segments take precedence over older ones.
+            for (int ss = segments.length - 1; ss >= 0; ss--) {
+                IndexSegment segment = segments[ss];
+                int id = segment.find(path);
+                if (id < 0) {
+                    continue;
+                }
+                int flags = IndexSegment.FLAG_UNINDEXED
+                    | IndexSegment.FLAG_DELETED;
+                if ((segment.getFlags(id) & flags) != 0
+                    || segment.getSize(id) != size
+                    || segment.getModified(id) != modified
+                    || matches[ss] == null) {
+                    return true;
+                }
+                return matches[ss].get(id);
+            }
+            return true;
+        }
+    }
+}
@@ -22,12 +22,16 @@
 
 package com.bluemarsh.jrgrep;
 
+import java.util.Collections;
 import java.util.EventObject;
+import java.util.List;
 
 /**
  * An event which indicates that a matching file has been found during
- * a search. It provides the path and name of the matching file. This
- * event is sent to FileFoundListeners via the fileFound() method.
+ * a search. It provides the path and name of the matching file, and
+ * the locations of the matches if the searcher was asked to report
+ * them. This event is sent to FileSearchListeners via the filesFound()
+ * method.
  *
  * @author Nathan Fiedler
  */
@@ -36,6 +40,16 @@ class FileFoundEvent extends EventObject {
     private static final long serialVersionUID = 1L;
     /** Path and filename of matching file. */
     private String file;
+    /** True if the file is binary and was not searched. */
+    private boolean binary;
+    /** Locations of the matches in the file, if reported. */
+    private List<MatchLocation> matches;
+    /** Number of matches replaced in the file. */
+    private int replacements;
+    /** Patterns found in the file, if there were several. */
+    private List<String> patterns;
+    /** True if the file took too long and was not fully searched. */
+    private boolean timedOut;
 
     /**
      * Two-arg constructor for this event. Saves the passed
@@ -45,8 +59,106 @@ class FileFoundEvent extends EventObject {
      * @param  file    path and filename of matching file
      */
     public FileFoundEvent(Object source, String file) {
+        this(source, file, false);
+    }
+
+    /**
+     * Three-arg constructor for this event. Saves the passed
+     * file name for later use by listeners.
+     *
+     * @param  source  object that caused the event
+     * @param  file    path and filename of the file
+     * @param  binary  true if file is binary and was not searched
+     */
+    public FileFoundEvent(Object source, String file, boolean binary) {
+        this(source, file, binary, null);
+    }
+
+    /**
+     * Four-arg constructor for this event. Saves the passed
+     * file name and match locations for later use by listeners.
+     *
+     * @param  source   object that caused the event
+     * @param  file     path and filename of the file
+     * @param  binary   true if file is binary and was not searched
+     * @param  matches  locations of the matches, or null if the
+     *                  locations were not reported
+     */
+    public FileFoundEvent(Object source, String file, boolean binary,
+                          List<MatchLocation> matches) {
+        this(source, file, binary, matches, 0);
+    }
+
+    /**
+     * Five-arg constructor for this event. Saves the passed file
+     * name, match locations, and replacement count for later use by
+     * listeners.
+     *
+     * @param  source        object that caused the event
+     * @param  file          path and filename of the file
+     * @param  binary        true if file is binary and was not searched
+     * @param  matches       locations of the matches, or null if the
+     *                       locations were not reported
+     * @param  replacements  number of matches replaced in the file
+     */
+    public FileFoundEvent(Object source, String file, boolean binary,
+                          List<MatchLocation> matches, int replacements) {
+        this(source, file, binary, matches, replacements, null);
+    }
+
+    /**
+     * Six-arg constructor for this event. Saves the passed file
+     * name, match locations, replacement count, and patterns found
+     * for later use by listeners.
+     *
+     * @param  source        object that caused the event
+     * @param  file          path and filename of the file
+     * @param  binary        true if file is binary and was not searched
+     * @param  matches       locations of the matches, or null if the
+     *                       locations were not reported
+     * @param  replacements  number of matches replaced in the file
+     * @param  patterns      patterns found in the file, or null if
+     *                       there was only one pattern
+     */
+    public FileFoundEvent(Object source, String file, boolean binary,
+                          List<MatchLocation> matches, int replacements,
+                          List<String> patterns) {
+        this(source, file, binary, matches, replacements, patterns, false);
+    }
+
+    /**
+     * Seven-arg constructor for this event. Saves the passed file
+     * name, match locations, replacement count, patterns found, and
+     * whether the file timed out, for later use by listeners.
+     *
+     * @param  source        object that caused the event
+     * @param  file          path and filename of the file
+     * @param  binary        true if file is binary and was not searched
+     * @param  matches       locations of the matches, or null if the
+     *                       locations were not reported
+     * @param  replacements  number of matches replaced in the file
+     * @param  patterns      patterns found in the file, or null if
+     *                       there was only one pattern
+     * @param  timedOut      true if the file took too long to search
+     */
+    public FileFoundEvent(Object source, String file, boolean binary,
+                          List<MatchLocation> matches, int replacements,
+                          List<String> patterns, boolean timedOut) {
         super(source);
+        this.timedOut = timedOut;
+        this.replacements = replacements;
+        if (patterns == null) {
+            this.patterns = Collections.emptyList();
+        } else {
+            this.patterns = Collections.unmodifiableList(patterns);
+        }
         this.file = file;
+        this.binary = binary;
+        if (matches == null) {
+            this.matches = Collections.emptyList();
+        } else {
+            this.matches = Collections.unmodifiableList(matches);
+        }
     }
 
     /**
@@ -58,4 +170,60 @@ class FileFoundEvent extends EventObject {
     public String getFile() {
         return file;
     }
+
+    /**
+     * Returns the locations of the matches in the file, in the order
+     * in which they appear. The list is empty unless the searcher was
+     * asked to report match locations.
+     *
+     * @return  list of match locations.
+     * @see Searcher#setMaxLocations
+     */
+    public List<MatchLocation> getMatches() {
+        return matches;
+    }
+
+    /**
+     * Returns the patterns found in the file, in the order in which
+     * they were given, when searching for several patterns at once.
+     * The list is empty when there was only the one pattern.
+     *
+     * @return  list of patterns found.
+     */
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * Returns the number of matches replaced in the file (or that
+     * would have been, in a dry run). This is zero unless the
+     * searcher was asked to replace matches.
+     *
+     * @return  number of replacements.
+     * @see Searcher#setReplacement
+     */
+    public int getReplacements() {
+        return replacements;
+    }
+
+    /**
+     * Indicates if the file is binary and was not searched, rather
+     * than being a matching file.
+     *
+     * @return  true if file is binary.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Indicates if the file took longer to search than allowed, and
+     * so was abandoned, rather than being a matching file.
+     *
+     * @return  true if file timed out.
+     * @see Searcher#setFileTimeout
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
 }
@@ -23,29 +23,43 @@
 package com.bluemarsh.jrgrep;
 
 import java.util.EventListener;
+import java.util.List;
 
 /**
  * The listener interface for receiving file search notifications.
- * Each time a file is found during a search, a FileFoundEvent will be
- * sent to any listeners. The listener can use this event to see what
- * file has been found.
+ * As files are found during a search, FileFoundEvents will be sent
+ * to any listeners, several at a time. The listener can use these
+ * events to see what files have been found.
  *
  * @author Nathan Fiedler
  */
 interface FileSearchListener extends EventListener {
 
     /**
-     * Invoked when a matching file has been found. Typically
-     * the listener will update some UI element here.
+     * Invoked when one or more matching files have been found.
+     * Typically the listener will update some UI element here. The
+     * events are in the order in which the files were found.
      *
-     * @param  event  indicates what file was found
+     * @param  events  indicate what files were found
      */
-    void fileFound(FileFoundEvent event);
+    void filesFound(List<FileFoundEvent> events);
 
     /**
-     * Invoked when the search has been completed.
+     * Invoked when a file found earlier no longer matches, or has
+     * been deleted. This happens only when the searcher is watching
+     * for changes after the search.
+     *
+     * @param  event  indicates what file no longer matches
+     */
+    void fileRemoved(FileFoundEvent event);
+
+    /**
+     * Invoked when the search has been completed, with what is known
+     * of how the search went.
+     *
+     * @param  stats  statistics of the completed search.
      */
-    void searchComplete();
+    void searchComplete(SearchStats stats);
 
     /**
      * Invoked when the search has failed due to an exception.
@@ -0,0 +1,447 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+
+package com.bluemarsh.jrgrep;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The rules of the .gitignore and .ignore files that apply within one
+ * directory, along with those of the directories above it. The rules
+ * are read as the directories are walked, so that an ignored directory
+ * is passed over without being listed. Instances are immutable and
+ * may be shared between threads.
+ *
+ * <p>The rules follow the .gitignore format: blank lines and lines
+ * starting with '#' are ignored, '!' re-includes what an earlier rule
+ * excluded, a trailing '/' matches only directories, and a pattern
+ * with a '/' elsewhere is matched against the path relative to the
+ * directory of the file, while one without is matched against the
+ * name alone. Of the rules matching a path, the last one in the
+ * deepest directory decides. Within a directory the rules of
+ * .git/info/exclude come first, then .gitignore, then .ignore.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+class IgnoreRules {
+    /** Name of the git repository directory, which is always ignored. */
+    static final String GIT_DIR = ".git";
+    /** Name of the file of rules for git. */
+    static final String GITIGNORE = ".gitignore";
+    /** Name of the file of rules for searching tools. */
+    static final String IGNORE = ".ignore";
+    /** Charset of the rule files. */
+    private static final Charset RULE_CHARSET = Charset.forName("UTF-8");
+    /** Rules for no directory at all. */
+    private static final IgnoreRules EMPTY =
+        new IgnoreRules(null, "", new Rule[0]);
+    /** Rules of the directories above, or null. */
+    private final IgnoreRules parent;
+    /** Path of the directory holding the rules, ending in a separator. */
+    private final String prefix;
+    /** Rules of the directory, in the order read. */
+    private final Rule[] rules;
+
+    /**
+     * Constructs an IgnoreRules.
+     *
+     * @param  parent  rules of the directories above, or null.
+     * @param  prefix  path of the directory, ending in a separator.
+     * @param  rules   rules of the directory.
+     */
+    private IgnoreRules(IgnoreRules parent, String prefix, Rule[] rules) {
+        this.parent = parent;
+        this.prefix = prefix;
+        this.rules = rules;
+    }
+
+    /**
+     * Reads the rules that apply to the given file or directory, from
+     * the directories above it up to the top of the git repository
+     * holding it. If it is not within a repository, no rules apply
+     * (apart from those in the directories below it).
+     *
+     * @param  file  canonical path of a file or directory.
+     * @return  the rules that apply to it.
+     */
+    public static IgnoreRules forTree(File file) {
+        List<File> dirs = new ArrayList<File>();
+        File top = null;
+        for (File dir = file.getParentFile(); dir != null;
+             dir = dir.getParentFile()) {
+            dirs.add(0, dir);
+            if (new File(dir, GIT_DIR).exists()) {
+                top = dir;
+                break;
+            }
+        }
+        IgnoreRules rules = EMPTY;
+        if (top != null) {
+            for (File dir : dirs) {
+                rules = rules.enter(dir, new File(dir, GIT_DIR).exists(),
+                                    new File(dir, GITIGNORE).exists(),
+                                    new File(dir, IGNORE).exists());
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Indicates if a directory entry of the given name affects the
+     * rules of the directory, so that enter() must be told of it.
+     *
+     * @param  name  name of a directory entry.
+     * @return  true if the entry holds or leads to rules.
+     */
+    public static boolean isRuleSource(String name) {
+        return name.equals(GITIGNORE) || name.equals(IGNORE)
+            || name.equals(GIT_DIR);
+    }
+
+    /**
+     * Returns the rules that apply within the given subdirectory,
+     * reading any rule files it holds.
+     *
+     * @param  dir        canonical path of the subdirectory.
+     * @param  git        true if it holds a .git directory.
+     * @param  gitignore  true if it holds a .gitignore file.
+     * @param  ignore     true if it holds a .ignore file.
+     * @return  the rules for the subdirectory, which are this same
+     *          object if it adds none.
+     */
+    public IgnoreRules enter(File dir, boolean git, boolean gitignore,
+                             boolean ignore) {
+        List<Rule> added = new ArrayList<Rule>();
+        if (git) {
+            read(new File(dir, GIT_DIR + File.separator + "info"
+                          + File.separator + "exclude"), added);
+        }
+        if (gitignore) {
+            read(new File(dir, GITIGNORE), added);
+        }
+        if (ignore) {
+            read(new File(dir, IGNORE), added);
+        }
+        if (added.isEmpty()) {
+            return this;
+        }
+        String path = dir.getPath();
+        if (!path.endsWith(File.separator)) {
+            path += File.separator;
+        }
+        return new IgnoreRules(this, path,
+                               added.toArray(new Rule[added.size()]));
+    }
+
+    /**
+     * Determines if the given file or directory is ignored.
+     *
+     * @param  path       path of the entry.
+     * @param  name       name of the entry.
+     * @param  directory  true if the entry is a directory.
+     * @return  true if the entry is ignored.
+     */
+    public boolean isIgnored(String path, String name, boolean directory) {
+        if (directory && name.equals(GIT_DIR)) {
+            return true;
+        }
+        for (IgnoreRules level = this; level != null; level = level.parent) {
+            if (level.rules.length == 0 || !path.startsWith(level.prefix)) {
+                continue;
+            }
+            String relative = null;
+            for (int ii = level.rules.length - 1; ii >= 0; ii--) {
+                Rule rule = level.rules[ii];
+                if (rule.directoryOnly && !directory) {
+                    continue;
+                }
+                boolean matches;
+                if (rule.anchored) {
+                    if (relative == null) {
+                        relative = path.substring(level.prefix.length());
+                        if (File.separatorChar != '/') {
+                            relative = relative.replace(
+                                File.separatorChar, '/');
+                        }
+                    }
+                    matches = rule.matches(relative);
+                } else {
+                    matches = rule.matches(name);
+                }
+                if (matches) {
+                    return !rule.negated;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the rules in the given file, adding them to the list. A
+     * file that cannot be read adds no rules.
+     *
+     * @param  file   file of rules.
+     * @param  rules  receives the rules.
+     */
+    private static void read(File file, List<Rule> rules) {
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), RULE_CHARSET));
+            try {
+                String line = br.readLine();
+                while (line != null) {
+                    Rule rule = Rule.parse(line);
+                    if (rule != null) {
+                        rules.add(rule);
+                    }
+                    line = br.readLine();
+                }
+            } finally {
+                br.close();
+            }
+        } catch (IOException ioe) {
+            // Missing or unreadable; it has no rules to give.
+        }
+    }
+
+    /**
+     * A single rule of an ignore file. Patterns that are a plain name,
+     * or '*' followed by a plain suffix, are compared directly; all
+     * others are compiled to a regular expression.
+     */
+    private static class Rule {
+        /** Pattern is a name to be compared exactly. */
+        private static final int NAME = 0;
+        /** Pattern is a suffix of the name, as in "*.log". */
+        private static final int SUFFIX = 1;
+        /** Pattern is a regular expression. */
+        private static final int REGEX = 2;
+        /** True if the rule re-includes what it matches. */
+        final boolean negated;
+        /** True if the rule matches only directories. */
+        final boolean directoryOnly;
+        /** True if the rule matches the relative path rather than
+         * the name. */
+        final boolean anchored;
+        /** One of NAME, SUFFIX, or REGEX. */
+        private final int kind;
+        /** Name or suffix to compare. */
+        private final String text;
+        /** Compiled pattern, for REGEX rules. */
+        private final Pattern regex;
+
+        /**
+         * Constructs a Rule.
+         *
+         * @param  glob           pattern, without '!', leading '/' or
+         *                        trailing '/'.
+         * @param  negated        true if the rule re-includes.
+         * @param  directoryOnly  true if only directories match.
+         * @param  anchored       true to match the relative path.
+         */
+        private Rule(String glob, boolean negated, boolean directoryOnly,
+                     boolean anchored) {
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.anchored = anchored;
+            if (!anchored && !hasWildcard(glob, 0)) {
+                kind = NAME;
+                text = unescape(glob);
+                regex = null;
+            } else if (!anchored && glob.length() > 1
+                       && glob.charAt(0) == '*' && !hasWildcard(glob, 1)) {
+                kind = SUFFIX;
+                text = unescape(glob.substring(1));
+                regex = null;
+            } else {
+                kind = REGEX;
+                text = null;
+                regex = Pattern.compile(toRegex(glob));
+            }
+        }
+
+        /**
+         * Parses a line of an ignore file.
+         *
+         * @param  line  line of the file.
+         * @return  the rule, or null if the line has none.
+         */
+        static Rule parse(String line) {
+            // Trailing spaces are dropped unless escaped.
+            int end = line.length();
+            while (end > 0 && line.charAt(end - 1) == ' '
+                   && (end < 2 || line.charAt(end - 2) != '\\')) {
+                end--;
+            }
+            line = line.substring(0, end);
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                return null;
+            }
+            boolean negated = false;
+            if (line.charAt(0) == '!') {
+                negated = true;
+                line = line.substring(1);
+            }
+            boolean directoryOnly = false;
+            if (line.endsWith("/")) {
+                directoryOnly = true;
+                line = line.substring(0, line.length() - 1);
+            }
+            boolean anchored = line.indexOf('/') >= 0;
+            if (line.startsWith("/")) {
+                line = line.substring(1);
+            }
+            if (line.length() == 0) {
+                return null;
+            }
+            return new Rule(line, negated, directoryOnly, anchored);
+        }
+
+        /**
+         * Matches the rule against a name or relative path.
+         *
+         * @param  s  name, or relative path if the rule is anchored.
+         * @return  true if the rule matches.
+         */
+        boolean matches(String s) {
+            switch (kind) {
+            case NAME:
+                return s.equals(text);
+            case SUFFIX:
+                return s.endsWith(text);
+            default:
+                return regex.matcher(s).matches();
+            }
+        }
+
+        /**
+         * Indicates if the glob has any wildcard or escape characters
+         * from the given index onward.
+         *
+         * @param  glob   pattern to examine.
+         * @param  start  index at which to start.
+         * @return  true if the glob is not plain text.
+         */
+        private static boolean hasWildcard(String glob, int start) {
+            for (int ii = start; ii < glob.length(); ii++) {
+                char ch = glob.charAt(ii);
+                if (ch == '*' || ch == '?' || ch == '[') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Removes the backslash escapes from plain text.
+         *
+         * @param  s  text to unescape.
+         * @return  unescaped text.
+         */
+        private static String unescape(String s) {
+            if (s.indexOf('\\') < 0) {
+                return s;
+            }
+            StringBuilder sb = new StringBuilder(s.length());
+            for (int ii = 0; ii < s.length(); ii++) {
+                char ch = s.charAt(ii);
+                if (ch == '\\' && ii + 1 < s.length()) {
+                    ii++;
+                    ch = s.charAt(ii);
+                }
+                sb.append(ch);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Converts a glob to a regular expression. A '*' matches within
+         * one name, "**" between slashes matches any number of names,
+         * '?' matches one character other than '/', and [...] matches
+         * one character of a set.
+         *
+         * @param  glob  pattern to convert.
+         * @return  equivalent regular expression.
+         */
+        private static String toRegex(String glob) {
+            StringBuilder sb = new StringBuilder();
+            int length = glob.length();
+            for (int ii = 0; ii < length; ii++) {
+                char ch = glob.charAt(ii);
+                if (ch == '*') {
+                    boolean pair = ii + 1 < length
+                        && glob.charAt(ii + 1) == '*';
+                    boolean whole = pair && (ii == 0
+                        || glob.charAt(ii - 1) == '/');
+                    if (whole && ii + 2 == length) {
+                        // Trailing "/**" matches everything within.
+                        sb.append(".*");
+                        ii++;
+                    } else if (whole && glob.charAt(ii + 2) == '/') {
+                        // Leading or inner "**/" matches any number
+                        // of directories, including none.
+                        sb.append("(?:.*/)?");
+                        ii += 2;
+                    } else {
+                        while (ii + 1 < length && glob.charAt(ii + 1) == '*') {
+                            ii++;
+                        }
+                        sb.append("[^/]*");
+                    }
+                } else if (ch == '?') {
+                    sb.append("[^/]");
+                } else if (ch == '[') {
+                    int close = glob.indexOf(']', ii + 2);
+                    if (close < 0) {
+                        sb.append("\\[");
+                    } else {
+                        String set = glob.substring(ii + 1, close);
+                        if (set.startsWith("!")) {
+                            set = "^" + set.substring(1);
+                        }
+                        sb.append('[').append(set.replace("\\", "\\\\")
+                                              .replace("[", "\\["))
+                          .append(']');
+                        ii = close;
+                    }
+                } else if (ch == '\\' && ii + 1 < length) {
+                    ii++;
+                    sb.append(Pattern.quote(String.valueOf(glob.charAt(ii))));
+                } else if (Character.isLetterOrDigit(ch)) {
+                    sb.append(ch);
+                } else {
+                    sb.append('\\').append(ch);
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,735 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds and maintains the content index in a directory. A build
+ * reads every file once and adds the distinct trigrams it contains to
+ * the posting lists, which are written out as a single segment. A
+ * refresh re-reads only the files that were added or changed since,
+ * writing them (and the files removed since) to a new segment that
+ * overrides the older ones. Compaction merges the segments into one,
+ * reusing their posting lists rather than reading the files again.
+ *
+ * @author  Nathan Fiedler
+ */
+class IndexBuilder {
+    /** Charset in which file paths are stored in the index. */
+    static final Charset PATH_CHARSET = Charset.forName("UTF-8");
+    /** Segments beyond this number are merged by compaction. */
+    static final int MAX_SEGMENTS = 8;
+    /** Files larger than this are not tokenized. */
+    private static final long MAX_INDEXED_SIZE = 64L * 1024 * 1024;
+    /** Number of bytes examined to decide if a file is binary. */
+    private static final int SNIFF_SIZE = 8192;
+    /** Name of the lock file within the index directory. */
+    private static final String LOCK_FILE = "index.lock";
+    /** Sorts entries by the unsigned bytes of their paths, as the
+     * segment requires. */
+    private static final Comparator<Entry> PATH_ORDER =
+        new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return comparePaths(a.path, b.path);
+            }
+        };
+    /** Directory holding the index. */
+    private final File directory;
+    /** Trigrams seen in the file being tokenized. */
+    private BitSet seen;
+    /** Distinct trigrams in the file being tokenized. */
+    private int[] distinct;
+    /** Number of entries in the distinct array. */
+    private int distinctCount;
+    /** Posting list for each trigram. */
+    private Map<Integer, PostingList> postings;
+
+    /**
+     * Constructs an IndexBuilder for the index in the given directory.
+     *
+     * @param  directory  directory holding the index.
+     */
+    public IndexBuilder(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Indexes the files under the root directory, replacing any index
+     * already in the index directory.
+     *
+     * @param  root     directory tree to be indexed.
+     * @param  filter   filename filter pattern.
+     * @param  exclude  directory exclude pattern (may be empty).
+     * @return  number of files indexed.
+     * @exception  IOException
+     *             if reading the files or writing the index failed.
+     * @exception  java.util.regex.PatternSyntaxException
+     *             if either pattern is invalid.
+     */
+    public int build(File root, String filter, String exclude)
+        throws IOException {
+        root = root.getCanonicalFile();
+        if (exclude == null) {
+            exclude = "";
+        }
+        List<Entry> entries = walk(root.toPath(), filter, exclude);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        synchronized (IndexBuilder.class) {
+            FileLock lock = lock();
+            try {
+                String name = ContentIndex.newSegmentName(directory);
+                writeSegment(new File(directory, name), entries);
+                ContentIndex.writeManifest(directory, root, filter, exclude,
+                                           Collections.singletonList(name));
+            } finally {
+                unlock(lock);
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * Brings the index up to date with the files in the indexed tree.
+     * Files whose size, modified time, and file key are unchanged are
+     * not read; the others, along with the files that were removed,
+     * are written to a new segment.
+     *
+     * @return  number of files added, changed, or removed.
+     * @exception  IOException
+     *             if reading the files or writing the index failed.
+     */
+    public int refresh() throws IOException {
+        Properties manifest = ContentIndex.readManifest(directory);
+        String rootStr = manifest.getProperty("root");
+        if (rootStr == null) {
+            throw new IOException("invalid index manifest: " + directory);
+        }
+        File root = new File(rootStr);
+        String filter = manifest.getProperty("filter", "");
+        String exclude = manifest.getProperty("exclude", "");
+        List<Entry> found = walk(root.toPath(), filter, exclude);
+
+        synchronized (IndexBuilder.class) {
+            FileLock lock = lock();
+            try {
+                // Read the manifest again, now that no one else can
+                // change it, in case a compaction finished meanwhile.
+                manifest = ContentIndex.readManifest(directory);
+                List<String> names = ContentIndex.getSegmentNames(manifest);
+                Map<String, Entry> indexed = readEntries(names);
+                List<Entry> changed = new ArrayList<Entry>();
+                for (Entry entry : found) {
+                    Entry old = indexed.remove(entry.getPath());
+                    if (old == null || old.size != entry.size
+                        || old.modified != entry.modified
+                        || old.key != entry.key
+                        || (old.flags & IndexSegment.FLAG_DELETED) != 0) {
+                        changed.add(entry);
+                    }
+                }
+                // Whatever was not found by the walk has been removed.
+                for (Entry old : indexed.values()) {
+                    if ((old.flags & IndexSegment.FLAG_DELETED) == 0) {
+                        old.flags = IndexSegment.FLAG_DELETED;
+                        old.size = 0;
+                        old.modified = 0;
+                        old.key = 0;
+                        changed.add(old);
+                    }
+                }
+                if (!changed.isEmpty()) {
+                    String name = ContentIndex.newSegmentName(directory);
+                    writeSegment(new File(directory, name), changed);
+                    names.add(name);
+                    ContentIndex.writeManifest(directory, root, filter,
+                                               exclude, names);
+                }
+                return changed.size();
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    /**
+     * Determines if the index has enough segments to be compacted.
+     *
+     * @return  true if compaction is warranted.
+     * @exception  IOException
+     *             if the manifest could not be read.
+     */
+    public boolean needsCompaction() throws IOException {
+        Properties manifest = ContentIndex.readManifest(directory);
+        return ContentIndex.getSegmentNames(manifest).size() > MAX_SEGMENTS;
+    }
+
+    /**
+     * Starts compacting the index on a background thread. Searches
+     * may continue to use the index meanwhile, and will see either
+     * the old segments or the merged one.
+     *
+     * @return  thread performing the compaction.
+     */
+    public Thread startCompaction() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException ioe) {
+                    // The old segments remain in use; the next
+                    // compaction will try again.
+                    System.err.println(Bundle.getString("exceptionOccurred"));
+                    System.err.println(ioe.getMessage());
+                }
+            }
+        }, "index compaction");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Merges the segments of the index into one. The posting lists of
+     * the segments are combined without reading the indexed files;
+     * entries that were overridden or removed are dropped.
+     *
+     * @exception  IOException
+     *             if reading or writing the index failed.
+     */
+    public void compact() throws IOException {
+        synchronized (IndexBuilder.class) {
+            FileLock lock = lock();
+            try {
+                Properties manifest = ContentIndex.readManifest(directory);
+                List<String> names = ContentIndex.getSegmentNames(manifest);
+                if (names.size() < 2) {
+                    return;
+                }
+                IndexSegment[] segments = new IndexSegment[names.size()];
+                for (int ss = 0; ss < segments.length; ss++) {
+                    segments[ss] = new IndexSegment(
+                        new File(directory, names.get(ss)));
+                }
+                String name = ContentIndex.newSegmentName(directory);
+                mergeSegments(new File(directory, name), segments);
+                ContentIndex.writeManifest(directory,
+                    new File(manifest.getProperty("root")),
+                    manifest.getProperty("filter", ""),
+                    manifest.getProperty("exclude", ""),
+                    Collections.singletonList(name));
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    /**
+     * Writes a single segment holding the live entries of the given
+     * segments, combining their posting lists.
+     *
+     * @param  file      segment file to write.
+     * @param  segments  segments to be merged, oldest first.
+     * @exception  IOException
+     *             if writing the segment failed.
+     */
+    private void mergeSegments(File file, IndexSegment[] segments)
+        throws IOException {
+        // Find the newest entry for each path, noting where it came
+        // from, so its file number can be mapped to the new segment.
+        Map<String, Entry> newest = new HashMap<String, Entry>();
+        for (int ss = segments.length - 1; ss >= 0; ss--) {
+            IndexSegment segment = segments[ss];
+            int count = segment.getFileCount();
+            for (int id = 0; id < count; id++) {
+                Entry entry = new Entry(segment, id);
+                String path = entry.getPath();
+                if (!newest.containsKey(path)) {
+                    entry.segment = ss;
+                    entry.id = id;
+                    newest.put(path, entry);
+                }
+            }
+        }
+        List<Entry> live = new ArrayList<Entry>();
+        for (Entry entry : newest.values()) {
+            if ((entry.flags & IndexSegment.FLAG_DELETED) == 0) {
+                live.add(entry);
+            }
+        }
+        Entry[] entries = live.toArray(new Entry[live.size()]);
+        Arrays.sort(entries, PATH_ORDER);
+        int[][] renumber = new int[segments.length][];
+        for (int ss = 0; ss < segments.length; ss++) {
+            renumber[ss] = new int[segments[ss].getFileCount()];
+            Arrays.fill(renumber[ss], -1);
+        }
+        for (int ii = 0; ii < entries.length; ii++) {
+            renumber[entries[ii].segment][entries[ii].id] = ii;
+        }
+
+        // Gather the distinct trigrams of all the segments.
+        int total = 0;
+        for (int ss = 0; ss < segments.length; ss++) {
+            total += segments[ss].getTrigramCount();
+        }
+        int[] trigrams = new int[total];
+        total = 0;
+        for (int ss = 0; ss < segments.length; ss++) {
+            int count = segments[ss].getTrigramCount();
+            for (int ii = 0; ii < count; ii++) {
+                trigrams[total++] = segments[ss].getTrigram(ii);
+            }
+        }
+        Arrays.sort(trigrams);
+        int unique = 0;
+        for (int ii = 0; ii < total; ii++) {
+            if (unique == 0 || trigrams[unique - 1] != trigrams[ii]) {
+                trigrams[unique++] = trigrams[ii];
+            }
+        }
+
+        // Combine the posting lists, dropping entries no longer live.
+        int[] kept = new int[unique];
+        byte[][] lists = new byte[unique][];
+        int[] counts = new int[unique];
+        int keptCount = 0;
+        for (int ii = 0; ii < unique; ii++) {
+            BitSet merged = new BitSet(entries.length);
+            for (int ss = 0; ss < segments.length; ss++) {
+                BitSet files = segments[ss].getPostings(trigrams[ii]);
+                for (int id = files.nextSetBit(0); id >= 0;
+                     id = files.nextSetBit(id + 1)) {
+                    if (renumber[ss][id] >= 0) {
+                        merged.set(renumber[ss][id]);
+                    }
+                }
+            }
+            if (!merged.isEmpty()) {
+                PostingList pl = new PostingList();
+                for (int id = merged.nextSetBit(0); id >= 0;
+                     id = merged.nextSetBit(id + 1)) {
+                    pl.add(id);
+                }
+                kept[keptCount] = trigrams[ii];
+                lists[keptCount] = pl.toByteArray();
+                counts[keptCount] = pl.size();
+                keptCount++;
+            }
+        }
+        IndexSegment.write(file, entries, Arrays.copyOf(kept, keptCount),
+                           Arrays.copyOf(lists, keptCount),
+                           Arrays.copyOf(counts, keptCount));
+    }
+
+    /**
+     * Reads the newest entry for each path in the given segments.
+     *
+     * @param  names  segment names, oldest first.
+     * @return  entries keyed by relative path.
+     * @exception  IOException
+     *             if a segment could not be read.
+     */
+    private Map<String, Entry> readEntries(List<String> names)
+        throws IOException {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        for (int ss = names.size() - 1; ss >= 0; ss--) {
+            IndexSegment segment = new IndexSegment(
+                new File(directory, names.get(ss)));
+            int count = segment.getFileCount();
+            for (int id = 0; id < count; id++) {
+                Entry entry = new Entry(segment, id);
+                String path = entry.getPath();
+                if (!entries.containsKey(path)) {
+                    entries.put(path, entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Finds the files under the root directory that are accepted by
+     * the filter and not within excluded directories.
+     *
+     * @param  root     directory tree to walk.
+     * @param  filter   filename filter pattern.
+     * @param  exclude  directory exclude pattern (may be empty).
+     * @return  list of entries, with their current attributes.
+     * @exception  IOException
+     *             if walking the tree failed.
+     */
+    protected List<Entry> walk(final Path root, String filter,
+                               String exclude) throws IOException {
+        final NameFilter nameFilter = new NameFilter(filter);
+        final Matcher filterMatcher = nameFilter.needsMatcher()
+            ? nameFilter.getPattern().matcher("") : null;
+        final Pattern excludePattern = exclude.length() > 0
+            ? Pattern.compile(exclude) : null;
+        final List<Entry> entries = new ArrayList<Entry>();
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+                           Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(
+                Path dir, BasicFileAttributes attrs) {
+                if (excludePattern != null && !dir.equals(root)
+                    && excludePattern.matcher(
+                        dir.getFileName().toString()).find()) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(
+                Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    String path = root.relativize(file).toString();
+                    if (nameFilter.accept(path, filterMatcher)) {
+                        entries.add(new Entry(file.toFile(), path, attrs));
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFileFailed(
+                Path file, IOException ioe) {
+                // Unreadable entries are left out of the index.
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Tokenizes the files of the given entries and writes them to a
+     * new segment. Entries for removed files are written as is.
+     *
+     * @param  segment  segment file to write.
+     * @param  list     entries to be written.
+     * @exception  IOException
+     *             if writing the segment failed.
+     */
+    protected void writeSegment(File segment, List<Entry> list)
+        throws IOException {
+        Entry[] entries = list.toArray(new Entry[list.size()]);
+        Arrays.sort(entries, PATH_ORDER);
+        seen = new BitSet(1 << 24);
+        distinct = new int[4096];
+        postings = new HashMap<Integer, PostingList>();
+        for (int id = 0; id < entries.length; id++) {
+            Entry entry = entries[id];
+            if (entry.file != null && !tokenize(entry.file, entry.size, id)) {
+                entry.flags = IndexSegment.FLAG_UNINDEXED;
+            }
+        }
+
+        int[] trigrams = new int[postings.size()];
+        int ii = 0;
+        for (Integer trigram : postings.keySet()) {
+            trigrams[ii++] = trigram.intValue();
+        }
+        Arrays.sort(trigrams);
+        byte[][] lists = new byte[trigrams.length][];
+        int[] counts = new int[trigrams.length];
+        for (ii = 0; ii < trigrams.length; ii++) {
+            PostingList pl = postings.get(Integer.valueOf(trigrams[ii]));
+            lists[ii] = pl.toByteArray();
+            counts[ii] = pl.size();
+        }
+        seen = null;
+        distinct = null;
+        postings = null;
+        IndexSegment.write(segment, entries, trigrams, lists, counts);
+    }
+
+    /**
+     * Adds the trigrams of the given file to the posting lists.
+     *
+     * @param  file  file to tokenize.
+     * @param  size  size of the file.
+     * @param  id    number of the file within the segment.
+     * @return  true if tokenized, false if the file is binary, too
+     *          large, or could not be read.
+     */
+    private boolean tokenize(File file, long size, int id) {
+        if (size > MAX_INDEXED_SIZE) {
+            return false;
+        }
+        MappedByteBuffer bb;
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                FileChannel fc = fis.getChannel();
+                long length = fc.size();
+                if (length > MAX_INDEXED_SIZE) {
+                    return false;
+                }
+                bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            } finally {
+                fis.close();
+            }
+        } catch (IOException ioe) {
+            return false;
+        }
+        int limit = bb.limit();
+        int sniff = Math.min(limit, SNIFF_SIZE);
+        for (int ii = 0; ii < sniff; ii++) {
+            if (bb.get(ii) == 0) {
+                return false;
+            }
+        }
+
+        distinctCount = 0;
+        int trigram = 0;
+        for (int ii = 0; ii < limit; ii++) {
+            trigram = ((trigram << 8) | (bb.get(ii) & 0xff)) & 0xffffff;
+            if (ii >= 2 && !seen.get(trigram)) {
+                seen.set(trigram);
+                if (distinctCount == distinct.length) {
+                    distinct = Arrays.copyOf(distinct, distinctCount * 2);
+                }
+                distinct[distinctCount++] = trigram;
+            }
+        }
+        for (int ii = 0; ii < distinctCount; ii++) {
+            Integer key = Integer.valueOf(distinct[ii]);
+            PostingList pl = postings.get(key);
+            if (pl == null) {
+                pl = new PostingList();
+                postings.put(key, pl);
+            }
+            pl.add(id);
+            seen.clear(distinct[ii]);
+        }
+        return true;
+    }
+
+    /**
+     * Locks the index against changes by other processes.
+     *
+     * @return  the lock, to be released with unlock().
+     * @exception  IOException
+     *             if the lock file could not be opened.
+     */
+    private FileLock lock() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(
+            new File(directory, LOCK_FILE), "rw");
+        try {
+            return raf.getChannel().lock();
+        } catch (IOException ioe) {
+            raf.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Releases the lock taken by lock().
+     *
+     * @param  lock  the lock to release.
+     * @exception  IOException
+     *             if closing the lock file failed.
+     */
+    private static void unlock(FileLock lock) throws IOException {
+        lock.channel().close();
+    }
+
+    /**
+     * Compares two paths by their unsigned bytes.
+     *
+     * @param  a  first UTF-8 encoded path.
+     * @param  b  second UTF-8 encoded path.
+     * @return  negative, zero, or positive as a is less than, equal
+     *          to, or greater than b.
+     */
+    static int comparePaths(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int ii = 0; ii < n; ii++) {
+            int cmp = (a[ii] & 0xff) - (b[ii] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Hashes a file key, such as a device and inode number, so it can
+     * be stored in a fixed-size record.
+     *
+     * @param  key  file key, or null if the file system has none.
+     * @return  64-bit hash of the key, or zero if key is null.
+     */
+    static long hashKey(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        // FNV-1a over the characters of the key's string form.
+        String str = key.toString();
+        long hash = 0xcbf29ce484222325L;
+        for (int ii = 0; ii < str.length(); ii++) {
+            hash ^= str.charAt(ii);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * A file as recorded in a segment.
+     */
+    static class Entry {
+        /** File to be tokenized, or null if not to be read. */
+        final File file;
+        /** UTF-8 encoded path relative to the indexed directory. */
+        final byte[] path;
+        /** Size of the file. */
+        long size;
+        /** Modified time of the file. */
+        long modified;
+        /** Hash of the file key. */
+        long key;
+        /** Segment flags of the file. */
+        int flags;
+        /** Segment from which the entry was read, when merging. */
+        int segment;
+        /** File number in that segment, when merging. */
+        int id;
+
+        /**
+         * Constructs an Entry for a file found in the indexed tree.
+         *
+         * @param  file   the file.
+         * @param  path   path relative to the indexed directory.
+         * @param  attrs  current attributes of the file.
+         */
+        Entry(File file, String path, BasicFileAttributes attrs) {
+            this.file = file;
+            this.path = path.getBytes(PATH_CHARSET);
+            size = attrs.size();
+            modified = attrs.lastModifiedTime().toMillis();
+            key = hashKey(attrs.fileKey());
+        }
+
+        /**
+         * Constructs an Entry from a file record of a segment.
+         *
+         * @param  segment  segment holding the record.
+         * @param  id       file number.
+         */
+        Entry(IndexSegment segment, int id) {
+            file = null;
+            path = segment.getPathBytes(id);
+            size = segment.getSize(id);
+            modified = segment.getModified(id);
+            key = segment.getKey(id);
+            flags = segment.getFlags(id);
+        }
+
+        /**
+         * Returns the relative path of the file.
+         *
+         * @return  file path.
+         */
+        String getPath() {
+            return new String(path, PATH_CHARSET);
+        }
+    }
+
+    /**
+     * An ascending list of file numbers, delta encoded as
+     * variable-length integers as it is built.
+     */
+    static class PostingList {
+        /** Encoded file numbers. */
+        private byte[] data = new byte[8];
+        /** Number of bytes used in data. */
+        private int length;
+        /** Number of file numbers in the list. */
+        private int count;
+        /** Last file number added. */
+        private int last;
+
+        /**
+         * Adds a file number, which must be larger than any added
+         * before it.
+         *
+         * @param  id  file number.
+         */
+        void add(int id) {
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int delta = id - last;
+            while ((delta & ~0x7f) != 0) {
+                data[length++] = (byte) ((delta & 0x7f) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = id;
+            count++;
+        }
+
+        /**
+         * Returns the number of file numbers in the list.
+         *
+         * @return  list size.
+         */
+        int size() {
+            return count;
+        }
+
+        /**
+         * Returns the encoded list.
+         *
+         * @return  encoded bytes.
+         */
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+}
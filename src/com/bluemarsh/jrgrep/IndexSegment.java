@@ -0,0 +1,367 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * One segment of a content index, held in a file that is mapped into
+ * memory when opened. A segment lists a set of files, sorted by their
+ * path relative to the indexed directory, and for each trigram (three
+ * consecutive bytes) the files that contain it. A segment may also
+ * record that a file was removed, overriding the entries for that
+ * file in older segments.
+ *
+ * <p>The segment file consists of a header, a table of fixed-size
+ * file records, the UTF-8 encoded paths of the files, a table of
+ * fixed-size trigram records sorted by trigram, and the posting lists
+ * of file numbers, each delta encoded as variable-length integers.
+ * Since every part is either of a fixed size or sorted, a segment can
+ * be searched without reading it into memory first.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+class IndexSegment {
+    /** Identifies a segment file ("JRGI"). */
+    static final int MAGIC = 0x4a524749;
+    /** Version of the segment file format. */
+    static final int VERSION = 2;
+    /** File was not tokenized, so it may contain any trigram. */
+    static final int FLAG_UNINDEXED = 1;
+    /** File was removed; entries in older segments no longer apply. */
+    static final int FLAG_DELETED = 2;
+    /** Size of the header: magic, version, counts, and offsets. */
+    private static final int HEADER_SIZE = 32;
+    /** Size of a file record: path offset and length, size, modified
+     * time, file key, and flags. */
+    private static final int FILE_RECORD_SIZE = 36;
+    /** Size of a trigram record: trigram, postings offset, count. */
+    private static final int TRIGRAM_RECORD_SIZE = 12;
+    /** Mapped contents of the segment file. */
+    private final MappedByteBuffer buffer;
+    /** Number of files in the segment. */
+    private final int fileCount;
+    /** Number of distinct trigrams in the segment. */
+    private final int trigramCount;
+    /** Offset of the file records. */
+    private final int fileTable;
+    /** Offset of the path data. */
+    private final int pathData;
+    /** Offset of the trigram records. */
+    private final int trigramTable;
+    /** Offset of the posting lists. */
+    private final int postings;
+
+    /**
+     * Opens the segment in the given file.
+     *
+     * @param  file  segment file.
+     * @exception  IOException
+     *             if the file could not be read or is not a segment.
+     */
+    public IndexSegment(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel fc = fis.getChannel();
+            if (fc.size() < HEADER_SIZE || fc.size() > Integer.MAX_VALUE) {
+                throw new IOException("invalid index segment: " + file);
+            }
+            buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        } finally {
+            fis.close();
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("invalid index segment: " + file);
+        }
+        fileCount = buffer.getInt(8);
+        trigramCount = buffer.getInt(12);
+        fileTable = buffer.getInt(16);
+        pathData = buffer.getInt(20);
+        trigramTable = buffer.getInt(24);
+        postings = buffer.getInt(28);
+    }
+
+    /**
+     * Returns the number of files in this segment.
+     *
+     * @return  file count.
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Returns the flags of the given file.
+     *
+     * @param  id  file number.
+     * @return  file flags.
+     */
+    public int getFlags(int id) {
+        return buffer.getInt(fileTable + id * FILE_RECORD_SIZE + 32);
+    }
+
+    /**
+     * Returns the hash of the file key (such as the inode number) of
+     * the given file when indexed.
+     *
+     * @param  id  file number.
+     * @return  file key hash, or zero if the file had no key.
+     */
+    public long getKey(int id) {
+        return buffer.getLong(fileTable + id * FILE_RECORD_SIZE + 24);
+    }
+
+    /**
+     * Returns the last-modified time of the given file when indexed.
+     *
+     * @param  id  file number.
+     * @return  modified time in milliseconds.
+     */
+    public long getModified(int id) {
+        return buffer.getLong(fileTable + id * FILE_RECORD_SIZE + 16);
+    }
+
+    /**
+     * Returns the relative path of the given file.
+     *
+     * @param  id  file number.
+     * @return  file path.
+     */
+    public String getPath(int id) {
+        return new String(getPathBytes(id), IndexBuilder.PATH_CHARSET);
+    }
+
+    /**
+     * Returns the UTF-8 encoded relative path of the given file.
+     *
+     * @param  id  file number.
+     * @return  encoded file path.
+     */
+    public byte[] getPathBytes(int id) {
+        int record = fileTable + id * FILE_RECORD_SIZE;
+        byte[] bytes = new byte[buffer.getInt(record + 4)];
+        for (int ii = 0; ii < bytes.length; ii++) {
+            bytes[ii] = buffer.get(pathData + buffer.getInt(record) + ii);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the size of the given file when indexed.
+     *
+     * @param  id  file number.
+     * @return  file size in bytes.
+     */
+    public long getSize(int id) {
+        return buffer.getLong(fileTable + id * FILE_RECORD_SIZE + 8);
+    }
+
+    /**
+     * Returns the trigram of the given trigram record.
+     *
+     * @param  index  index of the record, in ascending trigram order.
+     * @return  three bytes packed into an integer.
+     */
+    public int getTrigram(int index) {
+        return buffer.getInt(trigramTable + index * TRIGRAM_RECORD_SIZE);
+    }
+
+    /**
+     * Returns the number of distinct trigrams in this segment.
+     *
+     * @return  trigram count.
+     */
+    public int getTrigramCount() {
+        return trigramCount;
+    }
+
+    /**
+     * Finds the file with the given relative path.
+     *
+     * @param  path  UTF-8 encoded relative path.
+     * @return  file number, or -1 if not in this segment.
+     */
+    public int find(byte[] path) {
+        int low = 0;
+        int high = fileCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = comparePath(mid, path);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the set of files that contain the given trigram.
+     *
+     * @param  trigram  three bytes packed into an integer.
+     * @return  set of file numbers (empty if none).
+     */
+    public BitSet getPostings(int trigram) {
+        BitSet files = new BitSet(fileCount);
+        int low = 0;
+        int high = trigramCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int record = trigramTable + mid * TRIGRAM_RECORD_SIZE;
+            int value = buffer.getInt(record);
+            if (value < trigram) {
+                low = mid + 1;
+            } else if (value > trigram) {
+                high = mid - 1;
+            } else {
+                int pos = postings + buffer.getInt(record + 4);
+                int count = buffer.getInt(record + 8);
+                int id = 0;
+                for (int ii = 0; ii < count; ii++) {
+                    // Decode the variable-length delta.
+                    int delta = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = buffer.get(pos++);
+                        delta |= (b & 0x7f) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    id += delta;
+                    files.set(id);
+                }
+                break;
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Compares the path of the given file with the given path, byte
+     * by byte, treating the bytes as unsigned values.
+     *
+     * @param  id    file number.
+     * @param  path  UTF-8 encoded path.
+     * @return  negative, zero, or positive as the file's path is less
+     *          than, equal to, or greater than the given path.
+     */
+    private int comparePath(int id, byte[] path) {
+        int record = fileTable + id * FILE_RECORD_SIZE;
+        int offset = pathData + buffer.getInt(record);
+        int length = buffer.getInt(record + 4);
+        int n = Math.min(length, path.length);
+        for (int ii = 0; ii < n; ii++) {
+            int cmp = (buffer.get(offset + ii) & 0xff) - (path[ii] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - path.length;
+    }
+
+    /**
+     * Writes a segment to the given file.
+     *
+     * @param  file      file to be written.
+     * @param  entries   files of the segment, sorted by path.
+     * @param  trigrams  distinct trigrams, in ascending order.
+     * @param  lists     encoded posting list for each trigram.
+     * @param  counts    number of files in each posting list.
+     * @exception  IOException
+     *             if writing the file failed.
+     */
+    static void write(File file, IndexBuilder.Entry[] entries,
+                      int[] trigrams, byte[][] lists, int[] counts)
+        throws IOException {
+        int files = entries.length;
+        long fileTable = HEADER_SIZE;
+        long pathData = fileTable + (long) files * FILE_RECORD_SIZE;
+        long pathSize = 0;
+        for (int ii = 0; ii < files; ii++) {
+            pathSize += entries[ii].path.length;
+        }
+        long trigramTable = pathData + pathSize;
+        long postings = trigramTable
+            + (long) trigrams.length * TRIGRAM_RECORD_SIZE;
+        long postingSize = 0;
+        for (int ii = 0; ii < lists.length; ii++) {
+            postingSize += lists[ii].length;
+        }
+        if (postings + postingSize > Integer.MAX_VALUE) {
+            throw new IOException("index segment too large");
+        }
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(os, 65536));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(files);
+            out.writeInt(trigrams.length);
+            out.writeInt((int) fileTable);
+            out.writeInt((int) pathData);
+            out.writeInt((int) trigramTable);
+            out.writeInt((int) postings);
+            int offset = 0;
+            for (int ii = 0; ii < files; ii++) {
+                IndexBuilder.Entry entry = entries[ii];
+                out.writeInt(offset);
+                out.writeInt(entry.path.length);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeLong(entry.key);
+                out.writeInt(entry.flags);
+                offset += entry.path.length;
+            }
+            for (int ii = 0; ii < files; ii++) {
+                out.write(entries[ii].path);
+            }
+            offset = 0;
+            for (int ii = 0; ii < trigrams.length; ii++) {
+                out.writeInt(trigrams[ii]);
+                out.writeInt(offset);
+                out.writeInt(counts[ii]);
+                offset += lists[ii].length;
+            }
+            for (int ii = 0; ii < lists.length; ii++) {
+                out.write(lists[ii]);
+            }
+            out.flush();
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds occurrences of a literal byte sequence within a buffer, using
+ * the Boyer-Moore-Horspool algorithm. Instances are immutable and may
+ * be shared between threads.
+ *
+ * @author  Nathan Fiedler
+ */
+class LiteralFinder implements ByteFinder {
+    /** Bytes to be found. */
+    private final byte[] needle;
+    /** Distance to shift, indexed by the byte under the needle's end. */
+    private final int[] shift;
+
+    /**
+     * Constructs a LiteralFinder for the given bytes.
+     *
+     * @param  needle  bytes to be found (must not be empty).
+     */
+    public LiteralFinder(byte[] needle) {
+        if (needle.length == 0) {
+            throw new IllegalArgumentException("empty needle");
+        }
+        this.needle = needle.clone();
+        shift = new int[256];
+        int last = needle.length - 1;
+        for (int ii = 0; ii < shift.length; ii++) {
+            shift[ii] = needle.length;
+        }
+        for (int ii = 0; ii < last; ii++) {
+            shift[needle[ii] & 0xff] = last - ii;
+        }
+    }
+
+    /**
+     * Returns the length of the literal being found.
+     *
+     * @return  length in bytes.
+     */
+    public int length() {
+        return needle.length;
+    }
+
+    /**
+     * Finds the first occurrence of the literal within the given range
+     * of the buffer. The buffer position and limit are ignored.
+     *
+     * @param  buf   buffer to be searched.
+     * @param  from  index at which to start searching.
+     * @param  to    index at which to stop searching (exclusive).
+     * @return  index of the first occurrence, or -1 if not found.
+     */
+    public int indexOf(ByteBuffer buf, int from, int to) {
+        int last = needle.length - 1;
+        byte end = needle[last];
+        int ii = from;
+        while (ii <= to - needle.length) {
+            byte b = buf.get(ii + last);
+            if (b == end) {
+                int jj = last - 1;
+                while (jj >= 0 && buf.get(ii + jj) == needle[jj]) {
+                    jj--;
+                }
+                if (jj < 0) {
+                    return ii;
+                }
+            }
+            ii += shift[b & 0xff];
+        }
+        return -1;
+    }
+}
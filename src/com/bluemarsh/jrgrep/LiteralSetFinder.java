@@ -0,0 +1,214 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Finds occurrences of any of several literal byte sequences within a
+ * buffer in a single pass, using the Aho-Corasick algorithm. The
+ * automaton is built in full when the finder is constructed, so that
+ * each byte of input costs one table lookup however many literals
+ * there are. Bytes that appear in none of the literals share a single
+ * column of the table. Instances are immutable and may be shared
+ * between threads.
+ *
+ * @author  Nathan Fiedler
+ */
+class LiteralSetFinder implements ByteFinder {
+    /** Column of the transition table for each byte value. */
+    private final int[] columns = new int[256];
+    /** Number of columns in the transition table. */
+    private final int width;
+    /** Next state, indexed by state times width plus column. */
+    private final int[] next;
+    /** Longest literal ending at each state, or -1 if none. */
+    private final int[] terminal;
+    /** Nearest state that is a proper suffix of each state and at
+     * which a literal ends, or -1 if none. */
+    private final int[] suffix;
+    /** Next literal with the same bytes as each literal, or -1. */
+    private final int[] duplicate;
+    /** Length of each literal. */
+    private final int[] lengths;
+
+    /**
+     * Constructs a LiteralSetFinder for the given literals.
+     *
+     * @param  literals  bytes to be found (none may be empty).
+     */
+    public LiteralSetFinder(byte[][] literals) {
+        int states = 1;
+        int columnCount = 1;
+        for (byte[] literal : literals) {
+            if (literal.length == 0) {
+                throw new IllegalArgumentException("empty literal");
+            }
+            states += literal.length;
+            for (byte b : literal) {
+                if (columns[b & 0xff] == 0) {
+                    columns[b & 0xff] = columnCount++;
+                }
+            }
+        }
+        width = columnCount;
+        lengths = new int[literals.length];
+        duplicate = new int[literals.length];
+
+        // Build the trie of the literals, with -1 for missing edges.
+        int[] table = new int[states * width];
+        Arrays.fill(table, -1);
+        int[] ends = new int[states];
+        Arrays.fill(ends, -1);
+        int count = 1;
+        for (int ii = 0; ii < literals.length; ii++) {
+            int state = 0;
+            for (byte b : literals[ii]) {
+                int edge = state * width + columns[b & 0xff];
+                if (table[edge] < 0) {
+                    table[edge] = count++;
+                }
+                state = table[edge];
+            }
+            lengths[ii] = literals[ii].length;
+            duplicate[ii] = ends[state];
+            ends[state] = ii;
+        }
+
+        // Fill in the missing edges breadth first, following the
+        // failure links, so that the trie becomes a complete automaton.
+        int[] fail = new int[count];
+        int[] links = new int[count];
+        int[] queue = new int[count];
+        int head = 0;
+        int tail = 0;
+        links[0] = -1;
+        for (int cc = 0; cc < width; cc++) {
+            int child = table[cc];
+            if (child < 0) {
+                table[cc] = 0;
+            } else {
+                fail[child] = 0;
+                links[child] = -1;
+                queue[tail++] = child;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int cc = 0; cc < width; cc++) {
+                int edge = state * width + cc;
+                int child = table[edge];
+                int target = table[fail[state] * width + cc];
+                if (child < 0) {
+                    table[edge] = target;
+                } else {
+                    fail[child] = target;
+                    links[child] = ends[target] >= 0 ? target : links[target];
+                    queue[tail++] = child;
+                }
+            }
+        }
+        if (count < states) {
+            // Literals shared prefixes, leaving unused rows.
+            int[] trimmed = new int[count * width];
+            System.arraycopy(table, 0, trimmed, 0, trimmed.length);
+            table = trimmed;
+            int[] shorter = new int[count];
+            System.arraycopy(ends, 0, shorter, 0, count);
+            ends = shorter;
+        }
+        next = table;
+        terminal = ends;
+        suffix = links;
+    }
+
+    /**
+     * Finds the occurrence that ends first within the given range of
+     * the buffer, returning where it starts. If several literals end
+     * at the same byte, the longest of them is taken. The buffer
+     * position and limit are ignored.
+     *
+     * @param  buf   buffer to be searched.
+     * @param  from  index at which to start searching.
+     * @param  to    index at which to stop searching (exclusive).
+     * @return  index of the occurrence, or -1 if not found.
+     */
+    public int indexOf(ByteBuffer buf, int from, int to) {
+        int state = 0;
+        for (int ii = from; ii < to; ii++) {
+            state = next[state * width + columns[buf.get(ii) & 0xff]];
+            int found = terminal[state];
+            if (found < 0 && suffix[state] >= 0) {
+                found = terminal[suffix[state]];
+            }
+            if (found >= 0) {
+                return ii + 1 - lengths[found];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Notes which literals occur within the given range of the
+     * characters, each character being one ISO-8859-1 byte. The
+     * search stops early once every literal has been found.
+     *
+     * @param  cs     characters to be searched.
+     * @param  from   index at which to start searching.
+     * @param  to     index at which to stop searching (exclusive).
+     * @param  found  receives the indices of the literals found.
+     */
+    public void collect(CharSequence cs, int from, int to, BitSet found) {
+        int state = 0;
+        for (int ii = from; ii < to; ii++) {
+            char ch = cs.charAt(ii);
+            int column = ch > 0xff ? 0 : columns[ch];
+            state = next[state * width + column];
+            int match = terminal[state] >= 0 ? state : suffix[state];
+            if (match < 0) {
+                continue;
+            }
+            while (match >= 0) {
+                for (int lit = terminal[match]; lit >= 0;
+                     lit = duplicate[lit]) {
+                    found.set(lit);
+                }
+                match = suffix[match];
+            }
+            if (found.cardinality() == lengths.length) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of literals being found.
+     *
+     * @return  literal count.
+     */
+    public int size() {
+        return lengths.length;
+    }
+}
@@ -38,6 +38,8 @@ import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.prefs.Preferences;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -53,6 +55,8 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 /**
  * Implements the user interface for the JRGrep program, including
@@ -65,6 +69,8 @@ public class MainWindow extends JFrame
     implements ActionListener, FileSearchListener {
     /** silence the compiler warnings */
     private static final long serialVersionUID = 1L;
+    /** Milliseconds between updates of the result list. */
+    private static final int FLUSH_INTERVAL = 100;
     /** User preferences for this package. */
     private transient Preferences preferences;
     /** Path to begin search in. */
@@ -79,6 +85,10 @@ public class MainWindow extends JFrame
 //      private JTextField replaceWithField;
     /** Indicates if subdirectories should be searched. */
     private JCheckBox includeSubCheckBox;
+    /** Indicates if files excluded by ignore files are passed over. */
+    private JCheckBox ignoreFilesCheckBox;
+    /** Indicates if the search should keep watching for changes. */
+    private JCheckBox watchCheckBox;
     /** Holds the list of files that were found. */
     private JList resultList;
     /** Object that runs the search in another thread. */
@@ -97,6 +107,11 @@ public class MainWindow extends JFrame
     private JPanel cardPanel;
     /** Card layout. */
     private CardLayout cardLayout;
+    /** Files found by the search, not yet added to the result list. */
+    private final transient List<String> pendingFiles =
+        new ArrayList<String>();
+    /** Adds the pending files to the result list while searching. */
+    private Timer flushTimer;
 
     /**
      * Constructor for the MainWindow class. Builds the window
@@ -113,6 +128,11 @@ public class MainWindow extends JFrame
         preferences = Preferences.userRoot().node("com/bluemarsh/jrgrep");
 
         constructUI();
+        flushTimer = new Timer(FLUSH_INTERVAL, new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                flushResults();
+            }
+        });
 
         // Get the default dimensions, or compute via pack().
         int width = preferences.getInt("windowWidth", 0);
@@ -293,6 +313,20 @@ public class MainWindow extends JFrame
         gb.setConstraints(includeSubCheckBox, gc);
         pane.add(includeSubCheckBox);
 
+        // checkbox for honoring .gitignore and .ignore files
+        ignoreFilesCheckBox = new JCheckBox(
+            Bundle.getString("ignoreFilesLabel"));
+        ignoreFilesCheckBox.setSelected(preferences.getBoolean(
+            "gitignore", false));
+        gb.setConstraints(ignoreFilesCheckBox, gc);
+        pane.add(ignoreFilesCheckBox);
+
+        // checkbox for watching for changes after the search
+        watchCheckBox = new JCheckBox(Bundle.getString("watchLabel"));
+        watchCheckBox.setSelected(preferences.getBoolean("watch", false));
+        gb.setConstraints(watchCheckBox, gc);
+        pane.add(watchCheckBox);
+
         // button to start search
         startButton = new JButton(
             Bundle.getString("startSearchLabel"));
@@ -356,14 +390,53 @@ public class MainWindow extends JFrame
     } // displayHelp
 
     /**
-     * Invoked when a searcher has found a matching file.
+     * Invoked when a searcher has found matching files. The files are
+     * set aside, to be added to the result list by the flush timer on
+     * the event dispatch thread.
      *
-     * @param  event  indicates what file was found
+     * @param  events  indicate what files were found
      */
-    public void fileFound(FileFoundEvent event) {
+    public void filesFound(List<FileFoundEvent> events) {
+        synchronized (pendingFiles) {
+            for (FileFoundEvent event : events) {
+                pendingFiles.add(event.getFile());
+            }
+        }
+    } // filesFound
+
+    /**
+     * Invoked when a file found earlier no longer matches.
+     *
+     * @param  event  indicates what file no longer matches
+     */
+    public void fileRemoved(final FileFoundEvent event) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                // Add what was found before, so the removal follows.
+                flushResults();
+                ResultsListModel model =
+                    (ResultsListModel) resultList.getModel();
+                model.removeElement(event.getFile());
+            }
+        });
+    } // fileRemoved
+
+    /**
+     * Adds the files found since the last flush to the result list,
+     * all at once. Must be called on the event dispatch thread.
+     */
+    protected void flushResults() {
+        List<String> files;
+        synchronized (pendingFiles) {
+            if (pendingFiles.isEmpty()) {
+                return;
+            }
+            files = new ArrayList<String>(pendingFiles);
+            pendingFiles.clear();
+        }
         ResultsListModel model = (ResultsListModel) resultList.getModel();
-        model.addElement(event.getFile());
-    } // fileFound
+        model.addElements(files);
+    } // flushResults
 
     /**
      * Handle the browse button.
@@ -402,15 +475,25 @@ public class MainWindow extends JFrame
         preferences.put("searchFor", searchForField.getText());
         preferences.put("exclude", excludeField.getText());
         preferences.putBoolean("recurse", includeSubCheckBox.isSelected());
+        preferences.putBoolean("gitignore", ignoreFilesCheckBox.isSelected());
+        preferences.putBoolean("watch", watchCheckBox.isSelected());
         System.exit(0);
     } // handleClose
 
     /**
-     * Invoked when the search is complete. We use this to
-     * disable the stop button.
+     * Invoked when the search is complete. We use this to show the
+     * last of the results and disable the stop button.
+     *
+     * @param  stats  statistics of the completed search.
      */
-    public void searchComplete() {
-        stopButton.setEnabled(false);
+    public void searchComplete(SearchStats stats) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                flushTimer.stop();
+                flushResults();
+                stopButton.setEnabled(false);
+            }
+        });
     } // searchComplete
 
     /**
@@ -418,7 +501,15 @@ public class MainWindow extends JFrame
      *
      * @param  t  throwable indicating cause of failure.
      */
-    public void searchFailed(Throwable t) {
+    public void searchFailed(final Throwable t) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    searchFailed(t);
+                }
+            });
+            return;
+        }
         Object[] messages = {
             Bundle.getString("exceptionOccurred"),
             t.getMessage()
@@ -436,6 +527,9 @@ public class MainWindow extends JFrame
         cardLayout.show(cardPanel, "list");
 
         // clear result list
+        synchronized (pendingFiles) {
+            pendingFiles.clear();
+        }
         ResultsListModel model = (ResultsListModel) resultList.getModel();
         model.clear();
         // get top-level directory
@@ -477,13 +571,19 @@ public class MainWindow extends JFrame
         // create runner if not already created
         if (runner == null) {
             runner = new RunSearch(this);
+            // Search with a thread for each processor.
+            runner.setParallelism(
+                Runtime.getRuntime().availableProcessors());
         }
         // set up parameters for search
         runner.search(dir, target, filter, includeSubCheckBox.isSelected(),
                       exclude);
+        runner.setIgnoreFiles(ignoreFilesCheckBox.isSelected());
+        runner.setWatch(watchCheckBox.isSelected());
         // create second thread to run search and start it
         Thread th = new Thread(runner);
         th.start();
+        flushTimer.start();
         // enable the stop button
         stopButton.setEnabled(true);
     } // startSearch
@@ -0,0 +1,88 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+/**
+ * The location of one match within a file: the line on which it
+ * starts, and its offset and length in bytes. Instances are immutable.
+ *
+ * @author  Nathan Fiedler
+ */
+class MatchLocation {
+    /** Line number on which the match starts, counting from one. */
+    private final long line;
+    /** Offset of the match from the start of the file, in bytes. */
+    private final long offset;
+    /** Length of the match in bytes. */
+    private final int length;
+
+    /**
+     * Constructs a MatchLocation.
+     *
+     * @param  line    line number, counting from one.
+     * @param  offset  byte offset of the match.
+     * @param  length  length of the match in bytes.
+     */
+    public MatchLocation(long line, long offset, int length) {
+        this.line = line;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Returns the number of the line on which the match starts,
+     * counting lines from one.
+     *
+     * @return  line number.
+     */
+    public long getLine() {
+        return line;
+    }
+
+    /**
+     * Returns the length of the match.
+     *
+     * @return  length in bytes.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the offset of the match from the start of the file.
+     *
+     * @return  offset in bytes.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns a string of the form line:offset:length.
+     *
+     * @return  string representation of this location.
+     */
+    public String toString() {
+        return line + ":" + offset + ":" + length;
+    }
+}
@@ -0,0 +1,257 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+
+package com.bluemarsh.jrgrep;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A filename filter, given as a regular expression that must be found
+ * in the path of a file relative to the directory being searched. The
+ * most common filters, those that accept every file, those that look
+ * for a plain suffix such as <code>\.java$</code> or one of several
+ * such as <code>\.(java|xml)$</code>, and those that look for plain
+ * text anywhere in the path, are recognized when the filter is
+ * compiled and checked without the regular expression engine.
+ * Instances are immutable and may be shared between threads; the
+ * matcher for other filters is supplied by the caller.
+ *
+ * @author  Nathan Fiedler
+ */
+class NameFilter {
+    /** Every path is accepted. */
+    private static final int ALL = 0;
+    /** Paths ending with one of the suffixes are accepted. */
+    private static final int SUFFIX = 1;
+    /** Paths containing the text are accepted. */
+    private static final int CONTAINS = 2;
+    /** Paths in which the pattern is found are accepted. */
+    private static final int REGEX = 3;
+    /** Characters with special meaning in a regular expression. */
+    private static final String META = "\\^$.|?*+()[]{}";
+    /** The filter pattern. */
+    private final Pattern pattern;
+    /** One of ALL, SUFFIX, CONTAINS, or REGEX. */
+    private final int kind;
+    /** Suffixes to look for, or the text, if not a regex filter. */
+    private final String[] texts;
+
+    /**
+     * Constructs a NameFilter for the given regular expression.
+     *
+     * @param  filter  filename filter pattern.
+     * @exception  java.util.regex.PatternSyntaxException
+     *             if the pattern is invalid.
+     */
+    public NameFilter(String filter) {
+        pattern = Pattern.compile(filter);
+        String[] suffixes = null;
+        String text = null;
+        if (filter.endsWith("$") && !filter.endsWith("\\$")) {
+            suffixes = parseSuffixes(filter.substring(0,
+                filter.length() - 1));
+        } else {
+            text = parseLiteral(filter);
+        }
+        if (text != null && text.length() == 0) {
+            kind = ALL;
+            texts = null;
+        } else if (text != null) {
+            kind = CONTAINS;
+            texts = new String[] { text };
+        } else if (suffixes != null) {
+            kind = SUFFIX;
+            texts = suffixes;
+        } else {
+            kind = REGEX;
+            texts = null;
+        }
+    }
+
+    /**
+     * Returns the filter pattern.
+     *
+     * @return  compiled pattern.
+     */
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Indicates if the filter needs a matcher, that is, it is not one
+     * of the filters checked directly.
+     *
+     * @return  true if accept() requires a matcher.
+     */
+    public boolean needsMatcher() {
+        return kind == REGEX;
+    }
+
+    /**
+     * Determines if the given path is accepted by the filter.
+     *
+     * @param  path     path of the file, relative to the directory
+     *                  being searched.
+     * @param  matcher  matcher for the filter pattern, used only if
+     *                  needsMatcher() is true.
+     * @return  true if the file should be searched.
+     */
+    public boolean accept(CharSequence path, Matcher matcher) {
+        switch (kind) {
+        case ALL:
+            return true;
+        case SUFFIX:
+            for (int ii = 0; ii < texts.length; ii++) {
+                if (endsWith(path, texts[ii])) {
+                    return true;
+                }
+            }
+            return false;
+        case CONTAINS:
+            return indexOf(path, texts[0]) >= 0;
+        default:
+            return matcher.reset(path).find();
+        }
+    }
+
+    /**
+     * Determines if the sequence ends with the given text.
+     *
+     * @param  cs    sequence to examine.
+     * @param  text  text to look for.
+     * @return  true if the sequence ends with the text.
+     */
+    private static boolean endsWith(CharSequence cs, String text) {
+        int offset = cs.length() - text.length();
+        if (offset < 0) {
+            return false;
+        }
+        for (int ii = text.length() - 1; ii >= 0; ii--) {
+            if (cs.charAt(offset + ii) != text.charAt(ii)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the text within the sequence.
+     *
+     * @param  cs    sequence to search.
+     * @param  text  text to look for (not empty).
+     * @return  index of the text, or -1 if not found.
+     */
+    private static int indexOf(CharSequence cs, String text) {
+        int last = cs.length() - text.length();
+        char first = text.charAt(0);
+        for (int ii = 0; ii <= last; ii++) {
+            if (cs.charAt(ii) == first) {
+                int jj = 1;
+                while (jj < text.length()
+                       && cs.charAt(ii + jj) == text.charAt(jj)) {
+                    jj++;
+                }
+                if (jj == text.length()) {
+                    return ii;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a pattern of plain text, optionally followed by a group
+     * of plain alternatives, as in <code>\.(java|xml)</code>.
+     *
+     * @param  regex  pattern to parse, without the trailing '$'.
+     * @return  the texts the pattern matches, or null if the pattern
+     *          is not of this form.
+     */
+    private static String[] parseSuffixes(String regex) {
+        int open = regex.indexOf('(');
+        if (open < 0) {
+            String text = parseLiteral(regex);
+            return text == null || text.length() == 0 ? null
+                : new String[] { text };
+        }
+        if (!regex.endsWith(")") || (open > 0
+                && regex.charAt(open - 1) == '\\')) {
+            return null;
+        }
+        String prefix = parseLiteral(regex.substring(0, open));
+        String group = regex.substring(open + 1, regex.length() - 1);
+        if (group.startsWith("?:")) {
+            group = group.substring(2);
+        }
+        if (prefix == null) {
+            return null;
+        }
+        List<String> texts = new ArrayList<String>();
+        int start = 0;
+        for (int ii = 0; ii <= group.length(); ii++) {
+            if (ii == group.length() || (group.charAt(ii) == '|'
+                    && group.charAt(ii - 1) != '\\')) {
+                String text = parseLiteral(group.substring(start, ii));
+                if (text == null || prefix.length() + text.length() == 0) {
+                    return null;
+                }
+                texts.add(prefix + text);
+                start = ii + 1;
+            }
+        }
+        return texts.toArray(new String[texts.size()]);
+    }
+
+    /**
+     * Parses a pattern consisting only of plain characters and escaped
+     * punctuation.
+     *
+     * @param  regex  pattern to parse.
+     * @return  the text the pattern matches, or null if the pattern is
+     *          not plain text.
+     */
+    private static String parseLiteral(String regex) {
+        StringBuilder sb = new StringBuilder(regex.length());
+        for (int ii = 0; ii < regex.length(); ii++) {
+            char ch = regex.charAt(ii);
+            if (ch == '\\') {
+                ii++;
+                if (ii == regex.length()) {
+                    return null;
+                }
+                ch = regex.charAt(ii);
+                if (Character.isLetterOrDigit(ch)) {
+                    // A character class or other construct.
+                    return null;
+                }
+            } else if (META.indexOf(ch) >= 0) {
+                return null;
+            }
+            sb.append(ch);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,484 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.util.regex.Pattern;
+
+/**
+ * Examines the source of a regular expression to find the literal
+ * text that every match must contain. The analysis is conservative:
+ * constructs that are not understood simply end the analysis, such
+ * that any literal found is always truly required.
+ *
+ * @author  Nathan Fiedler
+ */
+class PatternAnalyzer {
+    /** Shortest literal worth searching for ahead of the regex. */
+    private static final int MIN_LITERAL = 2;
+    /** Source of the regular expression. */
+    private String regex;
+    /** Flags with which the pattern was compiled. */
+    private int flags;
+    /** Position of the parser within the regex. */
+    private int pos;
+    /** Literal characters in the run currently being collected. */
+    private StringBuilder run;
+    /** Longest required literal found so far. */
+    private String longest;
+    /** True if the entire pattern is a plain literal. */
+    private boolean literal;
+
+    /**
+     * Constructs a PatternAnalyzer for the given pattern, analyzing
+     * it immediately.
+     *
+     * @param  pattern  pattern to analyze.
+     */
+    public PatternAnalyzer(Pattern pattern) {
+        regex = pattern.pattern();
+        flags = pattern.flags();
+        if ((flags & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS
+                      | Pattern.CANON_EQ)) != 0) {
+            // The pattern text does not correspond to the input text.
+            return;
+        }
+        if ((flags & Pattern.LITERAL) != 0) {
+            longest = regex;
+            literal = true;
+            return;
+        }
+        run = new StringBuilder();
+        literal = true;
+        if (!analyze()) {
+            // Alternation at the top level; nothing is required.
+            longest = null;
+            literal = false;
+        } else {
+            endRun();
+        }
+        run = null;
+    }
+
+    /**
+     * Returns the longest literal that must appear in the input for
+     * the pattern to match.
+     *
+     * @return  required literal, or null if none was found.
+     */
+    public String getRequiredLiteral() {
+        if (longest == null || longest.length() < MIN_LITERAL) {
+            return null;
+        }
+        return longest;
+    }
+
+    /**
+     * Indicates if the pattern matches nothing but a plain literal
+     * string, which is then the required literal.
+     *
+     * @return  true if pattern is a plain literal.
+     */
+    public boolean isLiteral() {
+        return literal && getRequiredLiteral() != null;
+    }
+
+    /**
+     * Indicates if the pattern, when compiled in MULTILINE mode and
+     * matched against an entire buffer, finds a match in every line
+     * in which it would find a match if run against that line alone.
+     * This is not so for patterns that use input boundaries or
+     * lookaround, or that match a line terminator before a '$'. As
+     * with the literal analysis, this errs on the side of caution.
+     *
+     * @return  true if whole-buffer matching is safe.
+     */
+    public boolean isLineSafe() {
+        if ((flags & (Pattern.UNIX_LINES | Pattern.MULTILINE
+                      | Pattern.COMMENTS | Pattern.DOTALL)) != 0) {
+            return false;
+        }
+        boolean dollar = false;
+        boolean terminator = false;
+        int n = regex.length();
+        for (int ii = 0; ii < n; ii++) {
+            char c = regex.charAt(ii);
+            if (c == '\\' && ii + 1 < n) {
+                ii++;
+                char e = regex.charAt(ii);
+                if ("AzZGB".indexOf(e) >= 0) {
+                    // Input boundaries differ between line and buffer.
+                    return false;
+                }
+                if ("nrsSDWHvRxu0cpPN".indexOf(e) >= 0) {
+                    // May match a line terminator.
+                    terminator = true;
+                }
+            } else if (c == '(' && ii + 2 < n && regex.charAt(ii + 1) == '?') {
+                char g = regex.charAt(ii + 2);
+                if (g == '=' || g == '!' || g == '<') {
+                    // Lookaround may see the adjoining lines.
+                    return false;
+                }
+                for (int jj = ii + 2; jj < n
+                         && "idmsuxU-".indexOf(regex.charAt(jj)) >= 0; jj++) {
+                    char f = regex.charAt(jj);
+                    if (f == 'd' || f == 'm' || f == 'x') {
+                        return false;
+                    } else if (f == 's') {
+                        terminator = true;
+                    }
+                }
+            } else if (c == '[' && ii + 1 < n && regex.charAt(ii + 1) == '^') {
+                terminator = true;
+            } else if (c == '$') {
+                dollar = true;
+            }
+        }
+        return !(dollar && terminator);
+    }
+
+    /**
+     * Parses the top level of the regex, collecting runs of literal
+     * characters.
+     *
+     * @return  false if the top level contains an alternation.
+     */
+    private boolean analyze() {
+        int n = regex.length();
+        while (pos < n) {
+            char c = regex.charAt(pos);
+            switch (c) {
+            case '|':
+                return false;
+            case '\\':
+                if (!escape()) {
+                    return !alternationFollows(pos);
+                }
+                break;
+            case '[':
+                breakRun();
+                skipClass();
+                skipQuantifier();
+                break;
+            case '(':
+                breakRun();
+                if (!skipGroup()) {
+                    // Flags that change the meaning of what follows.
+                    return !alternationFollows(pos);
+                }
+                skipQuantifier();
+                break;
+            case '.':
+            case '^':
+            case '$':
+                breakRun();
+                pos++;
+                skipQuantifier();
+                break;
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                // Quantifier without an atom; leave it to the regex.
+                breakRun();
+                skipQuantifier();
+                break;
+            default:
+                pos++;
+                atom(c);
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scans the rest of the regex, from where the analysis stopped,
+     * for an alternation at the top level. Without one, the literal
+     * text found so far is still required.
+     *
+     * @param  from  position at which to start scanning.
+     * @return  true if there may be a top-level alternation.
+     */
+    private boolean alternationFollows(int from) {
+        int n = regex.length();
+        int depth = 0;
+        int ii = from;
+        while (ii < n) {
+            char c = regex.charAt(ii);
+            if (c == '\\') {
+                if (ii + 1 < n && regex.charAt(ii + 1) == 'Q') {
+                    int end = regex.indexOf("\\E", ii + 2);
+                    if (end < 0) {
+                        // Quoted to the end of the regex.
+                        return false;
+                    }
+                    ii = end;
+                }
+                ii += 2;
+                continue;
+            } else if (c == '[') {
+                ii = classEnd(ii);
+                if (ii < 0) {
+                    // Unterminated class; be safe.
+                    return true;
+                }
+                continue;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                if (depth < 0) {
+                    // Unbalanced; be safe.
+                    return true;
+                }
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+            ii++;
+        }
+        return false;
+    }
+
+    /**
+     * Adds a literal character to the current run, taking into
+     * account any quantifier that follows it.
+     *
+     * @param  c  literal character.
+     */
+    private void atom(char c) {
+        if (pos < regex.length()) {
+            char q = regex.charAt(pos);
+            if (q == '?' || q == '*' || q == '{') {
+                // The character may not appear at all.
+                breakRun();
+                skipQuantifier();
+                return;
+            } else if (q == '+') {
+                // The character appears, perhaps followed by more.
+                run.append(c);
+                breakRun();
+                skipQuantifier();
+                return;
+            }
+        }
+        run.append(c);
+    }
+
+    /**
+     * Ends the current run of literal characters, noting that the
+     * pattern is not a plain literal.
+     */
+    private void breakRun() {
+        literal = false;
+        endRun();
+    }
+
+    /**
+     * Ends the current run of literal characters, remembering it if
+     * it is the longest seen so far.
+     */
+    private void endRun() {
+        if (longest == null || run.length() > longest.length()) {
+            longest = run.toString();
+        }
+        run.setLength(0);
+    }
+
+    /**
+     * Parses the escape sequence at the current position.
+     *
+     * @return  false if parsing can go no further.
+     */
+    private boolean escape() {
+        int n = regex.length();
+        if (pos + 1 >= n) {
+            breakRun();
+            return false;
+        }
+        char c = regex.charAt(pos + 1);
+        pos += 2;
+        if (c == 'Q') {
+            // Quoted text, up to \E or the end of the regex.
+            int end = regex.indexOf("\\E", pos);
+            if (end < 0) {
+                end = n;
+            }
+            if (end > pos) {
+                run.append(regex, pos, end - 1);
+                char last = regex.charAt(end - 1);
+                pos = Math.min(end + 2, n);
+                atom(last);
+            } else {
+                pos = Math.min(end + 2, n);
+            }
+            return true;
+        }
+        switch (c) {
+        case 't':
+            atom('\t');
+            return true;
+        case 'n':
+            atom('\n');
+            return true;
+        case 'r':
+            atom('\r');
+            return true;
+        case 'f':
+            atom('\f');
+            return true;
+        case 'a':
+            atom('\u0007');
+            return true;
+        case 'e':
+            atom('\u001b');
+            return true;
+        default:
+            break;
+        }
+        if (Character.isLetterOrDigit(c)) {
+            breakRun();
+            if ("dDsSwWbBAzZGhHvVRX".indexOf(c) >= 0) {
+                // Character class or boundary of fixed length.
+                skipQuantifier();
+                return true;
+            }
+            // Numeric, named or property escapes are not parsed.
+            return false;
+        }
+        // Escaped metacharacter stands for itself.
+        atom(c);
+        return true;
+    }
+
+    /**
+     * Skips over the character class at the current position.
+     */
+    private void skipClass() {
+        int end = classEnd(pos);
+        pos = end < 0 ? regex.length() : end;
+    }
+
+    /**
+     * Finds the end of the character class that starts at the given
+     * position.
+     *
+     * @param  start  position of the opening bracket.
+     * @return  position just past the class, or -1 if the class is
+     *          not closed.
+     */
+    private int classEnd(int start) {
+        int n = regex.length();
+        int depth = 0;
+        int ii = start + 1;
+        if (ii < n && regex.charAt(ii) == '^') {
+            ii++;
+        }
+        if (ii < n && regex.charAt(ii) == ']') {
+            // A leading bracket is a literal.
+            ii++;
+        }
+        while (ii < n) {
+            char c = regex.charAt(ii);
+            if (c == '\\') {
+                ii++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                if (depth == 0) {
+                    return ii + 1;
+                }
+                depth--;
+            }
+            ii++;
+        }
+        return -1;
+    }
+
+    /**
+     * Skips over the group at the current position. Inline flags that
+     * alter the meaning of the text that follows stop the analysis.
+     *
+     * @return  false if parsing can go no further.
+     */
+    private boolean skipGroup() {
+        int n = regex.length();
+        if (pos + 1 < n && regex.charAt(pos + 1) == '?') {
+            // Flags in a group of their own last until the end of the
+            // enclosing group, which here is the entire pattern.
+            boolean folding = false;
+            int ii = pos + 2;
+            while (ii < n && "idmsuxU-".indexOf(regex.charAt(ii)) >= 0) {
+                char c = regex.charAt(ii);
+                folding |= c == 'i' || c == 'x';
+                ii++;
+            }
+            if (folding && ii < n && regex.charAt(ii) == ')') {
+                return false;
+            }
+        }
+        int depth = 0;
+        while (pos < n) {
+            char c = regex.charAt(pos);
+            if (c == '\\') {
+                pos++;
+            } else if (c == '[') {
+                skipClass();
+                continue;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                if (depth == 0) {
+                    pos++;
+                    return true;
+                }
+            }
+            pos++;
+        }
+        return true;
+    }
+
+    /**
+     * Skips over the quantifier at the current position, if any,
+     * including the lazy or possessive suffix.
+     */
+    private void skipQuantifier() {
+        int n = regex.length();
+        if (pos >= n) {
+            return;
+        }
+        char c = regex.charAt(pos);
+        if (c == '?' || c == '*' || c == '+') {
+            pos++;
+        } else if (c == '{') {
+            int end = regex.indexOf('}', pos);
+            pos = end < 0 ? n : end + 1;
+        } else {
+            return;
+        }
+        if (pos < n && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) {
+            pos++;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A list of regular expressions to be searched for at once. The
+ * expressions are combined into a single pattern that matches
+ * wherever any of them matches, so that each file is searched in one
+ * pass however many expressions there are. Numbered back references
+ * are renumbered to suit the combined pattern. Expressions in
+ * single-line (?s) mode are matched against whole files, and the
+ * others against each line, so the two kinds are combined apart; if
+ * there are both, the (?s) expressions are searched for in a second
+ * pass. Instances are immutable.
+ *
+ * @author  Nathan Fiedler
+ */
+class PatternSet {
+    /** Source of each expression, in the order given. */
+    private final List<String> sources;
+    /** Each expression, compiled on its own. */
+    private final Pattern[] patterns;
+    /** Pattern matching wherever any of the expressions in line mode
+     * matches, or if there are none, any of those in (?s) mode. */
+    private final Pattern combined;
+    /** Pattern matching wherever any of the (?s) expressions matches,
+     * if there are also expressions in line mode; otherwise null. */
+    private final Pattern singleLine;
+
+    /**
+     * Constructs a PatternSet for the given expressions.
+     *
+     * @param  sources  regular expressions (at least one).
+     * @exception  java.util.regex.PatternSyntaxException
+     *             if any expression is invalid, or if they cannot be
+     *             combined, as when two define the same named group.
+     */
+    public PatternSet(List<String> sources) {
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("no patterns");
+        }
+        this.sources = Collections.unmodifiableList(
+            new ArrayList<String>(sources));
+        patterns = new Pattern[sources.size()];
+        List<Integer> lines = new ArrayList<Integer>();
+        List<Integer> dotall = new ArrayList<Integer>();
+        for (int ii = 0; ii < patterns.length; ii++) {
+            patterns[ii] = Pattern.compile(sources.get(ii));
+            if ((patterns[ii].flags() & Pattern.DOTALL) != 0) {
+                dotall.add(ii);
+            } else {
+                lines.add(ii);
+            }
+        }
+        if (lines.isEmpty()) {
+            combined = combine(dotall, Pattern.DOTALL);
+            singleLine = null;
+        } else {
+            combined = combine(lines, 0);
+            singleLine = dotall.isEmpty() ? null : combine(dotall,
+                                                           Pattern.DOTALL);
+        }
+    }
+
+    /**
+     * Combines the given expressions into one pattern. The numbered
+     * back references of each are renumbered to follow the groups of
+     * the expressions before it.
+     *
+     * @param  indices  indices of the expressions to combine.
+     * @param  flags    flags with which to compile the pattern.
+     * @return  combined pattern, or the expression itself if there
+     *          is only one.
+     */
+    private Pattern combine(List<Integer> indices, int flags) {
+        if (indices.size() == 1) {
+            return patterns[indices.get(0)];
+        }
+        StringBuilder sb = new StringBuilder();
+        int groups = 0;
+        for (int ii : indices) {
+            if (sb.length() > 0) {
+                sb.append('|');
+            }
+            sb.append("(?:");
+            renumber(sources.get(ii), groups, sb);
+            if ((patterns[ii].flags() & Pattern.COMMENTS) != 0) {
+                // End any trailing comment, which would otherwise
+                // run on over the closing parenthesis.
+                sb.append('\n');
+            }
+            sb.append(')');
+            groups += patterns[ii].matcher("").groupCount();
+        }
+        return Pattern.compile(sb.toString(), flags);
+    }
+
+    /**
+     * Returns the pattern that matches wherever any of the
+     * expressions matches, other than those matched by
+     * getSingleLinePattern(). For a single expression, this is simply
+     * that expression.
+     *
+     * @return  combined pattern.
+     */
+    public Pattern getPattern() {
+        return combined;
+    }
+
+    /**
+     * Returns the pattern that matches wherever any of the (?s)
+     * expressions matches, if these must be searched for apart from
+     * the expressions in line mode, which getPattern() matches.
+     *
+     * @return  combined (?s) pattern, or null if getPattern() matches
+     *          every expression.
+     */
+    public Pattern getSingleLinePattern() {
+        return singleLine;
+    }
+
+    /**
+     * Indicates if the expression is one of those matched by
+     * getSingleLinePattern() rather than getPattern().
+     *
+     * @param  index  index of the expression.
+     * @return  true if the expression is searched for apart.
+     */
+    public boolean isSingleLine(int index) {
+        return singleLine != null
+            && (patterns[index].flags() & Pattern.DOTALL) != 0;
+    }
+
+    /**
+     * Returns one of the expressions, compiled on its own.
+     *
+     * @param  index  index of the expression.
+     * @return  compiled expression.
+     */
+    public Pattern getPattern(int index) {
+        return patterns[index];
+    }
+
+    /**
+     * Returns the expressions, in the order given.
+     *
+     * @return  unmodifiable list of the expression sources.
+     */
+    public List<String> getSources() {
+        return sources;
+    }
+
+    /**
+     * Returns the number of expressions.
+     *
+     * @return  expression count.
+     */
+    public int size() {
+        return patterns.length;
+    }
+
+    /**
+     * Appends the expression to the buffer, adding the given offset
+     * to the number of each back reference, as the expression's groups
+     * come after those of the expressions before it. References are
+     * read as the regex engine reads them, taking further digits only
+     * while they name an existing group.
+     *
+     * @param  regex   expression source.
+     * @param  offset  number of groups in the preceding expressions.
+     * @param  sb      receives the renumbered expression.
+     */
+    private static void renumber(String regex, int offset, StringBuilder sb) {
+        int groups = Pattern.compile(regex).matcher("").groupCount();
+        int n = regex.length();
+        int depth = 0;
+        int ii = 0;
+        while (ii < n) {
+            char c = regex.charAt(ii);
+            if (c == '\\' && ii + 1 < n) {
+                char e = regex.charAt(ii + 1);
+                if (e == 'Q') {
+                    // Quoted text runs to \E or the end.
+                    int end = regex.indexOf("\\E", ii + 2);
+                    end = end < 0 ? n : end + 2;
+                    sb.append(regex, ii, end);
+                    ii = end;
+                } else if (depth == 0 && e >= '1' && e <= '9'
+                           && offset > 0) {
+                    int ref = e - '0';
+                    ii += 2;
+                    while (ii < n && Character.isDigit(regex.charAt(ii))
+                           && ref * 10 + regex.charAt(ii) - '0' <= groups) {
+                        ref = ref * 10 + regex.charAt(ii) - '0';
+                        ii++;
+                    }
+                    if (ref > groups) {
+                        // A reference to a group that does not exist
+                        // never matches; keep it that way.
+                        sb.append("(?!)");
+                    } else {
+                        // Grouped, so that no digit that follows is read
+                        // as part of the new number.
+                        sb.append("(?:\\").append(ref + offset)
+                            .append(')');
+                    }
+                } else {
+                    sb.append(c).append(e);
+                    ii += 2;
+                }
+            } else {
+                if (c == '[') {
+                    depth++;
+                } else if (c == ']' && depth > 0) {
+                    depth--;
+                }
+                sb.append(c);
+                ii++;
+            }
+        }
+    }
+}
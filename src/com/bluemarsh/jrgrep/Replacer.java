@@ -0,0 +1,453 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+
+package com.bluemarsh.jrgrep;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replaces the matches of a pattern in a file. The file is read
+ * through a series of mapped windows, in the same manner as it is
+ * searched, and only the lines containing a match are run through the
+ * replacement; the bytes in between are copied to the output as they
+ * are. For (?s) patterns, whose matches may span lines, the windows
+ * instead overlap by the maximum match span, as when searching. The
+ * output goes to a temporary file in the same directory,
+ * which is then moved over the original, so that a failure part way
+ * leaves the original as it was. Files without a match are never
+ * written. Instances are immutable and may be shared between threads.
+ *
+ * <p>As when searching, each byte of the file is one ISO-8859-1
+ * character, so the replacement text must be representable in that
+ * charset.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+class Replacer {
+    /** Matches a line, with its terminator. */
+    private static final Pattern LINE_PATTERN = Pattern.compile(".*\r?\n");
+    /** Finds the named groups declared in a pattern. */
+    private static final Pattern GROUP_NAME_PATTERN =
+        Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+    /** Pattern whose matches are replaced. */
+    private final Pattern target;
+    /** Replacement text, which may refer to groups of the match. */
+    private final String replacement;
+    /** True to count the replacements without changing any files. */
+    private final boolean dryRun;
+
+    /**
+     * Constructs a Replacer for the given pattern.
+     *
+     * @param  target       pattern whose matches are replaced.
+     * @param  replacement  replacement text, as for
+     *                      Matcher.appendReplacement().
+     * @param  dryRun       true to count the replacements without
+     *                      changing any files.
+     * @exception  IllegalArgumentException
+     *             if the replacement is not valid for the pattern.
+     */
+    public Replacer(Pattern target, String replacement, boolean dryRun) {
+        validate(target, replacement);
+        this.target = target;
+        this.replacement = replacement;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Checks that the replacement refers only to groups the pattern
+     * has and contains only ISO-8859-1 characters, so that a mistake
+     * is reported before any file is changed.
+     *
+     * @param  target       pattern whose matches are replaced.
+     * @param  replacement  replacement text.
+     * @exception  IllegalArgumentException
+     *             if the replacement is not valid.
+     */
+    private static void validate(Pattern target, String replacement) {
+        int groups = target.matcher("").groupCount();
+        Set<String> names = new HashSet<String>();
+        Matcher nm = GROUP_NAME_PATTERN.matcher(target.pattern());
+        while (nm.find()) {
+            names.add(nm.group(1));
+        }
+        int length = replacement.length();
+        for (int ii = 0; ii < length; ii++) {
+            char ch = replacement.charAt(ii);
+            if (ch > 0xff) {
+                throw new IllegalArgumentException(
+                    "replacement not representable: " + replacement);
+            } else if (ch == '\\') {
+                ii++;
+                if (ii == length) {
+                    throw new IllegalArgumentException(
+                        "trailing backslash in replacement");
+                }
+            } else if (ch == '$') {
+                ii++;
+                if (ii == length) {
+                    throw new IllegalArgumentException(
+                        "missing group reference in replacement");
+                }
+                ch = replacement.charAt(ii);
+                if (ch == '{') {
+                    int close = replacement.indexOf('}', ii);
+                    if (close < 0 || !names.contains(
+                            replacement.substring(ii + 1, close))) {
+                        throw new IllegalArgumentException(
+                            "no such group in replacement: " + replacement);
+                    }
+                    ii = close;
+                } else if (ch < '0' || ch - '0' > groups) {
+                    throw new IllegalArgumentException(
+                        "no such group in replacement: " + replacement);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the matches in the given file, or only counts them if
+     * this is a dry run.
+     *
+     * @param  file    file in which to replace matches.
+     * @param  window  size of the windows through which to read the
+     *                 file.
+     * @param  span    longest (?s) match that is guaranteed to be
+     *                 replaced in full; the windows overlap by this
+     *                 amount, up to half the window size.
+     * @return  number of matches replaced.
+     * @exception  IOException
+     *             if reading or writing a file failed.
+     */
+    public int replace(File file, long window, int span)
+        throws IOException {
+        Output out = new Output(file);
+        boolean finished = false;
+        try {
+            int count = replace(out, window, span);
+            out.finish();
+            finished = true;
+            return count;
+        } finally {
+            if (!finished) {
+                out.abandon();
+            }
+        }
+    }
+
+    /**
+     * Replaces the matches in the file being written to the output.
+     *
+     * @param  out     output for the file.
+     * @param  window  size of the windows through which to read.
+     * @param  span    maximum match span for (?s) patterns.
+     * @return  number of matches replaced.
+     * @exception  IOException
+     *             if reading or writing a file failed.
+     */
+    private int replace(Output out, long window, int span)
+        throws IOException {
+        FileChannel fc = out.source;
+        long size = fc.size();
+        Matcher tm = target.matcher("");
+        if ((target.flags() & Pattern.DOTALL) != 0) {
+            return replaceWindows(out, 0, size, window, span, tm);
+        }
+
+        int count = 0;
+        Matcher lm = LINE_PATTERN.matcher("");
+        window = Math.min(Math.min(window, size), Integer.MAX_VALUE);
+        long pos = 0;
+        while (pos < size) {
+            boolean last = size - pos <= window;
+            int len = (int) Math.min(window, size - pos);
+            MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY,
+                                         pos, len);
+            // End even the last window after its last line terminator,
+            // as an unterminated last line is never matched, and is
+            // copied along with the rest of the file.
+            int end = len;
+            while (end > 0 && bb.get(end - 1) != '\n') {
+                end--;
+            }
+            if (end > 0) {
+                CharSequence cs = new ByteCharSequence(bb, 0, end);
+                lm.reset(cs);
+                while (lm.find()) {
+                    count += replaceIn(cs.subSequence(lm.start(), lm.end()),
+                                       pos + lm.start(), tm, out);
+                }
+                pos += end;
+            } else if (last) {
+                break;
+            } else {
+                // A line longer than the window, replaced in parts
+                // that overlap just as it is searched in parts.
+                long lineEnd = Searcher.lineEnd(fc, pos + len, size,
+                                                (int) window);
+                if (lineEnd < 0) {
+                    break;
+                }
+                count += replaceWindows(out, pos, lineEnd, window, span,
+                                        tm);
+                pos = lineEnd;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Replaces the matches within a range of the file, either the
+     * whole of it for a (?s) pattern, whose matches may span lines, or
+     * a line longer than the window. The range is read through windows
+     * that overlap by the maximum match span, as in
+     * Searcher.searchWindows(). A match that starts in the overlap at
+     * the end of a window is left to the next window, which starts at
+     * the overlap or after the last match replaced, whichever is
+     * later.
+     *
+     * @param  out     output for the file.
+     * @param  start   offset at which the range starts.
+     * @param  stop    offset at which the range ends (exclusive).
+     * @param  window  size of the windows through which to read.
+     * @param  span    maximum match span.
+     * @param  tm      target matcher.
+     * @return  number of matches replaced.
+     * @exception  IOException
+     *             if reading or writing a file failed.
+     */
+    private int replaceWindows(Output out, long start, long stop,
+                               long window, int span, Matcher tm)
+        throws IOException {
+        FileChannel fc = out.source;
+        // Leave room for the byte mapped either side of the window.
+        window = Math.min(Math.min(window, stop - start),
+                          Integer.MAX_VALUE - 2);
+        int overlap = (int) Math.min(span, window / 2);
+        int count = 0;
+        long pos = start;
+        while (true) {
+            boolean last = stop - pos <= window;
+            int len = (int) Math.min(window, stop - pos);
+            // Map a byte either side of the window so that anchors
+            // and lookaround see the adjoining text of the range.
+            long mapStart = pos == start ? start : pos - 1;
+            long mapEnd = last ? stop : pos + len + 1;
+            MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY,
+                                         mapStart, mapEnd - mapStart);
+            int from = (int) (pos - mapStart);
+            int commit = from + len - (last ? 0 : overlap);
+            CharSequence cs = new ByteCharSequence(bb, 0, bb.limit());
+            tm.reset(cs);
+            tm.useAnchoringBounds(false);
+            tm.useTransparentBounds(true);
+            tm.region(from, from + len);
+            // The appended text starts at the start of the mapping.
+            StringBuffer sb = new StringBuffer();
+            int before = count;
+            int tail = from;
+            while (tm.find() && (last || tm.start() < commit)) {
+                tm.appendReplacement(sb, replacement);
+                tail = tm.end();
+                count++;
+            }
+            int end = Math.max(commit, tail);
+            if (count > before && !dryRun) {
+                sb.append(cs, tail, end);
+                out.write(pos, mapStart + end,
+                          sb.subSequence(from, sb.length()));
+            }
+            if (last) {
+                break;
+            }
+            pos = mapStart + end;
+        }
+        return count;
+    }
+
+    /**
+     * Replaces the matches in one line (or other part) of the file.
+     *
+     * @param  cs      text of the part.
+     * @param  start   offset of the part within the file.
+     * @param  tm      target matcher.
+     * @param  out     output for the file.
+     * @return  number of matches replaced.
+     * @exception  IOException
+     *             if writing the output failed.
+     */
+    private int replaceIn(CharSequence cs, long start, Matcher tm,
+                          Output out) throws IOException {
+        tm.reset(cs);
+        if (!tm.find()) {
+            return 0;
+        }
+        int count = 0;
+        StringBuffer sb = new StringBuffer();
+        do {
+            tm.appendReplacement(sb, replacement);
+            count++;
+        } while (tm.find());
+        if (!dryRun) {
+            tm.appendTail(sb);
+            out.write(start, start + cs.length(), sb);
+        }
+        return count;
+    }
+
+    /**
+     * The output of the replacement in one file, holding the file being
+     * read and, once the first match is replaced, the temporary file
+     * being written.
+     */
+    private class Output {
+        /** File in which matches are being replaced. */
+        final File file;
+        /** Channel from which the original file is read. */
+        final FileChannel source;
+        /** Stream over the original file. */
+        private final FileInputStream input;
+        /** Temporary file receiving the output, once created. */
+        private File temp;
+        /** Stream writing the temporary file, once created. */
+        private FileOutputStream output;
+        /** Offset in the original file up to which the output has
+         * been written. */
+        private long copied;
+
+        /**
+         * Constructs an Output for the given file.
+         *
+         * @param  file  file in which to replace matches.
+         * @exception  IOException
+         *             if the file could not be opened.
+         */
+        Output(File file) throws IOException {
+            this.file = file;
+            input = new FileInputStream(file);
+            source = input.getChannel();
+        }
+
+        /**
+         * Writes a replaced part of the file, preceded by the
+         * unchanged bytes since the previous part.
+         *
+         * @param  start  offset of the part in the original file.
+         * @param  end    offset just past the part in the original.
+         * @param  text   replaced text of the part.
+         * @exception  IOException
+         *             if writing the output failed.
+         */
+        void write(long start, long end, CharSequence text)
+            throws IOException {
+            if (output == null) {
+                File dir = file.getAbsoluteFile().getParentFile();
+                temp = File.createTempFile(".jrgrep", ".tmp", dir);
+                output = new FileOutputStream(temp);
+            }
+            copy(start);
+            ByteBuffer bytes = ByteBuffer.allocate(text.length());
+            for (int ii = 0; ii < text.length(); ii++) {
+                bytes.put((byte) text.charAt(ii));
+            }
+            bytes.flip();
+            FileChannel oc = output.getChannel();
+            while (bytes.hasRemaining()) {
+                oc.write(bytes);
+            }
+            copied = end;
+        }
+
+        /**
+         * Copies the unchanged bytes of the original file to the
+         * output, up to the given offset.
+         *
+         * @param  end  offset at which to stop copying.
+         * @exception  IOException
+         *             if copying failed.
+         */
+        private void copy(long end) throws IOException {
+            FileChannel oc = output.getChannel();
+            while (copied < end) {
+                copied += source.transferTo(copied, end - copied, oc);
+            }
+        }
+
+        /**
+         * Completes the output, moving the temporary file over the
+         * original if any match was replaced.
+         *
+         * @exception  IOException
+         *             if completing the output failed.
+         */
+        void finish() throws IOException {
+            if (output == null) {
+                input.close();
+                return;
+            }
+            copy(source.size());
+            output.close();
+            input.close();
+            try {
+                Files.setPosixFilePermissions(temp.toPath(),
+                    Files.getPosixFilePermissions(file.toPath()));
+            } catch (UnsupportedOperationException uoe) {
+                // Not a POSIX file system; keep the default permissions.
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Abandons the output after a failure, leaving the original
+         * file unchanged.
+         */
+        void abandon() {
+            try {
+                input.close();
+                if (output != null) {
+                    output.close();
+                }
+            } catch (IOException ioe) {
+                // Nothing more can be done.
+            }
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+}
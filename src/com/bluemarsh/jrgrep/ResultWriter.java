@@ -0,0 +1,167 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Writes lines of output to a channel through a large buffer, so that
+ * listing many files costs a system call per buffer rather than one
+ * per line. The buffer is written out when it fills, when flushed or
+ * closed, and every so often while output is waiting, so that results
+ * appear promptly even when they trickle in. The lines may be ended by
+ * any terminator, such as a NUL character. Lines may be written from
+ * several threads at once; each is written whole.
+ *
+ * <p>Once the channel fails to be written, as when the program reading
+ * the output has exited, further output is discarded, and checkError()
+ * returns true.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+class ResultWriter {
+    /** Size of the output buffer in bytes. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Channel to which output is written. */
+    private final WritableByteChannel channel;
+    /** Encodes characters for the channel. */
+    private final CharsetEncoder encoder;
+    /** Terminator written after each line. */
+    private final String terminator;
+    /** Output waiting to be written. */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /** Flushes the buffer periodically, if an interval was given. */
+    private Timer flusher;
+    /** True once writing to the channel has failed. */
+    private boolean error;
+
+    /**
+     * Constructs a ResultWriter for the given channel.
+     *
+     * @param  channel     channel to write to.
+     * @param  charset     charset in which to encode the output.
+     * @param  terminator  written after each line.
+     * @param  interval    milliseconds between flushes of waiting
+     *                     output, or zero to flush only when full.
+     */
+    ResultWriter(WritableByteChannel channel, Charset charset,
+                 String terminator, long interval) {
+        this.channel = channel;
+        this.terminator = terminator;
+        encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        if (interval > 0) {
+            flusher = new Timer("jrgrep-flush", true);
+            flusher.schedule(new TimerTask() {
+                public void run() {
+                    flush();
+                }
+            }, interval, interval);
+        }
+    }
+
+    /**
+     * Writes the given line, followed by the terminator.
+     *
+     * @param  line  line to write.
+     */
+    public synchronized void println(CharSequence line) {
+        encode(line);
+        encode(terminator);
+    }
+
+    /**
+     * Encodes the given text into the buffer, writing out the buffer
+     * whenever it fills.
+     *
+     * @param  text  text to encode.
+     */
+    private void encode(CharSequence text) {
+        CharBuffer in = CharBuffer.wrap(text);
+        while (true) {
+            CoderResult result = encoder.encode(in, buffer, true);
+            if (result.isOverflow()) {
+                drain();
+            } else {
+                break;
+            }
+        }
+        encoder.reset();
+    }
+
+    /**
+     * Writes out the contents of the buffer, discarding them if the
+     * channel cannot be written.
+     */
+    private void drain() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining() && !error) {
+                channel.write(buffer);
+            }
+        } catch (IOException ioe) {
+            error = true;
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writes out any output waiting in the buffer.
+     */
+    public synchronized void flush() {
+        if (buffer.position() > 0) {
+            drain();
+        }
+    }
+
+    /**
+     * Indicates whether writing to the channel has failed, in which
+     * case output is being discarded.
+     *
+     * @return  true if the output could not be written.
+     */
+    public synchronized boolean checkError() {
+        return error;
+    }
+
+    /**
+     * Writes out any waiting output and stops the periodic flushing.
+     * The channel itself is left open.
+     */
+    public void close() {
+        if (flusher != null) {
+            flusher.cancel();
+        }
+        flush();
+    }
+}
@@ -22,11 +22,15 @@
 
 package com.bluemarsh.jrgrep;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import javax.swing.AbstractListModel;
 
 /**
  * Class ResultsListModel implements a ListModel for the search resuls.
+ * Like all Swing models, it must only be used on the event dispatch
+ * thread.
  *
  * @author  Nathan Fiedler
  */
@@ -34,13 +38,13 @@ class ResultsListModel extends AbstractListModel {
     /** silence the compiler warnings */
     private static final long serialVersionUID = 1L;
     /** List data. */
-    private Vector listData;
+    private List<Object> listData;
 
     /**
      * Constructs a new ResultsListModel object.
      */
     public ResultsListModel() {
-        listData = new Vector();
+        listData = new ArrayList<Object>();
     }
 
     /**
@@ -50,7 +54,36 @@ class ResultsListModel extends AbstractListModel {
      */
     public void addElement(Object o) {
         listData.add(o);
-        fireIntervalAdded(this, listData.size(), listData.size());
+        int index = listData.size() - 1;
+        fireIntervalAdded(this, index, index);
+    }
+
+    /**
+     * Adds the given elements to the end of the list, notifying the
+     * list listeners once for all of them.
+     *
+     * @param  c  elements
+     */
+    public void addElements(Collection<?> c) {
+        if (c.isEmpty()) {
+            return;
+        }
+        int first = listData.size();
+        listData.addAll(c);
+        fireIntervalAdded(this, first, listData.size() - 1);
+    }
+
+    /**
+     * Removes the given element from the list, if present.
+     *
+     * @param  o  element
+     */
+    public void removeElement(Object o) {
+        int index = listData.indexOf(o);
+        if (index >= 0) {
+            listData.remove(index);
+            fireIntervalRemoved(this, index, index);
+        }
     }
 
     /**
@@ -58,8 +91,11 @@ class ResultsListModel extends AbstractListModel {
      */
     public void clear() {
         int size = listData.size();
+        if (size == 0) {
+            return;
+        }
         listData.clear();
-        fireIntervalRemoved(this, 0, size);
+        fireIntervalRemoved(this, 0, size - 1);
     }
 
     /**
@@ -69,8 +105,8 @@ class ResultsListModel extends AbstractListModel {
      */
     public Object getElementAt(int i) {
         try {
-            return listData.elementAt(i);
-        } catch (ArrayIndexOutOfBoundsException e) {
+            return listData.get(i);
+        } catch (IndexOutOfBoundsException e) {
             return null;
         }
     }
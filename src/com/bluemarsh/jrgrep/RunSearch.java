@@ -42,6 +42,12 @@ class RunSearch implements Runnable {
     private boolean subDirs;
     /** Directory exclude pattern. */
     private String exclude;
+    /** Number of threads to search with. */
+    private int parallelism = 1;
+    /** True to honor .gitignore and .ignore files. */
+    private boolean ignoreFiles;
+    /** True to watch for changes after the search. */
+    private boolean watch;
     /** Listener that receives FileFoundEvents. */
     private FileSearchListener listener;
     /** Searcher object for performing the search. */
@@ -70,6 +76,9 @@ class RunSearch implements Runnable {
                 searcher.addSearchListener(listener);
             }
         }
+        searcher.setParallelism(parallelism);
+        searcher.setIgnoreFiles(ignoreFiles);
+        searcher.setWatch(watch);
         searcher.search(dir, lookFor, filter, subDirs, exclude);
     }
 
@@ -94,11 +103,45 @@ class RunSearch implements Runnable {
         this.exclude = exclude;
     }
 
+    /**
+     * Sets the number of threads used to perform the search.
+     *
+     * @param  parallelism  number of search threads (at least one).
+     * @see Searcher#setParallelism
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism < 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets whether the search passes over what .gitignore and .ignore
+     * files exclude.
+     *
+     * @param  ignoreFiles  true to honor ignore files.
+     * @see Searcher#setIgnoreFiles
+     */
+    public void setIgnoreFiles(boolean ignoreFiles) {
+        this.ignoreFiles = ignoreFiles;
+    }
+
+    /**
+     * Sets whether the search keeps watching for changes once done.
+     *
+     * @param  watch  true to watch for changes.
+     * @see Searcher#setWatch
+     */
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
     /**
      * Tells the runner to stop the running search.
      */
     public void stop() {
-        if (searcher == null) {
+        if (searcher != null) {
             searcher.stopSearching();
         }
     }
@@ -0,0 +1,617 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+
+/**
+ * Publishes the files found by a search to a subscriber, as fast as
+ * the subscriber asks for them. Found files are held in a buffer of
+ * fixed size; while it is full, the searching threads wait, and so
+ * the search pauses until the subscriber requests more. A consumer
+ * that pages through the results thus holds no more than a buffer's
+ * worth of them at a time, however many files match.
+ *
+ * <p>The subscriber is signalled on the given executor, never on the
+ * searching threads, one signal at a time. The interfaces follow
+ * those of the Reactive Streams specification; on Java 9 and later,
+ * toFlowPublisher() adapts the publisher to the Flow interfaces. A
+ * publisher runs its search once, for a single subscriber.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+class SearchPublisher {
+    /** Default number of found files buffered for the subscriber. */
+    public static final int DEFAULT_BUFFER_SIZE = 256;
+    /** Searcher that performs the search. */
+    private final Searcher searcher;
+    /** Directory to start searching. */
+    private final File startIn;
+    /** Patterns to look for in files. */
+    private final List<String> targets;
+    /** Filename filter pattern. */
+    private final String filter;
+    /** True to search in subdirectories. */
+    private final boolean recurse;
+    /** Directory exclude pattern. */
+    private final String exclude;
+    /** Runs the delivery of signals to the subscriber. */
+    private Executor executor;
+    /** Number of found files buffered for the subscriber. */
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    /** True once a subscriber has subscribed. */
+    private boolean subscribed;
+
+    /**
+     * Constructs a SearchPublisher that will search with the given
+     * searcher, which should not be used for anything else until the
+     * search is done.
+     *
+     * @param  searcher   searcher, with its options set.
+     * @param  startIn    directory to start searching.
+     * @param  targets    patterns to look for in files.
+     * @param  filter     filename filter pattern.
+     * @param  recurse    true to search in subdirectories.
+     * @param  exclude    directory exclude pattern.
+     */
+    public SearchPublisher(Searcher searcher, File startIn,
+                           List<String> targets, String filter,
+                           boolean recurse, String exclude) {
+        this.searcher = searcher;
+        this.startIn = startIn;
+        this.targets = targets;
+        this.filter = filter;
+        this.recurse = recurse;
+        this.exclude = exclude;
+        if (ForkJoinPool.getCommonPoolParallelism() > 1) {
+            executor = ForkJoinPool.commonPool();
+        } else {
+            // The common pool may be too small to rely on.
+            executor = new Executor() {
+                public void execute(Runnable task) {
+                    new Thread(task, "jrgrep-publisher").start();
+                }
+            };
+        }
+    }
+
+    /**
+     * Sets the executor on which the subscriber is signalled. By
+     * default this is the common fork-join pool.
+     *
+     * @param  executor  executor to deliver signals.
+     */
+    public void setExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the number of found files held for the subscriber before
+     * the search waits for it to request more.
+     *
+     * @param  size  buffer size (default 256).
+     */
+    public void setBufferSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size < 1");
+        }
+        bufferSize = size;
+    }
+
+    /**
+     * Subscribes the given subscriber to the files found, starting
+     * the search when it first requests any. A second subscriber is
+     * told of an error at once, as the search is run only once.
+     *
+     * @param  subscriber  receives the files found.
+     */
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        boolean first;
+        synchronized (this) {
+            first = !subscribed;
+            subscribed = true;
+        }
+        SearchSubscription subscription = new SearchSubscription(
+            subscriber, executor, bufferSize);
+        subscriber.onSubscribe(subscription);
+        if (!first) {
+            subscription.fail(new IllegalStateException(
+                "already subscribed"));
+        }
+    }
+
+    /**
+     * Returns this publisher as a java.util.concurrent.Flow.Publisher
+     * of SearchResult, for use with the Flow classes of Java 9 and
+     * later. The Flow interfaces are reached by reflection, as this
+     * code is built for Java 8.
+     *
+     * @return  a Flow.Publisher&lt;SearchResult&gt; for this publisher.
+     * @throws  UnsupportedOperationException
+     *          if the Flow class is not available.
+     */
+    public Object toFlowPublisher() {
+        final Class<?> publisher;
+        final Method onSubscribe;
+        final Method onNext;
+        final Method onError;
+        final Method onComplete;
+        final Class<?> subscription;
+        try {
+            publisher = Class.forName(
+                "java.util.concurrent.Flow$Publisher");
+            Class<?> subscriber = Class.forName(
+                "java.util.concurrent.Flow$Subscriber");
+            subscription = Class.forName(
+                "java.util.concurrent.Flow$Subscription");
+            onSubscribe = subscriber.getMethod("onSubscribe", subscription);
+            onNext = subscriber.getMethod("onNext", Object.class);
+            onError = subscriber.getMethod("onError", Throwable.class);
+            onComplete = subscriber.getMethod("onComplete");
+        } catch (ClassNotFoundException cnfe) {
+            throw new UnsupportedOperationException(
+                "Flow requires Java 9 or later");
+        } catch (NoSuchMethodException nsme) {
+            throw new UnsupportedOperationException(nsme.toString());
+        }
+        return proxy(publisher, new InvocationHandler() {
+            public Object invoke(Object self, Method m, Object[] args) {
+                // The only method of Flow.Publisher is subscribe().
+                final Object target = args[0];
+                subscribe(new Subscriber() {
+                    public void onSubscribe(final Subscription s) {
+                        Object flow = proxy(subscription,
+                                            new InvocationHandler() {
+                            public Object invoke(Object self, Method m,
+                                                 Object[] args) {
+                                if (m.getName().equals("request")) {
+                                    s.request(((Long) args[0]).longValue());
+                                } else {
+                                    s.cancel();
+                                }
+                                return null;
+                            }
+                        });
+                        call(onSubscribe, target, flow);
+                    }
+
+                    public void onNext(SearchResult result) {
+                        call(onNext, target, result);
+                    }
+
+                    public void onError(Throwable t) {
+                        call(onError, target, t);
+                    }
+
+                    public void onComplete() {
+                        call(onComplete, target);
+                    }
+                });
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a proxy implementing the given single-method interface
+     * with the given handler. The methods of Object are answered by
+     * the proxy itself, so that it behaves as an ordinary object.
+     *
+     * @param  type     interface to implement.
+     * @param  handler  handles the method of the interface.
+     * @return  new proxy.
+     */
+    private static Object proxy(final Class<?> type,
+                                final InvocationHandler handler) {
+        return Proxy.newProxyInstance(type.getClassLoader(),
+                                      new Class<?>[] { type },
+                                      new InvocationHandler() {
+            public Object invoke(Object self, Method m, Object[] args)
+                    throws Throwable {
+                if (m.getDeclaringClass() == Object.class) {
+                    if (m.getName().equals("equals")) {
+                        return Boolean.valueOf(self == args[0]);
+                    } else if (m.getName().equals("hashCode")) {
+                        return Integer.valueOf(
+                            System.identityHashCode(self));
+                    }
+                    return "SearchPublisher$" + type.getSimpleName()
+                        + "@" + Integer.toHexString(
+                            System.identityHashCode(self));
+                }
+                return handler.invoke(self, m, args);
+            }
+        });
+    }
+
+    /**
+     * Invokes a method of a Flow subscriber, passing on what it throws.
+     *
+     * @param  method  method to invoke.
+     * @param  target  subscriber on which to invoke it.
+     * @param  args    arguments of the method.
+     */
+    private static void call(Method method, Object target,
+                             Object... args) {
+        try {
+            method.invoke(target, args);
+        } catch (InvocationTargetException ite) {
+            Throwable cause = ite.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (IllegalAccessException iae) {
+            throw new RuntimeException(iae);
+        }
+    }
+
+    /**
+     * Receives the files found by a search, as they are requested.
+     */
+    interface Subscriber {
+
+        /**
+         * Invoked before any other signal, with the subscription
+         * through which files are requested.
+         *
+         * @param  subscription  subscription to the search.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Invoked for each file found, no more often than requested.
+         * Binary files that were listed, and files that timed out,
+         * are also delivered, marked as such.
+         *
+         * @param  result  file found.
+         */
+        void onNext(SearchResult result);
+
+        /**
+         * Invoked when the search has failed; no further signals
+         * follow.
+         *
+         * @param  t  cause of the failure.
+         */
+        void onError(Throwable t);
+
+        /**
+         * Invoked once every file found has been delivered; no further
+         * signals follow.
+         */
+        void onComplete();
+    }
+
+    /**
+     * Controls the delivery of files found to a subscriber.
+     */
+    interface Subscription {
+
+        /**
+         * Asks for up to the given number of further files. The first
+         * request starts the search.
+         *
+         * @param  n  number of files, which must be positive.
+         */
+        void request(long n);
+
+        /**
+         * Stops the search and the delivery of files. Files already
+         * found may still be delivered while the search stops.
+         */
+        void cancel();
+    }
+
+    /**
+     * The subscription of the one subscriber, which buffers the files
+     * found by the searching threads and delivers them on the
+     * executor as they are requested.
+     */
+    private class SearchSubscription implements Subscription,
+            FileSearchListener, Runnable {
+        /** Receives the files found. */
+        private final Subscriber subscriber;
+        /** Runs the delivery of signals. */
+        private final Executor executor;
+        /** Most files that may be buffered. */
+        private final int capacity;
+        /** Files found but not yet delivered. */
+        private final ArrayDeque<SearchResult> buffer;
+        /** Number of files requested but not yet delivered. */
+        private long demand;
+        /** True once the search has been started. */
+        private boolean started;
+        /** True once the search is done or has failed. */
+        private boolean done;
+        /** Cause of the failure of the search, if it failed. */
+        private Throwable failure;
+        /** True once the subscription is cancelled, or ended. */
+        private boolean cancelled;
+        /** True while a delivery task is queued or running. */
+        private boolean delivering;
+        /** Future of the running search, once started. */
+        private CompletableFuture<SearchStats> future;
+
+        /**
+         * Constructs a SearchSubscription for the given subscriber.
+         *
+         * @param  subscriber  receives the files found.
+         * @param  executor    runs the delivery of signals.
+         * @param  capacity    most files to buffer.
+         */
+        SearchSubscription(Subscriber subscriber, Executor executor,
+                           int capacity) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.capacity = capacity;
+            buffer = new ArrayDeque<SearchResult>(capacity);
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("non-positive request"));
+                return;
+            }
+            boolean start;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                demand += n;
+                if (demand < 0) {
+                    // Treated as an unbounded demand.
+                    demand = Long.MAX_VALUE;
+                }
+                start = !started;
+                started = true;
+            }
+            if (start) {
+                searcher.addSearchListener(this);
+                CompletableFuture<SearchStats> f = searcher.searchAsync(
+                    startIn, targets, filter, recurse, exclude);
+                f.whenComplete(new BiConsumer<SearchStats, Throwable>() {
+                    public void accept(SearchStats stats, Throwable t) {
+                        searcher.removeSearchListener(
+                            SearchSubscription.this);
+                        finish(t);
+                    }
+                });
+                synchronized (this) {
+                    future = f;
+                    if (cancelled) {
+                        f.cancel(false);
+                    }
+                }
+            }
+            schedule();
+        }
+
+        public void cancel() {
+            CompletableFuture<SearchStats> f;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                buffer.clear();
+                // Release any searching threads waiting for room.
+                notifyAll();
+                f = future;
+            }
+            if (f != null) {
+                f.cancel(false);
+            }
+        }
+
+        /**
+         * Ends the subscription with the given error, stopping the
+         * search if it is running.
+         *
+         * @param  t  cause of the failure.
+         */
+        void fail(Throwable t) {
+            CompletableFuture<SearchStats> f;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                failure = t;
+                started = true;
+                buffer.clear();
+                notifyAll();
+                f = future;
+            }
+            if (f != null) {
+                f.cancel(false);
+            }
+            schedule();
+        }
+
+        /**
+         * Notes that the search is done, after all of the files found
+         * have been buffered.
+         *
+         * @param  t  cause of the failure, or null if successful.
+         */
+        private void finish(Throwable t) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                failure = t;
+            }
+            schedule();
+        }
+
+        /**
+         * Queues a delivery task if there is something to deliver and
+         * no task is already queued or running.
+         */
+        private void schedule() {
+            synchronized (this) {
+                if (delivering || cancelled) {
+                    return;
+                }
+                if (!done && (demand == 0 || buffer.isEmpty())) {
+                    return;
+                }
+                delivering = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RuntimeException re) {
+                synchronized (this) {
+                    delivering = false;
+                }
+                cancel();
+                subscriber.onError(re);
+            }
+        }
+
+        /**
+         * Delivers the buffered files, as far as they are requested,
+         * followed by the end of the search once the buffer is empty.
+         */
+        public void run() {
+            while (true) {
+                SearchResult result = null;
+                boolean complete = false;
+                Throwable error = null;
+                synchronized (this) {
+                    if (cancelled) {
+                        delivering = false;
+                        return;
+                    }
+                    if (demand > 0 && !buffer.isEmpty()) {
+                        result = buffer.poll();
+                        demand--;
+                        // Let a waiting searching thread add another.
+                        notifyAll();
+                    } else if (done && buffer.isEmpty()) {
+                        cancelled = true;
+                        complete = failure == null;
+                        error = failure;
+                    } else {
+                        delivering = false;
+                        return;
+                    }
+                }
+                try {
+                    if (result != null) {
+                        subscriber.onNext(result);
+                    } else if (complete) {
+                        subscriber.onComplete();
+                    } else {
+                        subscriber.onError(error);
+                    }
+                } catch (RuntimeException re) {
+                    // A subscriber that throws is treated as
+                    // having cancelled.
+                    synchronized (this) {
+                        delivering = false;
+                    }
+                    cancel();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Adds the files found to the buffer, waiting for room as
+         * needed. This runs on a searching thread or the timer that
+         * delivers batches for the search. While it waits, the other searching threads go on
+         * only until they too must deliver a batch, and so the search
+         * pauses for as long as the buffer stays full.
+         *
+         * @param  events  files found.
+         */
+        public void filesFound(List<FileFoundEvent> events) {
+            for (FileFoundEvent event : events) {
+                SearchResult result = new SearchResult(event);
+                while (!offer(result)) {
+                    // Deliver what is requested, then wait for room.
+                    schedule();
+                    synchronized (this) {
+                        while (buffer.size() >= capacity && !cancelled
+                               && !done) {
+                            try {
+                                wait();
+                            } catch (InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                                return;
+                            }
+                        }
+                    }
+                }
+            }
+            schedule();
+        }
+
+        /**
+         * Adds a file found to the buffer, if there is room. Once the
+         * subscription has ended, the file is discarded.
+         *
+         * @param  result  file found.
+         * @return  false if the buffer is full.
+         */
+        private synchronized boolean offer(SearchResult result) {
+            if (buffer.size() >= capacity) {
+                return false;
+            }
+            if (!cancelled && !done) {
+                buffer.add(result);
+            }
+            return true;
+        }
+
+        public void fileRemoved(FileFoundEvent event) {
+        }
+
+        public void searchComplete(SearchStats stats) {
+        }
+
+        public void searchFailed(Throwable t) {
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.util.List;
+
+/**
+ * One file found by a search, as delivered by a SearchPublisher. It
+ * holds the same details as the FileFoundEvent from which it is made,
+ * but not the searcher that found it, so that a subscriber may keep
+ * it without keeping the searcher.
+ *
+ * @author  Nathan Fiedler
+ */
+class SearchResult {
+    /** Path and filename of the file. */
+    private final String file;
+    /** True if the file is binary and was not searched. */
+    private final boolean binary;
+    /** True if the file took too long and was not fully searched. */
+    private final boolean timedOut;
+    /** Locations of the matches in the file, if reported. */
+    private final List<MatchLocation> matches;
+    /** Patterns found in the file, if there were several. */
+    private final List<String> patterns;
+    /** Number of matches replaced in the file. */
+    private final int replacements;
+
+    /**
+     * Constructs a SearchResult for the file of the given event.
+     *
+     * @param  event  file found.
+     */
+    SearchResult(FileFoundEvent event) {
+        file = event.getFile();
+        binary = event.isBinary();
+        timedOut = event.isTimedOut();
+        matches = event.getMatches();
+        patterns = event.getPatterns();
+        replacements = event.getReplacements();
+    }
+
+    /**
+     * Returns the path and filename of the file.
+     *
+     * @return  path and filename of the file.
+     */
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the locations of the matches in the file, in the order
+     * in which they appear. The list is empty unless the searcher was
+     * asked to report match locations.
+     *
+     * @return  list of match locations.
+     * @see Searcher#setMaxLocations
+     */
+    public List<MatchLocation> getMatches() {
+        return matches;
+    }
+
+    /**
+     * Returns the patterns found in the file, when searching for
+     * several patterns at once; otherwise the list is empty.
+     *
+     * @return  list of patterns found.
+     */
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * Returns the number of matches replaced in the file (or that
+     * would have been, in a dry run).
+     *
+     * @return  number of replacements.
+     * @see Searcher#setReplacement
+     */
+    public int getReplacements() {
+        return replacements;
+    }
+
+    /**
+     * Indicates if the file is binary and was not searched, rather
+     * than being a matching file.
+     *
+     * @return  true if file is binary.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Indicates if the file took longer to search than allowed, and
+     * so was abandoned, rather than being a matching file.
+     *
+     * @return  true if file timed out.
+     * @see Searcher#setFileTimeout
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Returns the path of the file.
+     *
+     * @return  path and filename of the file.
+     */
+    public String toString() {
+        return file;
+    }
+}
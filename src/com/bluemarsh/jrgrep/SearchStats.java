@@ -0,0 +1,456 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects statistics about a single search. The counters may be
+ * updated from several searching threads at once; each is striped
+ * across threads so that keeping them costs little, and nothing is
+ * allocated for each file. The statistics may be read while the
+ * search runs, including through JMX.
+ *
+ * <p>The time spent in each phase is summed over all of the searching
+ * threads, so with several threads it may exceed the elapsed time.</p>
+ *
+ * @author  Nathan Fiedler
+ */
+class SearchStats implements SearchStatsMBean {
+    /** Nanoseconds in a millisecond. */
+    private static final long NANOS_PER_MILLI = 1000000L;
+    /** Time at which the search started, in nanoseconds. */
+    private final long startTime = System.nanoTime();
+    /** Time at which the search finished, in nanoseconds, or zero if
+     * it is still running. */
+    private volatile long finishTime;
+    /** Number of directories listed. */
+    private final LongAdder directories = new LongAdder();
+    /** Number of files found while listing the directories. */
+    private final LongAdder filesListed = new LongAdder();
+    /** Number of listed files rejected by the filename filter. */
+    private final LongAdder filesFiltered = new LongAdder();
+    /** Number of files and archive entries whose content was
+     * searched. */
+    private final LongAdder filesScanned = new LongAdder();
+    /** Number of bytes of content searched. */
+    private final LongAdder bytesScanned = new LongAdder();
+    /** Number of files and directories that could not be read. */
+    private final LongAdder errors = new LongAdder();
+    /** Nanoseconds spent listing directories. */
+    private final LongAdder listingTime = new LongAdder();
+    /** Nanoseconds spent opening, examining, and mapping files. */
+    private final LongAdder openingTime = new LongAdder();
+    /** Nanoseconds spent matching the content of files. */
+    private final LongAdder matchingTime = new LongAdder();
+    /** Nanoseconds spent reporting files, including finding the
+     * matches within them. */
+    private final LongAdder reportingTime = new LongAdder();
+    /** Number of times file attributes were read while listing. */
+    private final LongAdder attributeReads = new LongAdder();
+    /** Estimated number of file system calls avoided by reading the
+     * attributes once for each entry. */
+    private final LongAdder savedSyscalls = new LongAdder();
+    /** Number of files found to be binary. */
+    private final LongAdder binaryFiles = new LongAdder();
+    /** Number of files and directories excluded by ignore rules. */
+    private final LongAdder ignoredEntries = new LongAdder();
+    /** Number of files ruled out by the content index. */
+    private final LongAdder indexSkippedFiles = new LongAdder();
+    /** Number of matches counted. */
+    private final LongAdder matches = new LongAdder();
+    /** Number of files in which matches were counted. */
+    private final LongAdder matchingFiles = new LongAdder();
+    /** Number of files abandoned for taking too long. */
+    private final LongAdder timedOutFiles = new LongAdder();
+    /** True if the search was stopped at its time limit. */
+    private volatile boolean timedOut;
+
+    /**
+     * Notes that a directory was listed.
+     *
+     * @param  files     number of files in the directory.
+     * @param  filtered  number of those rejected by the filename
+     *                   filter.
+     * @param  nanos     time taken to list the directory.
+     */
+    void directoryListed(int files, int filtered, long nanos) {
+        directories.increment();
+        filesListed.add(files);
+        filesFiltered.add(filtered);
+        listingTime.add(nanos);
+    }
+
+    /**
+     * Notes that the content of a file or archive entry was searched.
+     *
+     * @param  bytes    number of bytes searched.
+     * @param  opening  time taken to open, examine, and map the file.
+     * @param  matching time taken to match the content.
+     */
+    void fileScanned(long bytes, long opening, long matching) {
+        filesScanned.increment();
+        bytesScanned.add(bytes);
+        openingTime.add(opening);
+        matchingTime.add(matching);
+    }
+
+    /**
+     * Notes the time taken by a further pass over content already
+     * noted as searched.
+     *
+     * @param  matching  time taken to match the content.
+     */
+    void scannedAgain(long matching) {
+        matchingTime.add(matching);
+    }
+
+    /**
+     * Notes the time taken to report a file.
+     *
+     * @param  nanos  time taken.
+     */
+    void fileReported(long nanos) {
+        reportingTime.add(nanos);
+    }
+
+    /**
+     * Notes that a file or directory could not be read.
+     */
+    void error() {
+        errors.increment();
+    }
+
+    /**
+     * Notes that the search has finished.
+     */
+    void finish() {
+        finishTime = System.nanoTime();
+    }
+
+    /**
+     * Notes that a file was abandoned for taking too long.
+     */
+    void timedOutFile() {
+        timedOutFiles.increment();
+    }
+
+    /**
+     * Notes that the search was stopped at its time limit.
+     */
+    void timedOut() {
+        timedOut = true;
+    }
+
+    /**
+     * Returns the number of files and archive entries whose scan was
+     * abandoned because it took longer than allowed.
+     *
+     * @return  count of files timed out.
+     * @see Searcher#setFileTimeout
+     */
+    public long getTimedOutFiles() {
+        return timedOutFiles.sum();
+    }
+
+    /**
+     * Indicates whether the search was stopped because it ran longer
+     * than allowed, rather than finishing.
+     *
+     * @return  true if the search timed out.
+     * @see Searcher#setTimeout
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Returns the number of directories listed.
+     *
+     * @return  count of directories.
+     */
+    public long getDirectories() {
+        return directories.sum();
+    }
+
+    /**
+     * Returns the number of files found while listing directories,
+     * before any were filtered out.
+     *
+     * @return  count of files listed.
+     */
+    public long getFilesListed() {
+        return filesListed.sum();
+    }
+
+    /**
+     * Returns the number of listed files whose names the filename
+     * filter rejected.
+     *
+     * @return  count of files filtered out.
+     */
+    public long getFilesFiltered() {
+        return filesFiltered.sum();
+    }
+
+    /**
+     * Returns the number of files and archive entries whose content
+     * was searched. Binary files set aside are not included.
+     *
+     * @return  count of files scanned.
+     */
+    public long getFilesScanned() {
+        return filesScanned.sum();
+    }
+
+    /**
+     * Returns the number of files and directories passed over because
+     * they are binary, ignored, or ruled out by the content index.
+     *
+     * @return  count of files skipped.
+     */
+    public long getFilesSkipped() {
+        return binaryFiles.sum() + ignoredEntries.sum()
+            + indexSkippedFiles.sum();
+    }
+
+    /**
+     * Returns the number of bytes of content searched, whether mapped
+     * from files or decompressed from archives.
+     *
+     * @return  count of bytes.
+     */
+    public long getBytesScanned() {
+        return bytesScanned.sum();
+    }
+
+    /**
+     * Returns the number of files and directories that could not be
+     * read, and so were not searched.
+     *
+     * @return  count of errors.
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * Returns the time spent listing directories.
+     *
+     * @return  time in milliseconds.
+     */
+    public long getListingMillis() {
+        return listingTime.sum() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Returns the time spent opening files, deciding whether they are
+     * binary, and mapping them into memory.
+     *
+     * @return  time in milliseconds.
+     */
+    public long getOpeningMillis() {
+        return openingTime.sum() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Returns the time spent matching the content of files, including
+     * decoding it and, for archives, decompressing it.
+     *
+     * @return  time in milliseconds.
+     */
+    public long getMatchingMillis() {
+        return matchingTime.sum() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Returns the time spent reporting files to the listeners, which
+     * includes finding the matches in files that match.
+     *
+     * @return  time in milliseconds.
+     */
+    public long getReportingMillis() {
+        return reportingTime.sum() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Returns the time since the search started, up to when it
+     * finished if it has.
+     *
+     * @return  time in milliseconds.
+     */
+    public long getElapsedMillis() {
+        long end = finishTime;
+        if (end == 0) {
+            end = System.nanoTime();
+        }
+        return (end - startTime) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Returns the rate at which content has been searched.
+     *
+     * @return  bytes searched per second of elapsed time.
+     */
+    public long getBytesPerSecond() {
+        long millis = getElapsedMillis();
+        return millis == 0 ? 0 : getBytesScanned() * 1000 / millis;
+    }
+
+    /**
+     * Indicates whether the search is still running.
+     *
+     * @return  true if not yet finished.
+     */
+    public boolean isRunning() {
+        return finishTime == 0;
+    }
+
+    /**
+     * Adds to the number of matches counted.
+     *
+     * @param  count  number of matches in a file.
+     */
+    void addMatches(long count) {
+        matches.add(count);
+    }
+
+    /**
+     * Adds to the number of file system calls avoided.
+     *
+     * @param  count  number of calls avoided.
+     */
+    void addSavedSyscalls(long count) {
+        savedSyscalls.add(count);
+    }
+
+    /**
+     * Notes that the attributes of a directory entry were read.
+     */
+    void attributesRead() {
+        attributeReads.increment();
+    }
+
+    /**
+     * Returns the number of times the attributes of a directory entry
+     * were read, which is about once for each entry.
+     *
+     * @return  count of attribute reads.
+     */
+    public long getAttributeReads() {
+        return attributeReads.sum();
+    }
+
+    /**
+     * Returns the estimated number of file system calls avoided by
+     * reading the attributes of each directory entry once, rather
+     * than asking whether it is a file, whether it is readable, and
+     * so on, and by resolving its canonical path only once for the
+     * whole directory.
+     *
+     * @return  estimated count of calls avoided.
+     */
+    public long getSavedSyscalls() {
+        return savedSyscalls.sum();
+    }
+
+    /**
+     * Notes that a binary file was found and set aside.
+     */
+    void binaryFile() {
+        binaryFiles.increment();
+    }
+
+    /**
+     * Returns the number of binary files that were not searched.
+     *
+     * @return  count of binary files.
+     */
+    public long getBinaryFiles() {
+        return binaryFiles.sum();
+    }
+
+    /**
+     * Returns the number of matches counted, when the search was
+     * counting matches; otherwise zero.
+     *
+     * @return  count of matches.
+     * @see Searcher#REPORT_COUNT
+     */
+    public long getMatches() {
+        return matches.sum();
+    }
+
+    /**
+     * Returns the number of files that were found to match. When the
+     * number of files reported is limited, only those counted or
+     * reported are included.
+     *
+     * @return  count of matching files.
+     */
+    public long getMatchingFiles() {
+        return matchingFiles.sum();
+    }
+
+    /**
+     * Notes that a file or directory was excluded by ignore rules.
+     */
+    void ignoredEntry() {
+        ignoredEntries.increment();
+    }
+
+    /**
+     * Returns the number of files and directories passed over because
+     * ignore rules exclude them. The contents of ignored directories
+     * are not counted, as they are never listed.
+     *
+     * @return  count of ignored entries.
+     */
+    public long getIgnoredEntries() {
+        return ignoredEntries.sum();
+    }
+
+    /**
+     * Notes that a file was ruled out by the content index.
+     */
+    void indexSkippedFile() {
+        indexSkippedFiles.increment();
+    }
+
+    /**
+     * Returns the number of files that were not opened because the
+     * content index showed they could not match.
+     *
+     * @return  count of files ruled out by the index.
+     */
+    public long getIndexSkippedFiles() {
+        return indexSkippedFiles.sum();
+    }
+
+    /**
+     * Notes that a file was found to match.
+     */
+    void matchingFile() {
+        matchingFiles.increment();
+    }
+}
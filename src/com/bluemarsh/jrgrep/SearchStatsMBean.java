@@ -0,0 +1,168 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+/**
+ * The management interface of the statistics of a search, through
+ * which a running search may be watched with JMX tools such as
+ * jconsole. The searcher registers its statistics when asked to.
+ *
+ * @author  Nathan Fiedler
+ * @see Searcher#setManaged
+ */
+public interface SearchStatsMBean {
+
+    /**
+     * Returns the number of directories listed.
+     *
+     * @return  count of directories.
+     */
+    long getDirectories();
+
+    /**
+     * Returns the number of files found while listing directories.
+     *
+     * @return  count of files listed.
+     */
+    long getFilesListed();
+
+    /**
+     * Returns the number of files rejected by the filename filter.
+     *
+     * @return  count of files filtered out.
+     */
+    long getFilesFiltered();
+
+    /**
+     * Returns the number of files and archive entries searched.
+     *
+     * @return  count of files scanned.
+     */
+    long getFilesScanned();
+
+    /**
+     * Returns the number of files and directories passed over.
+     *
+     * @return  count of files skipped.
+     */
+    long getFilesSkipped();
+
+    /**
+     * Returns the number of binary files that were not searched.
+     *
+     * @return  count of binary files.
+     */
+    long getBinaryFiles();
+
+    /**
+     * Returns the number of files found to match.
+     *
+     * @return  count of matching files.
+     */
+    long getMatchingFiles();
+
+    /**
+     * Returns the number of matches counted.
+     *
+     * @return  count of matches.
+     */
+    long getMatches();
+
+    /**
+     * Returns the number of files and directories that could not be
+     * read.
+     *
+     * @return  count of errors.
+     */
+    long getErrors();
+
+    /**
+     * Returns the number of files abandoned for taking too long.
+     *
+     * @return  count of files timed out.
+     */
+    long getTimedOutFiles();
+
+    /**
+     * Indicates whether the search was stopped at its time limit.
+     *
+     * @return  true if the search timed out.
+     */
+    boolean isTimedOut();
+
+    /**
+     * Returns the number of bytes of content searched.
+     *
+     * @return  count of bytes.
+     */
+    long getBytesScanned();
+
+    /**
+     * Returns the rate at which content has been searched.
+     *
+     * @return  bytes per second.
+     */
+    long getBytesPerSecond();
+
+    /**
+     * Returns the time spent listing directories.
+     *
+     * @return  time in milliseconds.
+     */
+    long getListingMillis();
+
+    /**
+     * Returns the time spent opening and mapping files.
+     *
+     * @return  time in milliseconds.
+     */
+    long getOpeningMillis();
+
+    /**
+     * Returns the time spent matching content.
+     *
+     * @return  time in milliseconds.
+     */
+    long getMatchingMillis();
+
+    /**
+     * Returns the time spent reporting files.
+     *
+     * @return  time in milliseconds.
+     */
+    long getReportingMillis();
+
+    /**
+     * Returns the time since the search started.
+     *
+     * @return  time in milliseconds.
+     */
+    long getElapsedMillis();
+
+    /**
+     * Indicates whether the search is still running.
+     *
+     * @return  true if not yet finished.
+     */
+    boolean isRunning();
+}
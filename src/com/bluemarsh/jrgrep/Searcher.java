@@ -22,17 +22,68 @@
 
 package com.bluemarsh.jrgrep;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.swing.event.EventListenerList;
 
 /**
@@ -42,12 +93,77 @@ import javax.swing.event.EventListenerList;
  * @author  Nathan Fiedler
  */
 class Searcher {
+    /** Binary files are not searched (the default). */
+    public static final int BINARY_SKIP = 0;
+    /** Binary files are searched as if they were text. */
+    public static final int BINARY_TEXT = 1;
+    /** Binary files are not searched, but are reported to the
+     * listeners as being binary. */
+    public static final int BINARY_REPORT = 2;
+    /** Files that match are reported (the default). */
+    public static final int REPORT_MATCHING = 0;
+    /** Nothing is reported; the matches are counted in the search
+     * statistics instead. */
+    public static final int REPORT_COUNT = 1;
+    /** Files that do not match are reported. */
+    public static final int REPORT_NONMATCHING = 2;
+    /** Encoding name by which the charset of each file is chosen
+     * from its content. */
+    public static final String ENCODING_AUTO = "auto";
+    /** Number of bytes examined to decide if a file is binary. */
+    private static final int SNIFF_SIZE = 8192;
+    /** Size of the buffer through which archive entries are read. */
+    private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+    /** Compressed size of the entries of an archive scanned together
+     * as one task, when scanning in parallel. */
+    private static final long ARCHIVE_BATCH_SIZE = 1024 * 1024;
+    /** Separates the path of an archive from that of an entry. */
+    private static final String ENTRY_SEPARATOR = "!/";
+    /** The file is not an archive. */
+    private static final int ARCHIVE_NONE = 0;
+    /** The file is compressed by gzip. */
+    private static final int ARCHIVE_GZIP = 1;
+    /** The file is a zip archive, such as a jar. */
+    private static final int ARCHIVE_ZIP = 2;
+    /** Largest number of found files delivered to the listeners in
+     * one batch. */
+    private static final int FOUND_BATCH_SIZE = 256;
+    /** Longest time in milliseconds a found file is held back before
+     * being delivered, so that matches appear at a steady rate. */
+    private static final long FOUND_BATCH_MS = 100;
+    /** Milliseconds between checks of the stop flag while watching. */
+    private static final long WATCH_POLL_MS = 250;
+    /** Milliseconds to wait for further changes before re-scanning,
+     * so that a file written in several steps is scanned once. */
+    private static final long WATCH_SETTLE_MS = 50;
+    /** Window size used for files too large to be mapped whole. */
+    private static final long DEFAULT_WINDOW_SIZE = 64L * 1024 * 1024;
+    /** Largest number of bytes that may be mapped at once. */
+    private static final long MAX_MAP_SIZE = Integer.MAX_VALUE;
+    /** Domain of the names under which search statistics are
+     * registered as MBeans. */
+    private static final String MBEAN_DOMAIN = "com.bluemarsh.jrgrep";
+    /** Number of searches registered as MBeans, to name them apart. */
+    private static final AtomicInteger managedSearches = new AtomicInteger();
+    /** Amount of work, in characters, between checks of whether the
+     * scan of a file is to be stopped. */
+    private static final int CHECK_INTERVAL = 64 * 1024;
+    /** Number of bytes of a long line given either side of each part
+     * in which it is matched, enough for a character in any charset. */
+    private static final int LINE_CONTEXT = 4;
+    /** Largest number of bytes decoded at once; longer windows and
+     * lines are decoded in overlapping chunks. */
+    private static final int DECODE_CHUNK = 4 * 1024 * 1024;
+    /** Largest buffer of decoded text kept from one file to the next. */
+    private static final int KEPT_DECODED_SIZE = 1024 * 1024;
+    /** Thrown within a scan when the search is stopped. */
+    private static final ScanInterrupted SCAN_STOPPED =
+        new ScanInterrupted("search stopped");
+    /** Thrown within a scan when the file takes too long. */
+    private static final ScanInterrupted SCAN_TIMED_OUT =
+        new ScanInterrupted("file timed out");
     /** End-of-line matcher. */
     private static Pattern linePattern;
-    /**  Charset for ISO-8859-1. */
-    private static Charset charset;
-    /**  Charset decoder for ISO-8859-1. */
-    private static CharsetDecoder decoder;
     /** List of file search listeners. When a matching file is found,
      * these listeners will be notified. When the search is complete,
      * listeners will be notified. */
@@ -55,18 +171,118 @@ class Searcher {
     /** True if the running search should be stopped. Will be set true
      * in stopSearching() and set false at the start of search(). */
     private volatile boolean stopSearch;
-    /** Target pattern to look for. */
+    /** Patterns to look for, as given. */
+    private PatternSet patternSet;
+    /** Target pattern to look for; when there are several patterns,
+     * this matches wherever any of them matches. */
     private Pattern targetPattern;
-    /** Target matcher, if created. */
-    private Matcher targetMatcher;
-    /** File filter pattern. */
-    private Pattern filterPattern;
-    /** File filter matcher, if created. */
-    private Matcher filterMatcher;
+    /** The (?s) patterns, when there are patterns of both kinds; these
+     * are searched for in a second pass over each file, after the
+     * target pattern. Null if the target pattern covers them all. */
+    private Pattern singleLinePattern;
+    /** Finds the literal required by the target pattern, if any. */
+    private ByteFinder literalFinder;
+    /** Finds the literals, when there are several patterns and all
+     * of them are plain literals; tells which of them a file holds. */
+    private LiteralSetFinder literalSet;
+    /** Target pattern in MULTILINE mode, for matching whole buffers
+     * in line mode; null if such matching is not safe. */
+    private Pattern bufferPattern;
+    /** Filename filter, applied to paths relative to the starting
+     * directory. */
+    private NameFilter nameFilter;
+    /** Canonical path of the starting directory, with a trailing
+     * separator. */
+    private String rootPrefix;
     /** Directory exclude pattern. */
     private Pattern excludePattern;
-    /** Directory exclude matcher. */
-    private Matcher excludeMatcher;
+    /** Number of threads to search with; if one, the search runs
+     * entirely on the calling thread. */
+    private int parallelism = 1;
+    /** Scan context used by the sequential search. */
+    private ScanContext sequentialContext;
+    /** Scan contexts for the worker threads of a parallel search. */
+    private ThreadLocal<ScanContext> parallelContexts;
+    /** First exception raised by a parallel search task, if any. */
+    private volatile IOException parallelError;
+    /** True to scan each file on a virtual thread of its own. */
+    private boolean virtualThreads;
+    /** Maximum number of files scanned concurrently on virtual threads. */
+    private int maxOpenFiles = 256;
+    /** Maximum number of bytes mapped concurrently on virtual threads. */
+    private long maxMappedBytes = 256L * 1024 * 1024;
+    /** Runs the file scans when using virtual threads. */
+    private ExecutorService fileExecutor;
+    /** One permit for each file that may be open at once. */
+    private Semaphore openFilePermits;
+    /** One permit for each kilobyte that may be mapped at once. */
+    private Semaphore mappedPermits;
+    /** Scan contexts not presently in use by a file scan. */
+    private Queue<ScanContext> idleContexts;
+    /** Size of the windows through which files are scanned, or zero
+     * to map each file whole when possible. */
+    private long windowSize;
+    /** Longest DOTALL match guaranteed to be found when scanning a
+     * file in windows; this is the overlap between the windows. */
+    private int maxMatchSpan = 1024 * 1024;
+    /** How binary files are handled, one of the BINARY_ constants. */
+    private int binaryMode = BINARY_SKIP;
+    /** Statistics for the current or most recent search. */
+    private SearchStats stats;
+    /** Content index used to rule out files, if any. */
+    private ContentIndex index;
+    /** Files of the index that may match the current target. */
+    private ContentIndex.Query indexQuery;
+    /** True to keep watching for changes once the search is done. */
+    private boolean watch;
+    /** True to register the statistics of each search as an MBean. */
+    private boolean managed;
+    /** Nanoseconds after which the search is stopped, if positive. */
+    private long searchTimeout;
+    /** Nanoseconds each file may take to scan, if positive. */
+    private long fileTimeout;
+    /** Files reported as matching, while watching for changes. */
+    private Set<String> watchedFiles;
+    /** Notifies of changes to the watched directories. */
+    private WatchService watchService;
+    /** Directory watched by each watch key. */
+    private Map<WatchKey, File> watchedDirs;
+    /** Number of match locations reported for each matching file,
+     * or zero to report only the files themselves. */
+    private int maxLocations;
+    /** What the search reports, one of the REPORT_ constants. */
+    private int reportMode = REPORT_MATCHING;
+    /** Number of files after which the search stops, or zero. */
+    private int maxFiles;
+    /** Number of files reported (or counted) so far. */
+    private int resultCount;
+    /** True to pass over what .gitignore and .ignore files exclude. */
+    private boolean useIgnoreFiles;
+    /** True to search within gzip, zip, and jar archives. */
+    private boolean searchArchives;
+    /** Charset in which files are decoded, or null to match each byte
+     * as one ISO-8859-1 character. */
+    private Charset encoding;
+    /** True to choose the charset of each file from its content. */
+    private boolean autoEncoding;
+    /** Text replacing each match, or null to only search. */
+    private String replacement;
+    /** True to count the replacements without changing any files. */
+    private boolean dryRun;
+    /** Replaces the matches in matching files, if replacing. */
+    private Replacer replacer;
+    /** Replaces the matches of the (?s) patterns, if replacing and
+     * these are searched for apart. */
+    private Replacer singleLineReplacer;
+    /** Found files not yet delivered to the listeners. */
+    private List<FileFoundEvent> pendingFound =
+        new ArrayList<FileFoundEvent>();
+    /** Time at which the oldest pending found file was found. */
+    private long pendingSince;
+    /** Held while events are delivered to the listeners, so that they
+     * receive one at a time and in order, without holding up the
+     * searching threads that only add to the pending batch. */
+    private final Object deliveryLock = new Object();
 
     static {
         try {
@@ -74,8 +290,6 @@ class Searcher {
         } catch (PatternSyntaxException pse) {
             System.out.println("Ye flipping gods!");
         }
-        charset = Charset.forName("ISO-8859-1");
-        decoder = charset.newDecoder();
     }
 
     /**
@@ -96,17 +310,21 @@ class Searcher {
 
     /**
      * Let all the file search listeners know that the search has been
-     * completed.
+     * completed, after delivering any found files still pending.
      */
     protected void fireDone() {
         if (searchListeners == null) {
             return;
         }
-        Object[] listeners = searchListeners.getListenerList();
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            if (listeners[i] == FileSearchListener.class) {
-                FileSearchListener fsl = (FileSearchListener) listeners[i + 1];
-                fsl.searchComplete();
+        synchronized (deliveryLock) {
+            flushFound();
+            Object[] listeners = searchListeners.getListenerList();
+            for (int i = listeners.length - 2; i >= 0; i -= 2) {
+                if (listeners[i] == FileSearchListener.class) {
+                    FileSearchListener fsl =
+                        (FileSearchListener) listeners[i + 1];
+                    fsl.searchComplete(stats);
+                }
             }
         }
     } // fireDone
@@ -138,20 +356,207 @@ class Searcher {
      * @param  match  matching file found.
      */
     protected void fireFound(String match) {
+        fireFound(match, false);
+    } // fireFound
+
+    /**
+     * Claims one of the results the search may report. Once the
+     * maximum number of files has been claimed, the search is told to
+     * stop.
+     *
+     * @return  true if claimed, false if the limit has been reached.
+     */
+    private synchronized boolean claimResult() {
+        if (maxFiles > 0 && resultCount >= maxFiles) {
+            return false;
+        }
+        resultCount++;
+        if (resultCount == maxFiles) {
+            stopSearch = true;
+        }
+        return true;
+    } // claimResult
+
+    /**
+     * Let all the file found listeners know that a matching file was
+     * found, or that a binary file was set aside. The events are
+     * gathered into batches, which are delivered when full or when
+     * the oldest event has waited long enough, by the searching
+     * thread or by the timer of the search. Listeners receive one
+     * batch at a time, even when the search is running on several
+     * threads.
+     *
+     * @param  match   file found.
+     * @param  binary  true if file is binary and was not searched.
+     */
+    protected void fireFound(String match, boolean binary) {
+        fireFound(match, binary, null, 0, null);
+    } // fireFound
+
+    /**
+     * Let all the file found listeners know that a matching file was
+     * found, along with the locations of the matches in that file,
+     * the number of matches replaced, and the patterns found. The
+     * events are gathered into batches, which are delivered when full
+     * or when the oldest event has waited long enough, by the
+     * searching thread or by the timer of the search. Listeners
+     * receive one batch at a time, even when the search is running on
+     * several threads.
+     *
+     * @param  match         file found.
+     * @param  binary        true if file is binary and was not searched.
+     * @param  matches       locations of the matches, or null if not
+     *                       reported.
+     * @param  replacements  number of matches replaced.
+     * @param  patterns      patterns found in the file, or null if
+     *                       there is only the one pattern.
+     */
+    protected void fireFound(String match, boolean binary,
+                             List<MatchLocation> matches, int replacements,
+                             List<String> patterns) {
         if (searchListeners == null) {
             return;
         }
-        FileFoundEvent event = new FileFoundEvent(this, match);
-        Object[] listeners = searchListeners.getListenerList();
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            if (listeners[i] == FileSearchListener.class) {
-                FileSearchListener fsl = (FileSearchListener) listeners[i + 1];
-                fsl.fileFound(event);
+        synchronized (this) {
+            if (watchedFiles != null && !watchedFiles.add(match)) {
+                // Already reported, and still matching.
+                return;
             }
         }
-        event = null;
+        addFound(new FileFoundEvent(this, match, binary, matches,
+                                    replacements, patterns));
     } // fireFound
 
+    /**
+     * Let all the file found listeners know that a file took longer
+     * to scan than allowed, and so was not fully searched. The event
+     * is delivered in the same batches as the files found.
+     *
+     * @param  match  file that timed out.
+     */
+    protected void fireTimedOut(String match) {
+        if (searchListeners == null) {
+            return;
+        }
+        addFound(new FileFoundEvent(this, match, false, null, 0, null,
+                                    true));
+    } // fireTimedOut
+
+    /**
+     * Adds the event to the pending batch, delivering the batch if it
+     * is full or the oldest event has waited long enough.
+     *
+     * @param  event  event to deliver.
+     */
+    private void addFound(FileFoundEvent event) {
+        boolean flush;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (pendingFound.isEmpty()) {
+                pendingSince = now;
+            }
+            pendingFound.add(event);
+            flush = pendingFound.size() >= FOUND_BATCH_SIZE
+                || now - pendingSince >= FOUND_BATCH_MS;
+        }
+        if (flush) {
+            flushFound();
+        }
+    } // addFound
+
+    /**
+     * Delivers the pending found files if the oldest of them has
+     * waited long enough. This is run periodically during a search,
+     * so that a file found long before the next is not held back.
+     */
+    private void flushStale() {
+        boolean flush;
+        synchronized (this) {
+            flush = !pendingFound.isEmpty() && System.currentTimeMillis()
+                - pendingSince >= FOUND_BATCH_MS;
+        }
+        if (flush) {
+            flushFound();
+        }
+    } // flushStale
+
+    /**
+     * Delivers the pending found files to the listeners, if any. The
+     * listeners are called without the lock on this searcher, so that
+     * the other searching threads may go on adding found files; if a
+     * batch fills meanwhile, they wait for this delivery to finish.
+     */
+    protected void flushFound() {
+        synchronized (deliveryLock) {
+            List<FileFoundEvent> events;
+            synchronized (this) {
+                if (pendingFound.isEmpty()) {
+                    return;
+                }
+                events = Collections.unmodifiableList(pendingFound);
+                pendingFound = new ArrayList<FileFoundEvent>();
+            }
+            Object[] listeners = searchListeners.getListenerList();
+            for (int i = listeners.length - 2; i >= 0; i -= 2) {
+                if (listeners[i] == FileSearchListener.class) {
+                    FileSearchListener fsl =
+                        (FileSearchListener) listeners[i + 1];
+                    fsl.filesFound(events);
+                }
+            }
+        }
+    } // flushFound
+
+    /**
+     * Let all the file search listeners know that a file reported
+     * earlier no longer matches, or has been removed. Only files that
+     * were reported as found while watching for changes are sent.
+     *
+     * @param  match  file that no longer matches.
+     */
+    protected void fireRemoved(String match) {
+        if (searchListeners == null) {
+            return;
+        }
+        synchronized (this) {
+            if (watchedFiles == null || !watchedFiles.remove(match)) {
+                return;
+            }
+        }
+        synchronized (deliveryLock) {
+            // Keep the listeners' view in order.
+            flushFound();
+            FileFoundEvent event = new FileFoundEvent(this, match);
+            Object[] listeners = searchListeners.getListenerList();
+            for (int i = listeners.length - 2; i >= 0; i -= 2) {
+                if (listeners[i] == FileSearchListener.class) {
+                    FileSearchListener fsl =
+                        (FileSearchListener) listeners[i + 1];
+                    fsl.fileRemoved(event);
+                }
+            }
+        }
+    } // fireRemoved
+
+    /**
+     * Returns the statistics for the current search, or the most
+     * recent search if none is running.
+     *
+     * @return  search statistics, or null if no search has been run.
+     */
+    public SearchStats getStats() {
+        return stats;
+    } // getStats
+
+    /**
+     * Returns the number of threads used to perform a search.
+     *
+     * @return  search parallelism.
+     */
+    public int getParallelism() {
+        return parallelism;
+    } // getParallelism
+
     /**
      * Remove a file search listener from the listener list.
      *
@@ -166,7 +571,8 @@ class Searcher {
      * string. As matching files are found, FileFoundEvents will be
      * sent to the registered listeners. When the search is complete
      * the searchComplete() method of the registered listeners will be
-     * called.
+     * called. If watching for changes, the search continues until
+     * stopSearching() is called.
      *
      * @param  startIn    directory to start searching.
      * @param  target     string to look for in files.
@@ -176,168 +582,3738 @@ class Searcher {
      */
     public void search(File startIn, String target, String filter,
                        boolean recurse, String exclude) {
+        search(startIn, Collections.singletonList(target), filter,
+               recurse, exclude);
+    } // search
+
+    /**
+     * Search for files containing any of the given patterns, in a
+     * single pass over each file. If every pattern is a plain literal,
+     * or at least requires literal text, the text of all the patterns
+     * is looked for at once before any regex is run. When there is
+     * more than one pattern, the FileFoundEvent for each matching
+     * file tells which of the patterns were found in it.
+     *
+     * @param  startIn    directory to start searching.
+     * @param  targets    patterns to look for in files.
+     * @param  filter     filename filter pattern.
+     * @param  recurse    true to search in subdirectories.
+     * @param  exclude    directory exclude pattern.
+     */
+    public void search(File startIn, List<String> targets, String filter,
+                       boolean recurse, String exclude) {
+        stopSearch = false;
+        runSearch(startIn, targets, filter, recurse, exclude);
+    } // search
+
+    /**
+     * Starts a search for files containing any of the given patterns,
+     * as by search(), on a thread of its own. The future completes
+     * with the statistics of the search once it is done, after the
+     * listeners have been told, or exceptionally with the error that
+     * ended the search. Cancelling the future stops the search, which
+     * ends as soon as the scanning threads notice. Only one search may
+     * run at a time on each Searcher.
+     *
+     * @param  startIn    directory to start searching.
+     * @param  targets    patterns to look for in files.
+     * @param  filter     filename filter pattern.
+     * @param  recurse    true to search in subdirectories.
+     * @param  exclude    directory exclude pattern.
+     * @return  future completed when the search is done.
+     */
+    public CompletableFuture<SearchStats> searchAsync(final File startIn,
+            final List<String> targets, final String filter,
+            final boolean recurse, final String exclude) {
+        final CompletableFuture<SearchStats> future =
+            new CompletableFuture<SearchStats>() {
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    // Cancel first, lest the stopped search complete
+                    // the future in the meantime.
+                    boolean cancelled = super.cancel(mayInterruptIfRunning);
+                    stopSearching();
+                    return cancelled;
+                }
+            };
+        final FileSearchListener completion = new FileSearchListener() {
+            /** First error raised by the search, if any. */
+            private Throwable failure;
+
+            public void filesFound(List<FileFoundEvent> events) {
+            }
+
+            public void fileRemoved(FileFoundEvent event) {
+            }
+
+            public void searchComplete(SearchStats stats) {
+                removeSearchListener(this);
+                if (failure != null) {
+                    future.completeExceptionally(failure);
+                } else {
+                    future.complete(stats);
+                }
+            }
 
+            public void searchFailed(Throwable t) {
+                if (failure == null) {
+                    failure = t;
+                }
+            }
+        };
+        addSearchListener(completion);
+        // Clear the flag now, so that cancelling at once is not lost.
         stopSearch = false;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                runSearch(startIn, targets, filter, recurse, exclude);
+            }
+        }, "jrgrep-search");
+        thread.start();
+        return future;
+    } // searchAsync
+
+    /**
+     * Performs a search, as described for search(), without first
+     * clearing the stop flag.
+     *
+     * @param  startIn    directory to start searching.
+     * @param  targets    patterns to look for in files.
+     * @param  filter     filename filter pattern.
+     * @param  recurse    true to search in subdirectories.
+     * @param  exclude    directory exclude pattern.
+     */
+    private void runSearch(File startIn, List<String> targets,
+                           String filter, boolean recurse, String exclude) {
+        final SearchStats runStats = new SearchStats();
+        stats = runStats;
+        resultCount = 0;
+        ObjectName mbeanName = managed ? registerStats() : null;
+        // Delivers found files held back too long.
+        Timer timer = new Timer("jrgrep-timer", true);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                flushStale();
+            }
+        }, FOUND_BATCH_MS, FOUND_BATCH_MS);
+        // Ends the search at its deadline, if any. This has a timer of
+        // its own, as a listener may block the first in filesFound().
+        Timer deadline = null;
+        if (searchTimeout > 0) {
+            deadline = new Timer("jrgrep-deadline", true);
+            deadline.schedule(new TimerTask() {
+                public void run() {
+                    runStats.timedOut();
+                    stopSearching();
+                }
+            }, TimeUnit.NANOSECONDS.toMillis(searchTimeout));
+        }
 
         try {
-            targetPattern = Pattern.compile(target);
-            filterPattern = Pattern.compile(filter);
+            // Resolve the starting directory once; the paths of the
+            // entries within it are then canonical as they are built.
+            startIn = startIn.getCanonicalFile();
+            rootPrefix = "";
+            rootPrefix = relativeTo(startIn);
+            preparePatterns(targets);
+            nameFilter = new NameFilter(filter);
             if (exclude != null && exclude.length() > 0) {
                 excludePattern = Pattern.compile(exclude);
             }
+            if (watch && replacer == null) {
+                // Start watching before searching, so that changes
+                // made during the search are not missed.
+                startWatching(startIn, recurse);
+            }
             // Run the heart of the search algorithm.
-            searchLow(startIn, recurse);
+            if (virtualThreads) {
+                searchConcurrent(startIn, recurse);
+            } else if (parallelism > 1) {
+                searchParallel(startIn, recurse);
+            } else {
+                sequentialContext = new ScanContext();
+                searchLow(startIn, recurse);
+            }
+            if (watch && replacer == null) {
+                watchLow(startIn, recurse);
+            }
         } catch (IOException ioe) {
             fireError(ioe);
         } catch (PatternSyntaxException pse) {
             fireError(pse);
-        }
+        } catch (IllegalArgumentException iae) {
+            // The replacement does not suit the pattern.
+            fireError(iae);
+        } catch (RuntimeException re) {
+            // Fail the search, rather than leave it looking complete.
+            fireError(re);
+            throw re;
+        } catch (Error e) {
+            fireError(e);
+            throw e;
+        } finally {
+            // Whatever happened, the listeners hear of the end of the
+            // search exactly once.
+            stopWatching();
 
-        targetPattern = null;
-        targetMatcher = null;
-        filterPattern = null;
-        filterMatcher = null;
-        excludePattern = null;
-        excludeMatcher = null;
+            patternSet = null;
+            targetPattern = null;
+            singleLinePattern = null;
+            literalFinder = null;
+            literalSet = null;
+            indexQuery = null;
+            replacer = null;
+            singleLineReplacer = null;
+            bufferPattern = null;
+            nameFilter = null;
+            rootPrefix = null;
+            excludePattern = null;
+            sequentialContext = null;
 
-        fireDone();
-    } // search
+            timer.cancel();
+            if (deadline != null) {
+                deadline.cancel();
+            }
+            stats.finish();
+            if (mbeanName != null) {
+                unregisterStats(mbeanName);
+            }
+            fireDone();
+        }
+    } // runSearch
 
     /**
-     * Searches the given file to find a match.
+     * Registers the statistics of the search as an MBean with the
+     * platform MBean server, where they may be watched as the search
+     * runs. A failure to register is not fatal to the search.
      *
-     * @param  file  file to search.
-     * @return  true if match was found, false otherwise.
-     * @exception  IOException
-     *             if reading the file failed.
+     * @return  name under which the statistics were registered, or
+     *          null if they could not be.
      */
-    private boolean searchFile(File file) throws IOException {
-        FileInputStream fis = null;
-        FileChannel fc = null;
+    private ObjectName registerStats() {
         try {
-            // Create a CharBuffer from the file.
-            fis = new FileInputStream(file);
-            fc = fis.getChannel();
-            MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY,
-                                         0, fc.size());
-            CharBuffer cb = decoder.decode(bb);
-
-            // Grep the file for the pattern.
-            boolean matchFound = false;
-            if ((targetPattern.flags() & Pattern.DOTALL) != 0) {
-                if (targetMatcher == null) {
-                    targetMatcher = targetPattern.matcher(cb);
-                } else {
-                    targetMatcher.reset(cb);
-                }
-                // Does the pattern match this line?
-                if (targetMatcher.find()) {
-                    // Good, that's all we need to know.
-                    matchFound = true;
-                }
+            ObjectName name = new ObjectName(MBEAN_DOMAIN
+                + ":type=SearchStats,id="
+                + managedSearches.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                stats, name);
+            return name;
+        } catch (JMException jme) {
+            return null;
+        }
+    } // registerStats
 
-            } else {
-                Matcher lm = linePattern.matcher(cb);
-                while (!matchFound && lm.find()) {
-                    // Get a single line from the sequence.
-                    CharSequence cs = lm.group();
-                    if (targetMatcher == null) {
-                        targetMatcher = targetPattern.matcher(cs);
-                    } else {
-                        targetMatcher.reset(cs);
-                    }
-                    // Does the pattern match this line?
-                    if (targetMatcher.find()) {
-                        // Good, that's all we need to know.
-                        matchFound = true;
-                    }
-                    if (lm.end() == cb.limit()) {
-                        break;
-                    }
+    /**
+     * Removes the statistics registered by registerStats().
+     *
+     * @param  name  name under which the statistics were registered.
+     */
+    private static void unregisterStats(ObjectName name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException jme) {
+            // Already gone.
+        }
+    } // unregisterStats
+
+    /**
+     * Compiles the patterns to look for, along with the literal
+     * finder, index query, replacer, and whole-buffer pattern that
+     * go with them.
+     *
+     * @param  targets  patterns to look for.
+     * @throws  PatternSyntaxException
+     *          if a pattern is invalid.
+     * @throws  IllegalArgumentException
+     *          if the replacement does not suit the pattern.
+     */
+    private void preparePatterns(List<String> targets) {
+        patternSet = new PatternSet(targets);
+        targetPattern = patternSet.getPattern();
+        singleLinePattern = patternSet.getSingleLinePattern();
+        PatternAnalyzer analyzer = new PatternAnalyzer(targetPattern);
+        if (patternSet.size() > 1) {
+            prepareLiteralSet();
+        } else {
+            byte[] literal = toBytes(analyzer.getRequiredLiteral());
+            if (literal != null) {
+                literalFinder = new LiteralFinder(literal);
+                if (index != null) {
+                    indexQuery = index.query(literal);
                 }
             }
-            return matchFound;
-        } finally {
-            if (fc != null) {
-                fc.close();
+        }
+        if (replacement != null) {
+            replacer = new Replacer(targetPattern, replacement, dryRun);
+            if (singleLinePattern != null) {
+                singleLineReplacer = new Replacer(singleLinePattern,
+                                                  replacement, dryRun);
             }
-            if (fis != null) {
-                fis.close();
+        }
+        if (analyzer.isLineSafe()) {
+            bufferPattern = Pattern.compile(targetPattern.pattern(),
+                targetPattern.flags() | Pattern.MULTILINE);
+        }
+    } // preparePatterns
+
+    /**
+     * Prepares to search individual files for a pattern, exactly as
+     * each file is searched during a search, but without walking any
+     * directories or notifying the listeners. This lets the matching
+     * be measured on its own, as the benchmarks do.
+     *
+     * @param  target  pattern to look for.
+     * @return  matcher of files, for use on one thread at a time.
+     * @throws  PatternSyntaxException
+     *          if the pattern is invalid.
+     */
+    FileMatcher fileMatcher(String target) {
+        stats = new SearchStats();
+        preparePatterns(Collections.singletonList(target));
+        return new FileMatcher();
+    } // fileMatcher
+
+    /**
+     * Converts the literal text that every match of the pattern must
+     * contain to the bytes that represent it in the charset. ASCII
+     * text is the same in every supported charset; other text has no
+     * single form when the charset is chosen for each file.
+     *
+     * @param  literal  required literal, or null if none.
+     * @return  literal bytes, or null if there is no literal or it is
+     *          not representable in the charset.
+     */
+    private byte[] toBytes(String literal) {
+        if (literal == null) {
+            return null;
+        }
+        boolean ascii = true;
+        for (int ii = 0; ii < literal.length(); ii++) {
+            ascii &= literal.charAt(ii) < 0x80;
+        }
+        Charset cs = encoding == null
+            ? StandardCharsets.ISO_8859_1 : encoding;
+        if (ascii) {
+            cs = StandardCharsets.US_ASCII;
+        } else if (autoEncoding || !cs.newEncoder().canEncode(literal)) {
+            // Leave it to the regex engine to decide.
+            return null;
+        }
+        return literal.getBytes(cs);
+    } // toBytes
+
+    /**
+     * Prepares to look for the literal text required by each of the
+     * several patterns at once. This is only possible if every pattern
+     * requires some literal; if any may match without one, every line
+     * must be given to the regex. If every pattern is a plain literal,
+     * the same finder also tells which of them a file contains.
+     */
+    private void prepareLiteralSet() {
+        byte[][] literals = new byte[patternSet.size()][];
+        boolean plain = true;
+        for (int ii = 0; ii < literals.length; ii++) {
+            PatternAnalyzer analyzer = new PatternAnalyzer(
+                patternSet.getPattern(ii));
+            literals[ii] = toBytes(analyzer.getRequiredLiteral());
+            if (literals[ii] == null) {
+                return;
             }
+            plain &= analyzer.isLiteral();
         }
-    }
+        LiteralSetFinder finder = new LiteralSetFinder(literals);
+        literalFinder = finder;
+        if (plain) {
+            literalSet = finder;
+        }
+    } // prepareLiteralSet
 
     /**
-     * This is the recursive part of the search algorithm. Searches
-     * the directory for files containing target pattern.
+     * Searches the given file and notifies the listeners if it is
+     * found to match (or not to match, or counts the matches in it,
+     * depending on the report mode). Files that the content index
+     * rules out are skipped without being opened.
      *
-     * @param  startIn  directory to start searching.
-     * @param  recurse  true to search in subdirectories.
+     * @param  file      file to search.
+     * @param  filename  canonical path of the file.
+     * @param  attrs     attributes read when the file was listed, or
+     *                   null if not known.
+     * @param  context   matchers for the current thread.
      * @exception  IOException
-     *             if unable to read the files.
+     *             if reading the file failed.
      */
-    protected void searchLow(File startIn, boolean recurse) throws IOException {
+    private void scanFile(File file, String filename,
+                          BasicFileAttributes attrs, ScanContext context)
+        throws IOException {
+        context.startFile();
+        try {
+            scanFileLow(file, filename, attrs, context);
+        } catch (ScanInterrupted si) {
+            interrupted(filename, si);
+        }
+    }
 
-        // Get the listing of entries in this directory.
-        String[] files = startIn.list();
-        if (files == null) {
-            // Indicates this path was invalid.
-            return;
+    /**
+     * Notes that the scan of a file was cut short, reporting the file
+     * as timed out if it took too long.
+     *
+     * @param  filename  path of the file or archive entry.
+     * @param  si        reason the scan was cut short.
+     */
+    private void interrupted(String filename, ScanInterrupted si) {
+        if (si == SCAN_TIMED_OUT) {
+            stats.timedOutFile();
+            fireTimedOut(filename);
         }
+    }
 
-        for (int ii = 0; ii < files.length; ii++) {
-            if (stopSearch) {
-                break;
+    /**
+     * Searches the given file as described for scanFile(), within
+     * the time the context allows.
+     *
+     * @param  file      file to search.
+     * @param  filename  canonical path of the file.
+     * @param  attrs     attributes read when the file was listed, or
+     *                   null if not known.
+     * @param  context   matchers for the current thread.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    private void scanFileLow(File file, String filename,
+                             BasicFileAttributes attrs, ScanContext context)
+        throws IOException {
+        if (searchArchives && replacer == null
+            && archiveKind(filename) != ARCHIVE_NONE) {
+            // The index holds nothing of the compressed content.
+            scanArchive(file, filename, context);
+            return;
+        }
+        boolean matched;
+        if (indexQuery != null && !indexQuery.mayMatch(filename,
+                attrs == null ? file.length() : attrs.size(),
+                attrs == null ? file.lastModified()
+                : attrs.lastModifiedTime().toMillis())) {
+            // The index shows the file lacks the required literal.
+            stats.indexSkippedFile();
+            context.binary = false;
+            matched = false;
+        } else {
+            try {
+                matched = searchFile(file, filename, context);
+            } catch (FileNotFoundException fnfe) {
+                // Not readable, or removed since it was listed; skip
+                // it, as unreadable files always have been.
+                stats.error();
+                return;
             }
+        }
+        if (attrs != null && indexQuery != null) {
+            // Spared asking for the size and modified time.
+            stats.addSavedSyscalls(2);
+        }
+        report(filename, matched, new FileContent(file), context);
+    }
 
-            File file = new File(startIn, files[ii]);
-            if (file.isFile() && file.canRead()) {
-                // Match the filename against the filter.
-                String filename = file.getCanonicalPath();
-                if (filterMatcher == null) {
-                    filterMatcher = filterPattern.matcher(filename);
-                } else {
-                    filterMatcher.reset(filename);
-                }
-                if (!filterMatcher.find()) {
-                    // Skip this iteration.
-                    continue;
-                }
+    /**
+     * Tells what kind of archive the file is, by its name.
+     *
+     * @param  filename  path of the file.
+     * @return  one of the ARCHIVE_ constants.
+     */
+    private static int archiveKind(String filename) {
+        int dot = filename.lastIndexOf('.');
+        if (dot < 0) {
+            return ARCHIVE_NONE;
+        }
+        String ext = filename.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+        if (ext.equals("gz")) {
+            return ARCHIVE_GZIP;
+        } else if (ext.equals("zip") || ext.equals("jar")
+                   || ext.equals("war") || ext.equals("ear")) {
+            return ARCHIVE_ZIP;
+        }
+        return ARCHIVE_NONE;
+    } // archiveKind
 
+    /**
+     * Searches the content of a gzip file, or each entry of a zip
+     * archive, decompressing it as it is read through a buffer of
+     * fixed size. The entries are reported as archive!/entry, and are
+     * subject to the filename filter in that form; a gzip file is
+     * accepted by the filter with or without its .gz suffix. Large
+     * archives have their entries scanned in parallel when searching
+     * with several threads.
+     *
+     * @param  file      archive to search.
+     * @param  filename  canonical path of the archive.
+     * @param  context   matchers for the current thread.
+     * @exception  IOException
+     *             if reading the archive failed.
+     */
+    private void scanArchive(final File file, String filename,
+                             ScanContext context) throws IOException {
+        String relative = filename.startsWith(rootPrefix)
+            ? filename.substring(rootPrefix.length()) : filename;
+        if (archiveKind(filename) == ARCHIVE_GZIP) {
+            String inner = relative.substring(0, relative.length() - 3);
+            if (context.acceptFile(relative) || context.acceptFile(inner)) {
+                scanEntry(filename, new Content() {
+                    InputStream open() throws IOException {
+                        return new GZIPInputStream(
+                            new FileInputStream(file), SNIFF_SIZE);
+                    }
+                }, context);
+            }
+            return;
+        }
 
-                if (searchFile(file)) {
-                    fireFound(filename);
+        ZipFile zip;
+        try {
+            zip = new ZipFile(file);
+        } catch (FileNotFoundException fnfe) {
+            // Not readable, or removed since it was listed.
+            stats.error();
+            return;
+        } catch (ZipException ze) {
+            // Not truly a zip archive; leave it be.
+            stats.error();
+            return;
+        }
+        try {
+            List<ZipEntry> entries = new ArrayList<ZipEntry>();
+            Enumeration<? extends ZipEntry> en = zip.entries();
+            while (en.hasMoreElements()) {
+                ZipEntry entry = en.nextElement();
+                if (!entry.isDirectory() && context.acceptFile(
+                        relative + ENTRY_SEPARATOR + entry.getName())) {
+                    entries.add(entry);
                 }
-
-            } else if (recurse && file.isDirectory()) {
-                // Recursively search directories, but only if they
-                // are not excluded.
-                String dirname = file.getName();
-                if (excludePattern != null) {
-                    if (excludeMatcher == null) {
-                        excludeMatcher = excludePattern.matcher(dirname);
-                    } else {
-                        excludeMatcher.reset(dirname);
-                    }
-                    if (!excludeMatcher.find()) {
-                        searchLow(file, recurse);
+            }
+            if (ForkJoinTask.inForkJoinPool() && entries.size() > 1) {
+                // Divide the entries among tasks of about the same
+                // compressed size, which other threads may steal.
+                List<EntryTask> tasks = new ArrayList<EntryTask>();
+                int start = 0;
+                long batch = 0;
+                for (int ii = 0; ii < entries.size(); ii++) {
+                    batch += Math.max(entries.get(ii).getCompressedSize(), 1);
+                    if (batch >= ARCHIVE_BATCH_SIZE
+                        || ii == entries.size() - 1) {
+                        tasks.add(new EntryTask(zip, filename,
+                            entries.subList(start, ii + 1)));
+                        start = ii + 1;
+                        batch = 0;
                     }
-                } else {
-                    // There's no exclude pattern given.
-                    searchLow(file, recurse);
                 }
+                ForkJoinTask.invokeAll(tasks);
+            } else {
+                scanEntries(zip, filename, entries, context);
             }
+        } finally {
+            zip.close();
         }
-    } // searchLow
+    } // scanArchive
 
     /**
-     * Stops any running search. The running search will stop
-     * as soon as the search loop checks the stop flag.
-     * For this to be effective, this method must be called
-     * from a thread other than the one that initiated the
-     * search in the first place.
+     * Searches the given entries of a zip archive.
+     *
+     * @param  zip       archive holding the entries.
+     * @param  filename  canonical path of the archive.
+     * @param  entries   entries to search.
+     * @param  context   matchers for the current thread.
+     * @exception  IOException
+     *             if reading the archive failed.
      */
-    public void stopSearching() {
-        stopSearch = true;
-    } // stopSearching
+    private void scanEntries(final ZipFile zip, String filename,
+                             List<ZipEntry> entries, ScanContext context)
+        throws IOException {
+        for (final ZipEntry entry : entries) {
+            if (stopSearch) {
+                break;
+            }
+            scanEntry(filename + ENTRY_SEPARATOR + entry.getName(),
+                new Content() {
+                    InputStream open() throws IOException {
+                        return zip.getInputStream(entry);
+                    }
+                }, context);
+        }
+    } // scanEntries
+
+    /**
+     * Searches one entry of an archive and notifies the listeners.
+     *
+     * @param  path     path of the entry, as reported.
+     * @param  content  content of the entry.
+     * @param  context  matchers for the current thread.
+     * @exception  IOException
+     *             if reading the archive failed.
+     */
+    private void scanEntry(String path, Content content, ScanContext context)
+        throws IOException {
+        context.startFile();
+        try {
+            scanEntryLow(path, content, context);
+        } catch (ScanInterrupted si) {
+            interrupted(path, si);
+        }
+    } // scanEntry
+
+    /**
+     * Searches one entry of an archive, as described for scanEntry(),
+     * within the time the context allows.
+     *
+     * @param  path     path of the entry, as reported.
+     * @param  content  content of the entry.
+     * @param  context  matchers for the current thread.
+     * @exception  IOException
+     *             if reading the archive failed.
+     */
+    private void scanEntryLow(String path, Content content,
+                              ScanContext context) throws IOException {
+        boolean matched = false;
+        try {
+            for (int pass = 0; context.startPass(pass); pass++) {
+                InputStream in = content.open();
+                try {
+                    matched = searchStream(in, context);
+                } finally {
+                    in.close();
+                }
+                if (matched || context.binary) {
+                    break;
+                }
+            }
+        } catch (FileNotFoundException fnfe) {
+            // Not readable, or removed since it was listed.
+            stats.error();
+            return;
+        } catch (ZipException ze) {
+            // Corrupt data; treat the entry as if it did not exist.
+            stats.error();
+            return;
+        } catch (EOFException eofe) {
+            // Cut short; likewise.
+            stats.error();
+            return;
+        }
+        report(path, matched, content, context);
+    } // scanEntryLow
+
+    /**
+     * Notifies the listeners of the outcome of searching a file or an
+     * archive entry, according to the report mode. The content is read
+     * again only if the file matches and more must be known of it.
+     *
+     * @param  filename  path of the file or entry.
+     * @param  matched   true if a match was found.
+     * @param  content   content of the file or entry.
+     * @param  context   matchers for the current thread.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    private void report(String filename, boolean matched, Content content,
+                        ScanContext context) throws IOException {
+        long start = System.nanoTime();
+        try {
+            reportLow(filename, matched, content, context);
+        } finally {
+            stats.fileReported(System.nanoTime() - start);
+        }
+    } // report
+
+    /**
+     * Notifies the listeners of the outcome of searching a file or an
+     * archive entry, as described for report().
+     *
+     * @param  filename  path of the file or entry.
+     * @param  matched   true if a match was found.
+     * @param  content   content of the file or entry.
+     * @param  context   matchers for the current thread.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    private void reportLow(String filename, boolean matched,
+                           Content content, ScanContext context)
+        throws IOException {
+        if (context.binary) {
+            if (binaryMode == BINARY_REPORT) {
+                fireFound(filename, true);
+            } else {
+                fireRemoved(filename);
+            }
+        } else if (reportMode == REPORT_COUNT) {
+            if (matched && claimResult()) {
+                // Claiming the last file stops the search, but this
+                // file is still counted in full.
+                context.claimed = true;
+                stats.matchingFile();
+                stats.addMatches(countMatches(content, context));
+            }
+        } else if (matched == (reportMode == REPORT_MATCHING)) {
+            boolean reported = watchedFiles != null
+                && watchedFiles.contains(filename);
+            if (!reported && !claimResult()) {
+                // The search has reported as many files as it may,
+                // so neither look further nor change this file.
+                return;
+            }
+            context.claimed = true;
+            if (matched) {
+                stats.matchingFile();
+            }
+            List<MatchLocation> matches = null;
+            List<String> found = null;
+            int replacements = 0;
+            if (matched && maxLocations > 0) {
+                // Only now, knowing the file matches, find where.
+                matches = locateMatches(content, context);
+            }
+            if (matched && patternSet.size() > 1) {
+                // Before any replacing, tell which patterns matched.
+                found = identifyPatterns(content, context);
+            }
+            if (matched && replacer != null) {
+                replacements = content.replace();
+            }
+            fireFound(filename, false, matches, replacements, found);
+        } else {
+            if (matched) {
+                // Matching, but only those that do not are listed.
+                stats.matchingFile();
+            }
+            // If watching, the file may have been reported before.
+            fireRemoved(filename);
+        }
+    }
+
+    /**
+     * Searches the given file to find a match. The file is mapped
+     * into memory and matched in place, without being decoded. Files
+     * larger than the window size are mapped one window at a time.
+     * Binary files are set aside before being mapped, unless they
+     * are to be treated as text, and noted as such in the context.
+     *
+     * @param  file      file to search.
+     * @param  filename  canonical path of the file.
+     * @param  context   matchers for the current thread.
+     * @return  true if match was found, false otherwise.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    private boolean searchFile(File file, String filename,
+                               ScanContext context) throws IOException {
+        FileInputStream fis = null;
+        FileChannel fc = null;
+        context.binary = false;
+        long start = System.nanoTime();
+        long opened = 0;
+        long size = 0;
+        try {
+            fis = new FileInputStream(file);
+            fc = fis.getChannel();
+            if (needsSniff() && isBinary(fc, context)) {
+                stats.binaryFile();
+                context.binary = true;
+                return false;
+            }
+            // Map the file into memory.
+            size = fc.size();
+            long window = windowFor(size);
+            MappedByteBuffer bb = null;
+            if (window >= size) {
+                // Otherwise the windows are mapped as they are matched.
+                bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            opened = System.nanoTime();
+            boolean found = false;
+            for (int pass = 0; !found && context.startPass(pass); pass++) {
+                if (bb == null) {
+                    found = searchWindows(fc, size, (int) window, context);
+                } else {
+                    found = searchBuffer(bb, (int) size, context);
+                }
+            }
+            return found;
+        } finally {
+            // Let go of the mapped file.
+            context.release();
+            if (fc != null) {
+                fc.close();
+            }
+            if (fis != null) {
+                fis.close();
+            }
+            if (opened != 0) {
+                stats.fileScanned(size, opened - start,
+                                  System.nanoTime() - opened);
+            }
+        }
+    }
+
+    /**
+     * Passes the matches in the content to the locator until it is
+     * full, making the same passes over the content as the search.
+     *
+     * @param  content  content of the file.
+     * @param  locator  receives the matches.
+     * @param  context  matchers for the current thread.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    private void locateAll(Content content, Locator locator,
+                           ScanContext context) throws IOException {
+        for (int pass = 0; !locator.isFull() && context.startPass(pass);
+             pass++) {
+            locator.restart();
+            content.locate(locator, context);
+        }
+    }
+
+    /**
+     * Counts the matches in a file known to match.
+     *
+     * @param  content  content of the file.
+     * @param  context  matchers for the current thread.
+     * @return  number of matches.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    private long countMatches(Content content, ScanContext context)
+        throws IOException {
+        Locator locator = new Locator(true);
+        locateAll(content, locator, context);
+        return locator.getCount();
+    }
+
+    /**
+     * Finds the locations of the matches in a file known to match, up
+     * to the maximum number of locations.
+     *
+     * @param  content  content of the file.
+     * @param  context  matchers for the current thread.
+     * @return  list of match locations.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    private List<MatchLocation> locateMatches(Content content,
+                                              ScanContext context)
+        throws IOException {
+        Locator locator = new Locator(false);
+        locateAll(content, locator, context);
+        List<MatchLocation> matches = locator.getMatches();
+        if (singleLinePattern != null) {
+            // Put the matches of the two passes in order.
+            Collections.sort(matches, new Comparator<MatchLocation>() {
+                public int compare(MatchLocation a, MatchLocation b) {
+                    return Long.compare(a.getOffset(), b.getOffset());
+                }
+            });
+        }
+        return matches;
+    }
+
+    /**
+     * Finds which of the several patterns occur in a file known to
+     * match. Each pattern is looked for only until it is first found,
+     * and the search of the file ends once all have been found.
+     *
+     * @param  content  content of the file.
+     * @param  context  matchers for the current thread.
+     * @return  patterns found, in the order given.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    private List<String> identifyPatterns(Content content,
+                                          ScanContext context)
+        throws IOException {
+        Locator locator = new Locator(new BitSet(patternSet.size()));
+        locateAll(content, locator, context);
+        BitSet found = locator.getPatterns();
+        List<String> sources = patternSet.getSources();
+        List<String> patterns = new ArrayList<String>(found.cardinality());
+        for (int ii = found.nextSetBit(0); ii >= 0;
+             ii = found.nextSetBit(ii + 1)) {
+            patterns.add(sources.get(ii));
+        }
+        return patterns;
+    }
+
+    /**
+     * Finds the matches in a file, passing each to the locator until
+     * it is full. Matches are found in the same manner as by
+     * searchFile(), but every match is found rather than just the
+     * first.
+     *
+     * @param  file     file to search.
+     * @param  locator  receives the matches.
+     * @param  context  matchers for the current thread.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    private void locate(File file, Locator locator, ScanContext context)
+        throws IOException {
+        boolean dotall =
+            (context.targetPattern().flags() & Pattern.DOTALL) != 0;
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel fc = fis.getChannel();
+            long size = fc.size();
+            int window = (int) Math.min(windowFor(size), size);
+            int overlap = Math.min(maxMatchSpan, window / 2);
+            long pos = 0;
+            while (!locator.isFull()) {
+                boolean last = size - pos <= window;
+                int len = (int) Math.min(window, size - pos);
+                if (dotall) {
+                    long mapStart = pos == 0 ? 0 : pos - 1;
+                    long mapEnd = last ? size : pos + len + 1;
+                    MappedByteBuffer bb = fc.map(
+                        FileChannel.MapMode.READ_ONLY,
+                        mapStart, mapEnd - mapStart);
+                    locator.setWindow(bb, mapStart);
+                    int from = (int) (pos - mapStart);
+                    matchChunks(bb, 0, bb.limit(), from, from + len,
+                                from + len, locator, context);
+                    pos += len - overlap;
+                } else {
+                    MappedByteBuffer bb = fc.map(
+                        FileChannel.MapMode.READ_ONLY, pos, len);
+                    locator.setWindow(bb, pos);
+                    int end = len;
+                    if (!last) {
+                        while (end > 0 && bb.get(end - 1) != '\n') {
+                            end--;
+                        }
+                    }
+                    if (end == 0) {
+                        // A line longer than the window, matched in
+                        // parts as by searchWindows().
+                        pos = matchLongLine(fc, pos, size, window,
+                                            locator, context);
+                        last = pos == size;
+                    } else {
+                        CharSequence cs = new ByteCharSequence(bb, 0, end);
+                        context.prepare(bb, 0, end);
+                        Matcher lm = context.lines(cs);
+                        while (!locator.isFull() && lm.find()) {
+                            context.tick(lm.end() - lm.start());
+                            CharSequence line = cs.subSequence(
+                                lm.start(), lm.end());
+                            locateIn(line, lm.start(), locator, context);
+                            if (lm.end() == end) {
+                                break;
+                            }
+                        }
+                        pos += end;
+                    }
+                }
+                if (last) {
+                    break;
+                }
+            }
+        } finally {
+            context.release();
+            fis.close();
+        }
+    }
+
+    /**
+     * Adds the locations of the matches in the given characters to
+     * the locator, until it is full. The characters are decoded if
+     * need be, and the matches located by their bytes.
+     *
+     * @param  cs       characters to search.
+     * @param  start    index of the characters within the window.
+     * @param  locator  receives the match locations.
+     * @param  context  matchers for the current thread.
+     */
+    private void locateIn(CharSequence cs, int start, Locator locator,
+                          ScanContext context) {
+        if (context.decoding && cs.length() > DECODE_CHUNK) {
+            // Too long to be decoded at once.
+            ByteBuffer bb = ((ByteCharSequence) cs).bytes();
+            matchChunks(bb, bb.position(), bb.limit(), bb.position(),
+                        bb.limit(), bb.limit(), locator, context);
+            return;
+        }
+        if (locator.getPatterns() != null) {
+            identifyIn(cs, 0, cs.length(), locator, context);
+            return;
+        }
+        Matcher targetMatcher = context.target(context.text(cs));
+        while (!locator.isFull() && targetMatcher.find()) {
+            locator.add(start + context.byteIndex(targetMatcher.start()),
+                        start + context.byteIndex(targetMatcher.end()));
+        }
+    }
+
+    /**
+     * Notes in the locator which of the patterns not yet found occur
+     * within the given region of the characters. The characters
+     * outside the region are visible to anchors and lookaround.
+     *
+     * @param  cs       characters to search.
+     * @param  from     index at which the region starts.
+     * @param  to       index at which the region ends (exclusive).
+     * @param  locator  receives the patterns found.
+     * @param  context  matchers for the current thread.
+     */
+    private void identifyIn(CharSequence cs, int from, int to,
+                            Locator locator, ScanContext context) {
+        BitSet found = locator.getPatterns();
+        if (literalSet != null) {
+            literalSet.collect(cs, from, to, found);
+            return;
+        }
+        if (context.decoding) {
+            cs = context.text(cs);
+            from = context.charIndex(from);
+            to = context.charIndex(to);
+        }
+        int count = patternSet.size();
+        for (int ii = found.nextClearBit(0); ii < count;
+             ii = found.nextClearBit(ii + 1)) {
+            if (patternSet.isSingleLine(ii) != context.singleLine) {
+                // Looked for in the other pass.
+                continue;
+            }
+            Matcher matcher = context.pattern(ii, cs);
+            matcher.useAnchoringBounds(false);
+            matcher.useTransparentBounds(true);
+            matcher.region(from, to);
+            if (matcher.find()) {
+                found.set(ii);
+            }
+        }
+    }
+
+    /**
+     * Indicates whether the first block of each file must be examined,
+     * either to decide if the file is binary, or to choose the charset
+     * in which it is decoded.
+     *
+     * @return  true if each file is to be sniffed.
+     */
+    private boolean needsSniff() {
+        return binaryMode != BINARY_TEXT || encoding != null || autoEncoding;
+    }
+
+    /**
+     * Examines the first block of the file to decide if it is binary,
+     * that is, it contains NUL bytes or sequences that are invalid in
+     * the charset, and to choose the charset of the file.
+     *
+     * @param  fc       channel of the file to examine.
+     * @param  context  buffers and decoder for the current thread.
+     * @return  true if file appears to be binary.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    private boolean isBinary(FileChannel fc, ScanContext context)
+        throws IOException {
+        ByteBuffer block = context.sniffBytes;
+        block.clear();
+        while (block.hasRemaining()
+               && fc.read(block, block.position()) > 0) {
+            // Keep reading until the block is full or the file ends.
+        }
+        block.flip();
+        return isBinary(block, context);
+    }
+
+    /**
+     * Decides if the given block, the first of a file, shows the file
+     * to be binary, and chooses the charset of the file. Binary files
+     * are only ever reported as such when not searching them as text.
+     *
+     * @param  block    first block of the file, from its position to
+     *                  its limit; the block is consumed.
+     * @param  context  buffers and decoder for the current thread.
+     * @return  true if file appears to be binary.
+     */
+    private boolean isBinary(ByteBuffer block, ScanContext context) {
+        boolean valid = context.chooseCharset(block.duplicate());
+        if (binaryMode == BINARY_TEXT) {
+            return false;
+        }
+        int limit = block.limit();
+        for (int ii = block.position(); ii < limit; ii++) {
+            if (block.get(ii) == 0) {
+                return true;
+            }
+        }
+        return !valid;
+    }
+
+    /**
+     * Searches the bytes in the buffer for a match.
+     *
+     * @param  bb       bytes to search.
+     * @param  limit    number of bytes to search.
+     * @param  context  matchers for the current thread.
+     * @return  true if match was found, false otherwise.
+     */
+    private boolean searchBuffer(ByteBuffer bb, int limit,
+                                 ScanContext context) {
+        boolean dotall =
+            (context.targetPattern().flags() & Pattern.DOTALL) != 0;
+        if (literalFinder != null) {
+            if (!dotall) {
+                return searchLiteralLines(bb, limit, context);
+            }
+            if (literalFinder.indexOf(bb, 0, limit) < 0) {
+                // Without the literal there cannot be a match.
+                return false;
+            }
+        }
+        CharSequence cs = new ByteCharSequence(bb, 0, limit);
+        context.prepare(bb, 0, limit);
+
+        // Grep the bytes for the pattern.
+        if (dotall) {
+            // Does the pattern match anywhere in the file?
+            return matchChunks(bb, 0, limit, 0, limit, limit, null, context);
+        } else if (bufferPattern != null && !context.decoding) {
+            // The bytes may only be matched as they are if they need
+            // no decoding.
+            return searchBufferLines(bb, limit, context);
+        } else {
+            return searchLines(cs, context);
+        }
+    }
+
+    /**
+     * Searches the buffer in line mode by running the target pattern,
+     * in MULTILINE mode, once over the entire buffer. Only when the
+     * pattern finds a match is the line containing it searched by
+     * searchLines(), which decides whether the line truly matches.
+     * This gives the same results as searching every line, provided
+     * the pattern is line safe, without the per-line overhead.
+     *
+     * @param  bb       bytes to search.
+     * @param  limit    number of bytes to search.
+     * @param  context  matchers for the current thread.
+     * @return  true if match was found, false otherwise.
+     * @see PatternAnalyzer#isLineSafe
+     */
+    private boolean searchBufferLines(ByteBuffer bb, int limit,
+                                      ScanContext context) {
+        // A final line that lacks a terminator is not searched.
+        int end = limit;
+        while (end > 0 && bb.get(end - 1) != '\n') {
+            end--;
+        }
+        CharSequence cs = new ByteCharSequence(bb, 0, end);
+        Matcher bufferMatcher = context.buffer(cs);
+        bufferMatcher.useAnchoringBounds(false);
+        bufferMatcher.useTransparentBounds(true);
+        int from = 0;
+        while (from < end) {
+            // Match a region of whole lines at a time, so that the
+            // scan may be stopped between regions; a line that truly
+            // matches holds a match within its own region.
+            int to = from + CHECK_INTERVAL;
+            if (to >= end) {
+                to = end;
+            } else {
+                while (bb.get(to - 1) != '\n') {
+                    to++;
+                }
+            }
+            bufferMatcher.region(from, to);
+            if (!bufferMatcher.find()) {
+                context.tick(to - from);
+                from = to;
+                continue;
+            }
+            int hit = bufferMatcher.start();
+            if (hit >= end) {
+                break;
+            }
+            context.tick(hit - from);
+            int start = hit;
+            while (start > 0 && bb.get(start - 1) != '\n') {
+                start--;
+            }
+            int next = hit;
+            while (bb.get(next) != '\n') {
+                next++;
+            }
+            next++;
+            if (searchLines(cs.subSequence(start, next), context)) {
+                return true;
+            }
+            from = next;
+        }
+        return false;
+    }
+
+    /**
+     * Searches the file one window at a time, so that only a fixed
+     * amount of memory is mapped regardless of the size of the file.
+     * In line mode, each window ends at a line boundary, so that no
+     * line is split; a line longer than the window is matched by
+     * matchLongLine(). In DOTALL mode, the windows overlap by the
+     * maximum match span.
+     *
+     * @param  fc       channel of the file to search.
+     * @param  size     size of the file.
+     * @param  window   size of each window.
+     * @param  context  matchers for the current thread.
+     * @return  true if match was found, false otherwise.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    private boolean searchWindows(FileChannel fc, long size, int window,
+                                  ScanContext context) throws IOException {
+        boolean dotall =
+            (context.targetPattern().flags() & Pattern.DOTALL) != 0;
+        int overlap = Math.min(maxMatchSpan, window / 2);
+        long pos = 0;
+        while (!stopSearch) {
+            boolean last = size - pos <= window;
+            int len = (int) Math.min(window, size - pos);
+            if (dotall) {
+                // Map a byte either side of the window so that anchors
+                // and lookaround see the adjoining text.
+                long mapStart = pos == 0 ? 0 : pos - 1;
+                long mapEnd = last ? size : pos + len + 1;
+                MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY,
+                                             mapStart, mapEnd - mapStart);
+                int from = (int) (pos - mapStart);
+                if (literalFinder != null
+                    && literalFinder.indexOf(bb, from, from + len) < 0) {
+                    context.tick(len);
+                } else if (matchChunks(bb, 0, bb.limit(), from, from + len,
+                                       from + len, null, context)) {
+                    return true;
+                }
+                pos += len - overlap;
+            } else {
+                MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY,
+                                             pos, len);
+                int end = len;
+                if (!last) {
+                    // End the window after its last line terminator.
+                    while (end > 0 && bb.get(end - 1) != '\n') {
+                        end--;
+                    }
+                }
+                if (end == 0) {
+                    // The line is longer than the window.
+                    pos = matchLongLine(fc, pos, size, window, null,
+                                        context);
+                    if (pos < 0) {
+                        return true;
+                    }
+                    last = pos == size;
+                } else if (searchBuffer(bb, end, context)) {
+                    return true;
+                } else {
+                    pos += end;
+                }
+            }
+            if (last) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the end of the line that continues at the given offset of
+     * the file, reading it one window at a time.
+     *
+     * @param  fc      channel of the file.
+     * @param  from    offset at which to look for the line terminator.
+     * @param  size    size of the file.
+     * @param  window  size of each window.
+     * @return  offset after the line terminator, or -1 if the file
+     *          ends without one.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    static long lineEnd(FileChannel fc, long from, long size, int window)
+        throws IOException {
+        long pos = from;
+        while (pos < size) {
+            int len = (int) Math.min(window, size - pos);
+            MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY,
+                                         pos, len);
+            for (int ii = 0; ii < len; ii++) {
+                if (bb.get(ii) == '\n') {
+                    return pos + ii + 1;
+                }
+            }
+            pos += len;
+        }
+        return -1;
+    }
+
+    /**
+     * Matches a line longer than the window, one part at a time. The
+     * parts overlap by the maximum match span, as the windows do in
+     * DOTALL mode, and each is matched with a few bytes of the line
+     * either side of it, so that a match is found whichever parts it
+     * falls across. A final line that lacks a line terminator is not
+     * searched, as in searchLines().
+     *
+     * @param  fc       channel of the file.
+     * @param  pos      offset at which the line begins.
+     * @param  size     size of the file.
+     * @param  window   size of each window.
+     * @param  locator  receives the matches, or null if searching.
+     * @param  context  matchers for the current thread.
+     * @return  offset after the line, or -1 if searching and a match
+     *          was found.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    private long matchLongLine(FileChannel fc, long pos, long size,
+                               int window, Locator locator,
+                               ScanContext context) throws IOException {
+        long lineEnd = lineEnd(fc, pos + window, size, window);
+        if (lineEnd < 0) {
+            return size;
+        }
+        int overlap = Math.min(maxMatchSpan, window / 2);
+        long from = pos;
+        while (true) {
+            long to = Math.min(lineEnd, from + window);
+            long mapStart = Math.max(pos, from - LINE_CONTEXT);
+            long mapEnd = Math.min(lineEnd, to + LINE_CONTEXT);
+            MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY,
+                                         mapStart, mapEnd - mapStart);
+            long commit = to == lineEnd ? to : to - overlap;
+            if (locator != null) {
+                locator.setWindow(bb, mapStart);
+            }
+            if (matchChunks(bb, 0, bb.limit(), (int) (from - mapStart),
+                            (int) (to - mapStart), (int) (commit - mapStart),
+                            locator, context)) {
+                return -1;
+            }
+            if (to == lineEnd || locator != null && locator.isFull()) {
+                return lineEnd;
+            }
+            from = commit;
+        }
+    }
+
+    /**
+     * Matches a region of the given bytes in chunks of at most
+     * DECODE_CHUNK bytes, if the region needs decoding, so that the
+     * decoded text is of bounded size however long the region. The
+     * chunks overlap by the maximum match span, as the windows do in
+     * DOTALL mode, and each is matched by matchPart() with a few bytes
+     * either side of it. When locating, only matches that begin before
+     * the given index are added.
+     *
+     * @param  bb       bytes holding the region.
+     * @param  start    index of the first byte visible to anchors and
+     *                  lookaround.
+     * @param  end      index after the last visible byte.
+     * @param  from     index at which the region begins.
+     * @param  to       index at which the region ends (exclusive).
+     * @param  commit   index before which matches are located.
+     * @param  locator  receives the matches, or null if searching.
+     * @param  context  matchers for the current thread.
+     * @return  true if searching and a match was found.
+     */
+    private boolean matchChunks(ByteBuffer bb, int start, int end, int from,
+                                int to, int commit, Locator locator,
+                                ScanContext context) {
+        // Leave the caller's view of its bytes as it was.
+        boolean decoding = context.decoding;
+        try {
+            context.prepare(bb, from, to);
+            long chunk = context.decoding ? DECODE_CHUNK : to - from;
+            int overlap = Math.min(maxMatchSpan, DECODE_CHUNK / 2);
+            int pos = from;
+            while (true) {
+                int stop = (int) Math.min(to, pos + chunk);
+                boolean last = stop == to;
+                int next = stop - overlap;
+                if (matchPart(bb, Math.max(start, pos - LINE_CONTEXT),
+                              Math.min(end, stop + LINE_CONTEXT), pos, stop,
+                              last ? commit : Math.min(next, commit),
+                              locator, context)) {
+                    return true;
+                }
+                if (last || locator != null
+                    && (locator.isFull() || next >= commit)) {
+                    return false;
+                }
+                pos = next;
+            }
+        } finally {
+            context.decoding = decoding;
+        }
+    }
+
+    /**
+     * Matches one part of a long line or window, as a region of the
+     * given bytes, decoded if need be. The bytes either side of the
+     * region are visible to anchors and lookaround. When locating,
+     * only matches that begin before the given index are added, the
+     * others being found again in the next part.
+     *
+     * @param  bb       bytes holding the part.
+     * @param  start    index of the first byte visible to anchors and
+     *                  lookaround.
+     * @param  end      index after the last visible byte.
+     * @param  from     index at which the part begins.
+     * @param  to       index at which the part ends (exclusive).
+     * @param  commit   index before which matches are located.
+     * @param  locator  receives the matches, or null if searching.
+     * @param  context  matchers for the current thread.
+     * @return  true if searching and a match was found.
+     */
+    private boolean matchPart(ByteBuffer bb, int start, int end, int from,
+                              int to, int commit, Locator locator,
+                              ScanContext context) {
+        // The part is matched in one go; the scan may be stopped
+        // between parts.
+        context.tick(to - from);
+        CharSequence cs = new ByteCharSequence(bb, start, end - start);
+        context.prepare(bb, start, end);
+        if (locator != null && locator.getPatterns() != null) {
+            identifyIn(cs, from - start, to - start, locator, context);
+            return false;
+        }
+        CharSequence text = context.text(cs);
+        from = context.charIndex(from - start);
+        commit = context.charIndex(commit - start);
+        to = context.charIndex(to - start);
+        Matcher targetMatcher = context.target(text);
+        targetMatcher.useAnchoringBounds(false);
+        targetMatcher.useTransparentBounds(true);
+        targetMatcher.region(from, to);
+        if (locator == null) {
+            return targetMatcher.find();
+        }
+        while (!locator.isFull() && targetMatcher.find()
+               && targetMatcher.start() < commit) {
+            locator.add(start + context.byteIndex(targetMatcher.start()),
+                        start + context.byteIndex(targetMatcher.end()));
+        }
+        return false;
+    }
+
+    /**
+     * Searches the characters one line at a time, running the target
+     * pattern against each line in turn. A final line that lacks a
+     * line terminator is not searched.
+     *
+     * @param  cs       characters to search.
+     * @param  context  matchers for the current thread.
+     * @return  true if match was found, false otherwise.
+     */
+    private boolean searchLines(CharSequence cs, ScanContext context) {
+        boolean matchFound = false;
+        Matcher lm = context.lines(cs);
+        int length = cs.length();
+        while (!matchFound && lm.find()) {
+            context.tick(lm.end() - lm.start());
+            // Get a single line from the sequence.
+            CharSequence line = cs.subSequence(lm.start(), lm.end());
+            if (context.decoding && line.length() > DECODE_CHUNK) {
+                // Too long to be decoded at once.
+                ByteBuffer bb = ((ByteCharSequence) line).bytes();
+                matchFound = matchChunks(bb, bb.position(), bb.limit(),
+                    bb.position(), bb.limit(), bb.limit(), null, context);
+                continue;
+            }
+            Matcher targetMatcher = context.target(context.text(line));
+            // Does the pattern match this line?
+            if (targetMatcher.find()) {
+                // Good, that's all we need to know.
+                matchFound = true;
+            }
+            if (lm.end() == length) {
+                break;
+            }
+        }
+        return matchFound;
+    }
+
+    /**
+     * Searches the buffer for the literal required by the target
+     * pattern, running the pattern against only those lines that
+     * contain the literal. The lines are searched exactly as in
+     * searchLines(), so the results are the same, but files lacking
+     * the literal are rejected without running the regex at all.
+     *
+     * @param  bb       bytes to search.
+     * @param  limit    number of bytes to search.
+     * @param  context  matchers for the current thread.
+     * @return  true if match was found, false otherwise.
+     */
+    private boolean searchLiteralLines(ByteBuffer bb, int limit,
+                                       ScanContext context) {
+        int from = 0;
+        while (from < limit) {
+            int hit = literalFinder.indexOf(bb, from, limit);
+            if (hit < 0) {
+                return false;
+            }
+            context.tick(hit - from);
+            int start = hit;
+            while (start > 0 && bb.get(start - 1) != '\n') {
+                start--;
+            }
+            int end = hit;
+            while (end < limit && bb.get(end) != '\n') {
+                end++;
+            }
+            if (end == limit) {
+                // The final line lacks a terminator.
+                return false;
+            }
+            end++;
+            CharSequence line = new ByteCharSequence(bb, start, end - start);
+            context.prepare(bb, start, end);
+            if (searchLines(line, context)) {
+                return true;
+            }
+            from = end;
+        }
+        return false;
+    }
+
+    /**
+     * Reads from the stream into the buffer until the buffer is full
+     * or the stream ends.
+     *
+     * @param  in     stream to read.
+     * @param  bb     buffer to fill, from the given index on.
+     * @param  start  number of bytes already in the buffer.
+     * @return  number of bytes in the buffer.
+     * @exception  IOException
+     *             if reading the stream failed.
+     */
+    private static int fill(InputStream in, ByteBuffer bb, int start)
+        throws IOException {
+        byte[] array = bb.array();
+        int len = start;
+        while (len < array.length) {
+            int n = in.read(array, len, array.length - len);
+            if (n < 0) {
+                break;
+            }
+            len += n;
+        }
+        return len;
+    }
+
+    /**
+     * Searches a stream for a match, one buffer at a time, as
+     * searchWindows() searches a file one window at a time. In line
+     * mode, each buffer ends after its last line terminator, and the
+     * partial line left over begins the next; in DOTALL mode, the end
+     * of each buffer is kept to overlap the next by the maximum match
+     * span. Binary content is noted as such in the context.
+     *
+     * @param  in       stream to search.
+     * @param  context  matchers and buffer for the current thread.
+     * @return  true if match was found, false otherwise.
+     * @exception  IOException
+     *             if reading the stream failed.
+     */
+    private boolean searchStream(InputStream in, ScanContext context)
+        throws IOException {
+        boolean dotall =
+            (context.targetPattern().flags() & Pattern.DOTALL) != 0;
+        ByteBuffer bb = context.streamBuffer();
+        int capacity = bb.capacity();
+        int overlap = Math.min(maxMatchSpan, capacity / 2);
+        long start = System.nanoTime();
+        int len = fill(in, bb, 0);
+        long total = len;
+        context.binary = false;
+        if (needsSniff()) {
+            ByteBuffer block = bb.duplicate();
+            block.limit(Math.min(len, SNIFF_SIZE));
+            if (isBinary(block, context)) {
+                stats.binaryFile();
+                context.binary = true;
+                return false;
+            }
+        }
+        // Index at which the next part of a line longer than the
+        // buffer begins, or -1 if not within such a line.
+        int part = -1;
+        // True if a part of the current long line matched.
+        boolean partFound = false;
+        try {
+            while (!stopSearch) {
+                boolean last = len < capacity;
+                int keep;
+                if (dotall) {
+                    if (literalFinder != null
+                        && literalFinder.indexOf(bb, 0, len) < 0) {
+                        context.tick(len - overlap);
+                    } else if (matchChunks(bb, 0, len, 0, len, len, null,
+                                           context)) {
+                        return true;
+                    }
+                    keep = overlap;
+                } else {
+                    int end = len;
+                    if (!last && part < 0) {
+                        while (end > 0 && bb.get(end - 1) != '\n') {
+                            end--;
+                        }
+                    }
+                    if (part < 0 && (end > 0 || last)) {
+                        if (searchBuffer(bb, end, context)) {
+                            return true;
+                        }
+                        keep = len - end;
+                    } else {
+                        // A line longer than the buffer, matched in
+                        // overlapping parts as by matchLongLine().
+                        if (part < 0) {
+                            part = 0;
+                            partFound = false;
+                        }
+                        int nl = part;
+                        while (nl < len && bb.get(nl) != '\n') {
+                            nl++;
+                        }
+                        if (nl < len) {
+                            end = nl + 1;
+                            if (partFound || matchChunks(bb, 0, end, part,
+                                                         end, end, null,
+                                                         context)) {
+                                return true;
+                            }
+                            keep = len - end;
+                            part = -1;
+                        } else if (last) {
+                            // The line lacks a terminator, and so is
+                            // not searched.
+                            break;
+                        } else {
+                            int to = len - LINE_CONTEXT;
+                            int commit = to - overlap;
+                            if (!partFound) {
+                                partFound = matchChunks(bb, 0, len, part, to,
+                                                        commit, null,
+                                                        context);
+                            }
+                            keep = len - commit + LINE_CONTEXT;
+                            part = LINE_CONTEXT;
+                        }
+                    }
+                }
+                // In line mode, what is kept is searched even if
+                // nothing more is read, as it may hold the lines that
+                // follow a long one.
+                if (last && (dotall || keep == 0)) {
+                    break;
+                }
+                System.arraycopy(bb.array(), len - keep, bb.array(), 0, keep);
+                len = fill(in, bb, keep);
+                total += len - keep;
+                if (len == keep && (dotall || keep == 0)) {
+                    // Nothing more was read.
+                    break;
+                }
+            }
+            return false;
+        } finally {
+            context.release();
+            // Reading is part of matching, as the content is
+            // decompressed as it is read.
+            long matching = System.nanoTime() - start;
+            if (context.singleLine) {
+                // Counted already, in the first pass.
+                stats.scannedAgain(matching);
+            } else {
+                stats.fileScanned(total, 0, matching);
+            }
+        }
+    }
+
+    /**
+     * Finds the matches in a stream, passing each to the locator until
+     * it is full. The stream is read one buffer at a time, exactly as
+     * by searchStream(), and the matches are found in the same manner
+     * as by locate().
+     *
+     * @param  in       stream to search.
+     * @param  locator  receives the matches.
+     * @param  context  matchers and buffer for the current thread.
+     * @exception  IOException
+     *             if reading the stream failed.
+     */
+    private void locateStream(InputStream in, Locator locator,
+                              ScanContext context) throws IOException {
+        boolean dotall =
+            (context.targetPattern().flags() & Pattern.DOTALL) != 0;
+        ByteBuffer bb = context.streamBuffer();
+        int capacity = bb.capacity();
+        int overlap = Math.min(maxMatchSpan, capacity / 2);
+        int len = fill(in, bb, 0);
+        long base = 0;
+        locator.setWindow(bb, base);
+        // Index at which the next part of a line longer than the
+        // buffer begins, or -1 if not within such a line.
+        int part = -1;
+        try {
+            while (!locator.isFull()) {
+                boolean last = len < capacity;
+                int keep;
+                if (dotall) {
+                    matchChunks(bb, 0, len, 0, len, len, locator, context);
+                    keep = overlap;
+                } else {
+                    int end = len;
+                    if (!last && part < 0) {
+                        while (end > 0 && bb.get(end - 1) != '\n') {
+                            end--;
+                        }
+                    }
+                    if (part >= 0 || end == 0 && !last) {
+                        // A line longer than the buffer, matched in
+                        // parts as by searchStream().
+                        if (part < 0) {
+                            part = 0;
+                            locator.mark();
+                        }
+                        int nl = part;
+                        while (nl < len && bb.get(nl) != '\n') {
+                            nl++;
+                        }
+                        if (nl < len) {
+                            end = nl + 1;
+                            matchChunks(bb, 0, end, part, end, end, locator,
+                                        context);
+                            keep = len - end;
+                            part = -1;
+                        } else if (last) {
+                            // The line lacks a terminator, and so is
+                            // not searched.
+                            locator.rollback();
+                            break;
+                        } else {
+                            int to = len - LINE_CONTEXT;
+                            int commit = to - overlap;
+                            matchChunks(bb, 0, len, part, to, commit,
+                                        locator, context);
+                            keep = len - commit + LINE_CONTEXT;
+                            part = LINE_CONTEXT;
+                        }
+                    } else {
+                        CharSequence cs = new ByteCharSequence(bb, 0, end);
+                        context.prepare(bb, 0, end);
+                        Matcher lm = context.lines(cs);
+                        while (!locator.isFull() && lm.find()) {
+                            context.tick(lm.end() - lm.start());
+                            CharSequence line = cs.subSequence(
+                                lm.start(), lm.end());
+                            locateIn(line, lm.start(), locator, context);
+                            if (lm.end() == end) {
+                                break;
+                            }
+                        }
+                        keep = len - end;
+                    }
+                }
+                // As in searchStream(), the lines kept are located even
+                // if nothing more is read.
+                if (last && (dotall || keep == 0)) {
+                    break;
+                }
+                // Let the locator count the lines in what is dropped
+                // before the buffer is refilled.
+                base += len - keep;
+                locator.setWindow(bb, base);
+                System.arraycopy(bb.array(), len - keep, bb.array(), 0, keep);
+                len = fill(in, bb, keep);
+                if (len == keep && (dotall || keep == 0)) {
+                    break;
+                }
+            }
+        } finally {
+            context.release();
+        }
+    }
+
+    /**
+     * This is the recursive part of the search algorithm. Searches
+     * the directory for files containing target pattern.
+     *
+     * @param  startIn  directory to start searching.
+     * @param  recurse  true to search in subdirectories.
+     * @exception  IOException
+     *             if unable to read the files.
+     */
+    protected void searchLow(File startIn, boolean recurse) throws IOException {
+        searchLow(startIn, relativeTo(startIn), recurse,
+                  ignoreRulesFor(startIn));
+    } // searchLow
+
+    /**
+     * This is the recursive part of the search algorithm. Searches
+     * the directory for files containing target pattern.
+     *
+     * @param  startIn   directory to start searching.
+     * @param  relative  path of the directory relative to the starting
+     *                   directory, with a trailing separator.
+     * @param  recurse   true to search in subdirectories.
+     * @param  rules     ignore rules that apply to the directory, or
+     *                   null if not using ignore files.
+     * @exception  IOException
+     *             if unable to read the files.
+     */
+    private void searchLow(File startIn, String relative, boolean recurse,
+                           IgnoreRules rules) throws IOException {
+
+        // Get the listing of entries in this directory, with the
+        // files already matched against the filter.
+        List<DirEntry> entries = listDirectory(startIn, relative, recurse,
+                                               rules, sequentialContext);
+        if (entries == null) {
+            // Indicates this path was invalid.
+            return;
+        }
+
+        for (DirEntry entry : entries) {
+            if (stopSearch) {
+                break;
+            }
+
+            if (entry.attrs.isRegularFile()) {
+                String filename = entry.file.getPath();
+                if (fileExecutor != null) {
+                    submitFile(entry.file, filename, entry.attrs);
+                } else {
+                    scanFile(entry.file, filename, entry.attrs,
+                             sequentialContext);
+                }
+            } else {
+                // Recursively search directories that are not excluded.
+                searchLow(entry.file, entry.relative, recurse, entry.rules);
+            }
+        }
+    } // searchLow
+
+    /**
+     * Lists the files in the given directory, and the subdirectories
+     * if recursing, reading the attributes of each entry just once.
+     * As the directory is canonical, so are the paths of its entries,
+     * except for symbolic links, which are resolved here. Entries that
+     * are neither files nor directories, or that vanish while being
+     * listed, are left out, as are the files the filename filter does
+     * not accept, the directories that are excluded, and those the
+     * ignore rules exclude. The filter is matched against the relative
+     * path, so that no path is built for a file it does not accept.
+     *
+     * @param  dir       canonical path of the directory to list.
+     * @param  relative  path of the directory relative to the starting
+     *                   directory, with a trailing separator.
+     * @param  recurse   true to include subdirectories.
+     * @param  rules     ignore rules that apply to the directory, or
+     *                   null if not using ignore files.
+     * @param  context   matchers for the current thread.
+     * @return  the entries, or null if the directory could not be
+     *          listed.
+     */
+    private List<DirEntry> listDirectory(File dir, String relative,
+                                         boolean recurse, IgnoreRules rules,
+                                         ScanContext context) {
+        long start = System.nanoTime();
+        Path path = dir.toPath();
+        List<Path> children = new ArrayList<Path>();
+        boolean git = false;
+        boolean gitignore = false;
+        boolean ignore = false;
+        try {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(path);
+            try {
+                for (Path child : stream) {
+                    children.add(child);
+                    String name = child.getFileName().toString();
+                    if (rules != null && IgnoreRules.isRuleSource(name)) {
+                        git |= name.equals(IgnoreRules.GIT_DIR);
+                        gitignore |= name.equals(IgnoreRules.GITIGNORE);
+                        ignore |= name.equals(IgnoreRules.IGNORE);
+                    }
+                }
+            } catch (DirectoryIteratorException die) {
+                // The directory could not be read to the end; search
+                // what was listed.
+            } finally {
+                stream.close();
+            }
+        } catch (IOException ioe) {
+            stats.error();
+            if (children.isEmpty()) {
+                stats.directoryListed(0, 0, System.nanoTime() - start);
+                return null;
+            }
+        }
+        if (rules != null) {
+            // The rules of this directory decide which entries to
+            // examine, so that ignored subtrees are never listed.
+            rules = rules.enter(dir, git, gitignore, ignore);
+        }
+
+        // Resolving a path inspects each of its names in turn.
+        int depth = path.getNameCount() + 1;
+        int files = 0;
+        int filtered = 0;
+        List<DirEntry> entries = new ArrayList<DirEntry>();
+        for (Path child : children) {
+            BasicFileAttributes attrs;
+            Path real = child;
+            try {
+                attrs = Files.readAttributes(child,
+                    BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                stats.attributesRead();
+                if (attrs.isSymbolicLink()) {
+                    // Find where the link leads, as the canonical path
+                    // would.
+                    real = child.toRealPath();
+                    attrs = Files.readAttributes(real,
+                        BasicFileAttributes.class);
+                    stats.attributesRead();
+                } else if (attrs.isRegularFile()) {
+                    // Spared the check for a file, the check that it
+                    // is readable, and resolving its path.
+                    stats.addSavedSyscalls(depth + 1);
+                } else if (recurse) {
+                    // Spared the checks for a file and a directory.
+                    stats.addSavedSyscalls(1);
+                }
+            } catch (IOException ioe) {
+                // Removed since it was listed, or a broken link.
+                continue;
+            }
+            String name = child.getFileName().toString();
+            if (attrs.isRegularFile()) {
+                files++;
+                if (!context.acceptListed(relative, name)) {
+                    filtered++;
+                    continue;
+                }
+            } else if (!recurse || !attrs.isDirectory()
+                       || context.excludeDirectory(name)) {
+                continue;
+            }
+            if (rules != null && rules.isIgnored(child.toString(), name,
+                                                 attrs.isDirectory())) {
+                stats.ignoredEntry();
+                continue;
+            }
+            entries.add(new DirEntry(real.toFile(), attrs.isDirectory()
+                ? relative + name + File.separator : null, attrs, rules));
+        }
+        stats.directoryListed(files, filtered, System.nanoTime() - start);
+        return entries;
+    } // listDirectory
+
+    /**
+     * Returns the path of the given directory relative to the starting
+     * directory, with a trailing separator. A directory outside the
+     * starting directory has its full path returned.
+     *
+     * @param  dir  canonical path of a directory.
+     * @return  relative path.
+     */
+    private String relativeTo(File dir) {
+        String path = dir.getPath();
+        if (!path.endsWith(File.separator)) {
+            path += File.separator;
+        }
+        return path.startsWith(rootPrefix)
+            ? path.substring(rootPrefix.length()) : path;
+    } // relativeTo
+
+    /**
+     * Reads the ignore rules that apply to the given file or
+     * directory, if using ignore files.
+     *
+     * @param  file  canonical path of a file or directory.
+     * @return  the rules, or null if not using ignore files.
+     */
+    private IgnoreRules ignoreRulesFor(File file) {
+        return useIgnoreFiles ? IgnoreRules.forTree(file) : null;
+    } // ignoreRulesFor
+
+    /**
+     * Walks the directory on the calling thread, scanning each of the
+     * matching files on a virtual thread of its own. The number of
+     * files open and bytes mapped at any one time are bounded, with
+     * the walk waiting for earlier scans to finish when necessary.
+     *
+     * @param  startIn  directory to start searching.
+     * @param  recurse  true to search in subdirectories.
+     * @exception  IOException
+     *             if unable to read the files.
+     */
+    private void searchConcurrent(File startIn, boolean recurse)
+        throws IOException {
+        parallelError = null;
+        sequentialContext = new ScanContext();
+        idleContexts = new ConcurrentLinkedQueue<ScanContext>();
+        openFilePermits = new Semaphore(maxOpenFiles);
+        mappedPermits = new Semaphore(toPermits(maxMappedBytes));
+        fileExecutor = newFileExecutor();
+        try {
+            searchLow(startIn, recurse);
+            // Wait for the outstanding file scans to finish.
+            openFilePermits.acquireUninterruptibly(maxOpenFiles);
+        } finally {
+            fileExecutor.shutdown();
+            fileExecutor = null;
+            openFilePermits = null;
+            mappedPermits = null;
+            idleContexts = null;
+        }
+        if (parallelError != null) {
+            IOException ioe = parallelError;
+            parallelError = null;
+            throw ioe;
+        }
+    } // searchConcurrent
+
+    /**
+     * Submits the file to be scanned on a virtual thread, waiting
+     * until the number of open files falls below the limit.
+     *
+     * @param  file      file to scan.
+     * @param  filename  canonical path of the file.
+     * @param  attrs     attributes read when the file was listed.
+     */
+    private void submitFile(final File file, final String filename,
+                            final BasicFileAttributes attrs) {
+        try {
+            openFilePermits.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            stopSearch = true;
+            return;
+        }
+        fileExecutor.execute(new Runnable() {
+            public void run() {
+                long size = attrs.size();
+                long mapped = Math.min(size, windowFor(size));
+                int kbytes = Math.min(toPermits(mapped),
+                                      toPermits(maxMappedBytes));
+                mappedPermits.acquireUninterruptibly(kbytes);
+                ScanContext context = idleContexts.poll();
+                if (context == null) {
+                    context = new ScanContext();
+                }
+                try {
+                    if (!stopSearch) {
+                        scanFile(file, filename, attrs, context);
+                    }
+                } catch (IOException ioe) {
+                    taskFailed(ioe);
+                } finally {
+                    idleContexts.offer(context);
+                    mappedPermits.release(kbytes);
+                    openFilePermits.release();
+                }
+            }
+        });
+    } // submitFile
+
+    /**
+     * Creates the executor for scanning files on virtual threads. If
+     * the runtime does not support virtual threads, platform threads
+     * are used instead (their number is still bounded by the limit
+     * on open files).
+     *
+     * @return  new executor service.
+     */
+    private static ExecutorService newFileExecutor() {
+        try {
+            Method factory = Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException roe) {
+            return Executors.newCachedThreadPool();
+        }
+    } // newFileExecutor
+
+    /**
+     * Converts a number of bytes to mapped byte permits, rounding up
+     * to the next kilobyte.
+     *
+     * @param  bytes  number of bytes.
+     * @return  number of permits.
+     */
+    private static int toPermits(long bytes) {
+        return (int) Math.min((bytes + 1023) / 1024, Integer.MAX_VALUE);
+    } // toPermits
+
+    /**
+     * Searches the directory using a pool of worker threads. Each
+     * directory listing and each file scan becomes a task in the
+     * pool, allowing idle threads to steal work from busy ones.
+     *
+     * @param  startIn  directory to start searching.
+     * @param  recurse  true to search in subdirectories.
+     * @exception  IOException
+     *             if unable to read the files.
+     */
+    private void searchParallel(File startIn, boolean recurse)
+        throws IOException {
+        parallelError = null;
+        parallelContexts = new ThreadLocal<ScanContext>() {
+            protected ScanContext initialValue() {
+                return new ScanContext();
+            }
+        };
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(startIn, relativeTo(startIn),
+                                          recurse, ignoreRulesFor(startIn)));
+        } finally {
+            pool.shutdown();
+            parallelContexts = null;
+        }
+        if (parallelError != null) {
+            IOException ioe = parallelError;
+            parallelError = null;
+            throw ioe;
+        }
+    } // searchParallel
+
+    /**
+     * Registers the directory, and its subdirectories if recursing,
+     * to be watched for changes.
+     *
+     * @param  startIn  directory to start searching.
+     * @param  recurse  true to search in subdirectories.
+     * @exception  IOException
+     *             if a directory could not be watched.
+     */
+    private void startWatching(File startIn, boolean recurse)
+        throws IOException {
+        watchedFiles = ConcurrentHashMap.newKeySet();
+        watchedDirs = new HashMap<WatchKey, File>();
+        watchService = startIn.toPath().getFileSystem().newWatchService();
+        if (sequentialContext == null) {
+            sequentialContext = new ScanContext();
+        }
+        watchDirectory(startIn, relativeTo(startIn), recurse,
+                       ignoreRulesFor(startIn));
+    } // startWatching
+
+    /**
+     * Stops watching for changes, if watching.
+     */
+    private void stopWatching() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ioe) {
+                // The watch is over either way.
+            }
+            watchService = null;
+        }
+        watchedDirs = null;
+        watchedFiles = null;
+    } // stopWatching
+
+    /**
+     * Registers the directory to be watched for changes, along with
+     * its subdirectories if recursing, except those excluded.
+     *
+     * @param  dir       directory to watch.
+     * @param  relative  path of the directory relative to the starting
+     *                   directory, with a trailing separator.
+     * @param  recurse   true to watch subdirectories.
+     * @param  rules     ignore rules that apply to the directory, or
+     *                   null if not using ignore files.
+     * @exception  IOException
+     *             if the directory could not be watched.
+     */
+    private void watchDirectory(File dir, String relative, boolean recurse,
+                                IgnoreRules rules) throws IOException {
+        WatchKey key = dir.toPath().register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+        watchedDirs.put(key, dir);
+        if (!recurse) {
+            return;
+        }
+        List<DirEntry> entries = listDirectory(dir, relative, recurse, rules,
+                                               sequentialContext);
+        for (int ii = 0; entries != null && ii < entries.size(); ii++) {
+            DirEntry entry = entries.get(ii);
+            if (entry.attrs.isDirectory()) {
+                watchDirectory(entry.file, entry.relative, recurse,
+                               entry.rules);
+            }
+        }
+    } // watchDirectory
+
+    /**
+     * Waits for changes to the watched directories, scanning the
+     * files that were created or modified, and forgetting those that
+     * were deleted. Returns once the search is stopped.
+     *
+     * @param  startIn  directory to start searching.
+     * @param  recurse  true to search in subdirectories.
+     * @exception  IOException
+     *             if unable to read the files.
+     */
+    private void watchLow(File startIn, boolean recurse)
+        throws IOException {
+        while (!stopSearch) {
+            // Deliver what the last round found before waiting.
+            flushFound();
+            Set<File> changed = new LinkedHashSet<File>();
+            Set<File> created = new LinkedHashSet<File>();
+            boolean overflow = false;
+            try {
+                WatchKey key = watchService.poll(
+                    WATCH_POLL_MS, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    File dir = watchedDirs.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else if (dir != null) {
+                            File file = new File(dir,
+                                event.context().toString());
+                            if (event.kind()
+                                == StandardWatchEventKinds.ENTRY_CREATE
+                                && file.isDirectory()) {
+                                created.add(file);
+                            } else {
+                                changed.add(file);
+                            }
+                        }
+                    }
+                    if (!key.reset()) {
+                        // The directory is gone.
+                        watchedDirs.remove(key);
+                    }
+                    key = watchService.poll(
+                        WATCH_SETTLE_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ClosedWatchServiceException cwse) {
+                break;
+            }
+
+            if (overflow) {
+                // Some changes were lost, so look at everything.
+                for (String filename : watchedFiles) {
+                    if (!new File(filename).isFile()) {
+                        fireRemoved(filename);
+                    }
+                }
+                IgnoreRules rules = ignoreRulesFor(startIn);
+                watchDirectory(startIn, "", recurse, rules);
+                searchLow(startIn, "", recurse, rules);
+                continue;
+            }
+            for (File dir : created) {
+                if (recurse && !sequentialContext.excludeDirectory(
+                        dir.getName())) {
+                    dir = dir.getCanonicalFile();
+                    IgnoreRules rules = ignoreRulesFor(dir);
+                    if (rules == null || !rules.isIgnored(
+                            dir.getPath(), dir.getName(), true)) {
+                        String relative = relativeTo(dir);
+                        watchDirectory(dir, relative, recurse, rules);
+                        searchLow(dir, relative, recurse, rules);
+                    }
+                }
+            }
+            for (File file : changed) {
+                if (stopSearch) {
+                    break;
+                }
+                try {
+                    rescanFile(file);
+                } catch (IOException ioe) {
+                    // The file changed again while being read; the
+                    // event for that change will bring it up again.
+                }
+            }
+        }
+    } // watchLow
+
+    /**
+     * Scans a file that was reported as changed while watching. If
+     * it no longer exists, it (or everything within it, if it was a
+     * directory) is reported as no longer matching.
+     *
+     * @param  file  file that changed.
+     * @exception  IOException
+     *             if reading the file failed.
+     */
+    private void rescanFile(File file) throws IOException {
+        String filename = file.getCanonicalPath();
+        if (file.isFile() && file.canRead()) {
+            IgnoreRules rules = ignoreRulesFor(file);
+            File canonical = new File(filename);
+            if (sequentialContext.acceptListed(
+                    relativeTo(canonical.getParentFile()), canonical.getName())
+                && (rules == null
+                    || !rules.isIgnored(filename, file.getName(), false))) {
+                scanFile(file, filename, null, sequentialContext);
+            }
+        } else if (!file.exists()) {
+            fireRemoved(filename);
+            String prefix = filename + File.separator;
+            String entries = filename + ENTRY_SEPARATOR;
+            for (String match : watchedFiles) {
+                if (match.startsWith(prefix) || match.startsWith(entries)) {
+                    fireRemoved(match);
+                }
+            }
+        }
+    } // rescanFile
+
+    /**
+     * Sets the manner in which binary files are handled. A file is
+     * considered binary if its first block contains NUL bytes or
+     * sequences that are invalid in the charset.
+     *
+     * @param  mode  one of BINARY_SKIP, BINARY_TEXT, or BINARY_REPORT.
+     */
+    public void setBinaryMode(int mode) {
+        if (mode < BINARY_SKIP || mode > BINARY_REPORT) {
+            throw new IllegalArgumentException("invalid binary mode");
+        }
+        binaryMode = mode;
+    } // setBinaryMode
+
+    /**
+     * Sets the content index used to rule out files that cannot
+     * contain the literal text required by the target pattern. Files
+     * that are not in the index, or have changed since they were
+     * indexed, are always searched.
+     *
+     * @param  index  content index, or null to search every file.
+     */
+    public void setIndex(ContentIndex index) {
+        this.index = index;
+    } // setIndex
+
+    /**
+     * Sets the longest DOTALL match that is guaranteed to be found in
+     * a file that is scanned in windows. Consecutive windows overlap
+     * by this amount, up to half the window size.
+     *
+     * @param  span  maximum match span in bytes.
+     */
+    public void setMaxMatchSpan(int span) {
+        if (span < 1) {
+            throw new IllegalArgumentException("span < 1");
+        }
+        maxMatchSpan = span;
+    } // setMaxMatchSpan
+
+    /**
+     * Sets the maximum number of bytes that may be mapped at once
+     * when scanning files on virtual threads. A file larger than the
+     * limit waits until it is the only file being mapped.
+     *
+     * @param  bytes  maximum number of mapped bytes.
+     */
+    public void setMaxMappedBytes(long bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("bytes < 1");
+        }
+        maxMappedBytes = bytes;
+    } // setMaxMappedBytes
+
+    /**
+     * Sets the number of match locations reported for each matching
+     * file. When positive, the matching file is searched a second time
+     * to find the line number, byte offset, and length of each match,
+     * up to the given number, which are then available from the
+     * FileFoundEvent. Files that do not match are searched no
+     * differently. A value of zero (the default) reports only the
+     * files that match.
+     *
+     * @param  count  maximum locations per file, or zero for none;
+     *                Integer.MAX_VALUE reports every match.
+     */
+    public void setMaxLocations(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0");
+        }
+        maxLocations = count;
+    } // setMaxLocations
+
+    /**
+     * Sets the number of files after which the search stops. Only
+     * files that are reported (or counted) are included; binary files
+     * are not. A value of zero (the default) places no limit.
+     *
+     * @param  count  maximum number of files, or zero.
+     */
+    public void setMaxFiles(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0");
+        }
+        maxFiles = count;
+    } // setMaxFiles
+
+    /**
+     * Sets the maximum number of files that may be open at once when
+     * scanning files on virtual threads.
+     *
+     * @param  count  maximum number of open files.
+     */
+    public void setMaxOpenFiles(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count < 1");
+        }
+        maxOpenFiles = count;
+    } // setMaxOpenFiles
+
+    /**
+     * Sets the number of threads used to perform a search. A value of
+     * one (the default) searches on the calling thread, while larger
+     * values search using a work-stealing pool of that size.
+     *
+     * @param  parallelism  number of search threads.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism < 1");
+        }
+        this.parallelism = parallelism;
+    } // setParallelism
+
+    /**
+     * Indicates whether each file should be scanned on a virtual
+     * thread of its own, while the directory walk proceeds on the
+     * calling thread. This suits file systems with high latency,
+     * where most of the time is spent waiting to open and map files.
+     * When enabled, the parallelism setting is ignored.
+     *
+     * @param  enable  true to scan files on virtual threads.
+     */
+    public void setVirtualThreads(boolean enable) {
+        virtualThreads = enable;
+    } // setVirtualThreads
+
+    /**
+     * Sets whether the rules in .gitignore and .ignore files are
+     * honored, passing over the files and directories they exclude.
+     * The rules are read from the directories as they are walked, and
+     * from those above the starting directory up to the top of its git
+     * repository. The .git directory itself is also passed over.
+     *
+     * @param  enable  true to honor ignore files.
+     */
+    public void setIgnoreFiles(boolean enable) {
+        useIgnoreFiles = enable;
+    } // setIgnoreFiles
+
+    /**
+     * Sets whether gzip files, and zip archives such as jars, are
+     * searched within. Their content is decompressed as it is read,
+     * through a buffer of fixed size, and the entries that match are
+     * reported as archive!/entry. Archives are never searched within
+     * when replacing.
+     *
+     * @param  enable  true to search within archives.
+     */
+    public void setArchives(boolean enable) {
+        searchArchives = enable;
+    } // setArchives
+
+    /**
+     * Sets whether the statistics of each search are registered with
+     * the platform MBean server while the search runs, so that they
+     * may be watched with JMX tools. Each search is registered as
+     * com.bluemarsh.jrgrep:type=SearchStats,id=n, with n counting the
+     * searches registered, and is removed when it completes.
+     *
+     * @param  enable  true to register the statistics.
+     */
+    public void setManaged(boolean enable) {
+        managed = enable;
+    } // setManaged
+
+    /**
+     * Sets how long a search may run before it is stopped, as if by
+     * stopSearching(). The files found by then have been reported, and
+     * the statistics of the search show that it timed out.
+     *
+     * @param  millis  time limit in milliseconds, or zero for none
+     *                 (the default).
+     */
+    public void setTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("timeout < 0");
+        }
+        searchTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+    } // setTimeout
+
+    /**
+     * Sets how long the scan of any one file may take. A file that
+     * takes longer, perhaps because it is huge or the pattern is slow
+     * to match it, is abandoned and reported to the listeners as
+     * having timed out, and the search goes on to the next file.
+     *
+     * @param  millis  time limit in milliseconds, or zero for none
+     *                 (the default).
+     * @see FileFoundEvent#isTimedOut
+     */
+    public void setFileTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("timeout < 0");
+        }
+        fileTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+    } // setFileTimeout
+
+    /**
+     * Sets the charset in which files are decoded before the patterns
+     * are matched against them, so that a pattern matches characters
+     * rather than bytes. The charset must be UTF-8 or one that encodes
+     * each character as a single byte, leaving ASCII as it is; lines
+     * that hold only ASCII are matched without being decoded, as are
+     * lines that are invalid in the charset. With ENCODING_AUTO, a
+     * file is read as UTF-8 if it starts with a byte order mark or
+     * its first block is valid UTF-8, and as ISO-8859-1 otherwise.
+     * Replacing still matches each byte as one character.
+     *
+     * @param  name  name of the charset, ENCODING_AUTO, or null to
+     *               match each byte as an ISO-8859-1 character
+     *               (the default).
+     * @throws  IllegalArgumentException
+     *          if the charset is unknown or not supported.
+     */
+    public void setEncoding(String name) {
+        if (name == null) {
+            encoding = null;
+            autoEncoding = false;
+            return;
+        }
+        if (name.equalsIgnoreCase(ENCODING_AUTO)) {
+            encoding = null;
+            autoEncoding = true;
+            return;
+        }
+        Charset cs = Charset.forName(name);
+        if (cs.equals(StandardCharsets.ISO_8859_1)) {
+            // The bytes are already matched as these characters.
+            cs = null;
+        } else if (!cs.equals(StandardCharsets.UTF_8)
+                   && !isAsciiSingleByte(cs)) {
+            throw new IllegalArgumentException(
+                "unsupported encoding: " + name);
+        }
+        encoding = cs;
+        autoEncoding = false;
+    } // setEncoding
+
+    /**
+     * Indicates whether the charset encodes every character as one
+     * byte and leaves ASCII as it is, so that the index of each
+     * character is that of its byte.
+     *
+     * @param  cs  charset to test.
+     * @return  true if the charset is ASCII-based and single-byte.
+     */
+    private static boolean isAsciiSingleByte(Charset cs) {
+        if (!cs.canEncode() || cs.newEncoder().maxBytesPerChar() != 1.0f
+            || cs.newDecoder().maxCharsPerByte() != 1.0f) {
+            return false;
+        }
+        byte[] ascii = new byte[0x80];
+        for (int ii = 0; ii < ascii.length; ii++) {
+            ascii[ii] = (byte) ii;
+        }
+        return new String(ascii, cs).equals(
+            new String(ascii, StandardCharsets.US_ASCII));
+    } // isAsciiSingleByte
+
+    /**
+     * Sets the text that replaces each match in the matching files.
+     * Matches are replaced only where the search finds them, that is,
+     * within a line unless the pattern uses the (?s) flag. Each file
+     * is written to a temporary file that is then moved over the
+     * original; files without a match are never written. The number
+     * of matches replaced in each file is given by the events sent to
+     * the listeners. Watching for changes is not possible while
+     * replacing.
+     *
+     * @param  text  replacement text, which may refer to groups of the
+     *               match as for Matcher.appendReplacement(), or null
+     *               to only search (the default).
+     * @see FileFoundEvent#getReplacements
+     */
+    public void setReplacement(String text) {
+        replacement = text;
+    } // setReplacement
+
+    /**
+     * Sets whether replacing only counts the matches that would be
+     * replaced, leaving the files unchanged.
+     *
+     * @param  enable  true for a dry run.
+     */
+    public void setDryRun(boolean enable) {
+        dryRun = enable;
+    } // setDryRun
+
+    /**
+     * Sets whether the search keeps watching the directory for changes
+     * once it is done. While watching, only files that are created or
+     * modified are scanned again; listeners are sent a FileFoundEvent
+     * for each file that begins to match, and a call to fileRemoved()
+     * for each file that no longer matches or is deleted. The search
+     * does not complete until stopSearching() is called.
+     *
+     * @param  enable  true to watch for changes.
+     */
+    public void setWatch(boolean enable) {
+        watch = enable;
+    } // setWatch
+
+    /**
+     * Sets what the search reports to the listeners. By default, the
+     * files that match are reported. Alternatively, the files that do
+     * not match may be reported, with each file searched only until
+     * its first match. Or the matches may be counted without anything
+     * being reported, the totals being available from the statistics
+     * once the search is done.
+     *
+     * @param  mode  one of REPORT_MATCHING, REPORT_COUNT, or
+     *               REPORT_NONMATCHING.
+     * @see SearchStats#getMatches
+     */
+    public void setReportMode(int mode) {
+        if (mode < REPORT_MATCHING || mode > REPORT_NONMATCHING) {
+            throw new IllegalArgumentException("invalid report mode");
+        }
+        reportMode = mode;
+    } // setReportMode
+
+    /**
+     * Sets the size of the windows through which large files are
+     * scanned. Files larger than this are mapped and searched one
+     * window at a time, keeping memory use fixed. A size of zero (the
+     * default) maps files whole, except for those too large to be
+     * mapped at once.
+     *
+     * @param  size  window size in bytes, or zero.
+     */
+    public void setWindowSize(long size) {
+        if (size < 0 || size > MAX_MAP_SIZE - 2) {
+            throw new IllegalArgumentException("invalid window size");
+        }
+        windowSize = size;
+    } // setWindowSize
+
+    /**
+     * Stops any running search. The running search will stop
+     * as soon as the search loop checks the stop flag, which
+     * is checked often while each file is scanned.
+     * For this to be effective, this method must be called
+     * from a thread other than the one that initiated the
+     * search in the first place.
+     */
+    public void stopSearching() {
+        stopSearch = true;
+    } // stopSearching
+
+    /**
+     * Returns the size of the window through which a file of the
+     * given size will be scanned.
+     *
+     * @param  size  size of the file.
+     * @return  window size; if not less than the file size, the file
+     *          is mapped whole.
+     */
+    private long windowFor(long size) {
+        if (windowSize > 0) {
+            return windowSize;
+        }
+        return size > MAX_MAP_SIZE ? DEFAULT_WINDOW_SIZE : size;
+    } // windowFor
+
+    /**
+     * Records an exception raised within a parallel search task and
+     * stops the search, as the sequential search would have done.
+     *
+     * @param  ioe  exception raised by the task.
+     */
+    private synchronized void taskFailed(IOException ioe) {
+        stats.error();
+        if (parallelError == null) {
+            parallelError = ioe;
+        }
+        stopSearch = true;
+    } // taskFailed
+
+    /**
+     * Lists a single directory, creating tasks to scan the matching
+     * files and to list the subdirectories within it.
+     */
+    private class DirectoryTask extends RecursiveAction {
+        /** silence the compiler warnings */
+        private static final long serialVersionUID = 1L;
+        /** Directory to be listed. */
+        private final File directory;
+        /** Path of the directory relative to the starting directory. */
+        private final String relative;
+        /** True to search in subdirectories. */
+        private final boolean recurse;
+        /** Ignore rules that apply to the directory, or null. */
+        private final IgnoreRules rules;
+
+        /**
+         * Constructs a DirectoryTask for the given directory.
+         *
+         * @param  directory  directory to list.
+         * @param  relative   path of the directory relative to the
+         *                    starting directory.
+         * @param  recurse    true to search in subdirectories.
+         * @param  rules      ignore rules that apply to the directory,
+         *                    or null if not using ignore files.
+         */
+        DirectoryTask(File directory, String relative, boolean recurse,
+                      IgnoreRules rules) {
+            this.directory = directory;
+            this.relative = relative;
+            this.recurse = recurse;
+            this.rules = rules;
+        }
+
+        protected void compute() {
+            if (stopSearch) {
+                return;
+            }
+            ScanContext context = parallelContexts.get();
+            List<DirEntry> entries = listDirectory(directory, relative,
+                                                   recurse, rules, context);
+            if (entries == null) {
+                return;
+            }
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            for (int ii = 0; ii < entries.size() && !stopSearch; ii++) {
+                DirEntry entry = entries.get(ii);
+                if (entry.attrs.isRegularFile()) {
+                    tasks.add(new FileTask(entry.file, entry.file.getPath(),
+                                           entry.attrs));
+                } else {
+                    tasks.add(new DirectoryTask(entry.file, entry.relative,
+                                                recurse, entry.rules));
+                }
+            }
+            invokeAll(tasks);
+        }
+    } // DirectoryTask
+
+    /**
+     * A file or directory found by listing a directory.
+     */
+    private static class DirEntry {
+        /** Canonical path of the entry. */
+        final File file;
+        /** Path of a directory relative to the starting directory,
+         * with a trailing separator; null for a file. */
+        final String relative;
+        /** Attributes of the entry (or of what it links to). */
+        final BasicFileAttributes attrs;
+        /** Ignore rules that apply to the entry, or null. */
+        final IgnoreRules rules;
+
+        /**
+         * Constructs a DirEntry.
+         *
+         * @param  file      canonical path of the entry.
+         * @param  relative  relative path of a directory, or null.
+         * @param  attrs     attributes of the entry.
+         * @param  rules     ignore rules that apply to the entry, or null.
+         */
+        DirEntry(File file, String relative, BasicFileAttributes attrs,
+                 IgnoreRules rules) {
+            this.file = file;
+            this.relative = relative;
+            this.attrs = attrs;
+            this.rules = rules;
+        }
+    } // DirEntry
+
+    /**
+     * Scans a single file for the target pattern.
+     */
+    private class FileTask extends RecursiveAction {
+        /** silence the compiler warnings */
+        private static final long serialVersionUID = 1L;
+        /** File to be scanned. */
+        private final File file;
+        /** Canonical path of the file, as reported to listeners. */
+        private final String filename;
+        /** Attributes read when the file was listed. */
+        private final BasicFileAttributes attrs;
+
+        /**
+         * Constructs a FileTask for the given file.
+         *
+         * @param  file      file to scan.
+         * @param  filename  canonical path of the file.
+         * @param  attrs     attributes read when the file was listed.
+         */
+        FileTask(File file, String filename, BasicFileAttributes attrs) {
+            this.file = file;
+            this.filename = filename;
+            this.attrs = attrs;
+        }
+
+        protected void compute() {
+            if (stopSearch) {
+                return;
+            }
+            try {
+                scanFile(file, filename, attrs, parallelContexts.get());
+            } catch (IOException ioe) {
+                taskFailed(ioe);
+            }
+        }
+    } // FileTask
+
+    /**
+     * Scans some of the entries of a zip archive, as part of a
+     * parallel search.
+     */
+    private class EntryTask extends RecursiveAction {
+        /** silence the compiler warnings */
+        private static final long serialVersionUID = 1L;
+        /** Archive holding the entries. */
+        private final ZipFile zip;
+        /** Canonical path of the archive. */
+        private final String filename;
+        /** Entries to be scanned. */
+        private final List<ZipEntry> entries;
+
+        /**
+         * Constructs an EntryTask for the given entries.
+         *
+         * @param  zip       archive holding the entries.
+         * @param  filename  canonical path of the archive.
+         * @param  entries   entries to scan.
+         */
+        EntryTask(ZipFile zip, String filename, List<ZipEntry> entries) {
+            this.zip = zip;
+            this.filename = filename;
+            this.entries = entries;
+        }
+
+        protected void compute() {
+            if (stopSearch) {
+                return;
+            }
+            try {
+                scanEntries(zip, filename, entries, parallelContexts.get());
+            } catch (IOException ioe) {
+                taskFailed(ioe);
+            }
+        }
+    } // EntryTask
+
+    /**
+     * The content of a file or of an archive entry, which may be
+     * read again once it is known to match, to find out more.
+     */
+    private abstract class Content {
+
+        /**
+         * Opens a stream from which to read the content afresh.
+         *
+         * @return  new stream.
+         * @exception  IOException
+         *             if the content could not be opened.
+         */
+        abstract InputStream open() throws IOException;
+
+        /**
+         * Finds the matches in the content, passing each to the
+         * locator until it is full.
+         *
+         * @param  locator  receives the matches.
+         * @param  context  matchers for the current thread.
+         * @exception  IOException
+         *             if reading the content failed.
+         */
+        void locate(Locator locator, ScanContext context)
+            throws IOException {
+            InputStream in = open();
+            try {
+                locateStream(in, locator, context);
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Replaces the matches in the content. Only files may be
+         * changed; archive entries are only ever searched.
+         *
+         * @return  number of matches replaced.
+         * @exception  IOException
+         *             if the content could not be replaced.
+         */
+        int replace() throws IOException {
+            return 0;
+        }
+    }
+
+    /**
+     * The content of a plain file, which is mapped into memory rather
+     * than read as a stream.
+     */
+    private class FileContent extends Content {
+        /** File holding the content. */
+        private final File file;
+
+        /**
+         * Constructs a FileContent for the given file.
+         *
+         * @param  file  file holding the content.
+         */
+        FileContent(File file) {
+            this.file = file;
+        }
+
+        InputStream open() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        void locate(Locator locator, ScanContext context)
+            throws IOException {
+            Searcher.this.locate(file, locator, context);
+        }
+
+        int replace() throws IOException {
+            int count = replacer.replace(file, windowFor(file.length()),
+                                         maxMatchSpan);
+            if (singleLineReplacer != null) {
+                // As when searching, the (?s) patterns come second.
+                count += singleLineReplacer.replace(file,
+                    windowFor(file.length()), maxMatchSpan);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Collects the locations of the matches in a file, counting the
+     * line terminators only as far as is needed to number the lines
+     * of the matches found, or simply counts the matches, or notes
+     * which of several patterns are found. The file is examined
+     * through a series of windows, each of which may overlap the
+     * previous one.
+     */
+    private class Locator {
+        /** True to count the matches rather than collect them. */
+        private final boolean counting;
+        /** Indices of the patterns found, if noting them rather than
+         * the matches. */
+        private final BitSet patterns;
+        /** Locations found so far. */
+        private final List<MatchLocation> matches =
+            new ArrayList<MatchLocation>();
+        /** Number of matches found so far. */
+        private long count;
+        /** Current window onto the file. */
+        private ByteBuffer buffer;
+        /** Offset in the file of the start of the current window. */
+        private long base;
+        /** Offset in the file up to which lines have been counted. */
+        private long counted;
+        /** Number of the line containing the counted offset. */
+        private long line = 1;
+        /** Offset before which matches were already reported, so
+         * that those in overlapping windows are not repeated. */
+        private long reported;
+        /** Number of matches found when mark() was last called. */
+        private long markedCount;
+        /** Number of locations found when mark() was last called. */
+        private int markedSize;
+        /** Patterns found when mark() was last called, if noting
+         * them. */
+        private BitSet markedPatterns;
+
+        /**
+         * Constructs a Locator.
+         *
+         * @param  counting  true to count matches, false to collect
+         *                   their locations.
+         */
+        Locator(boolean counting) {
+            this.counting = counting;
+            patterns = null;
+        }
+
+        /**
+         * Constructs a Locator that notes which patterns are found.
+         *
+         * @param  patterns  receives the indices of the patterns found.
+         */
+        Locator(BitSet patterns) {
+            counting = false;
+            this.patterns = patterns;
+        }
+
+        /**
+         * Adds the location of a match in the current window.
+         *
+         * @param  start  index of the start of the match.
+         * @param  end    index after the end of the match.
+         */
+        void add(int start, int end) {
+            long offset = base + start;
+            if (offset < reported) {
+                return;
+            }
+            reported = offset + Math.max(end - start, 1);
+            count++;
+            if (!counting) {
+                countTo(start);
+                matches.add(new MatchLocation(line, offset, end - start));
+            }
+        }
+
+        /**
+         * Counts the line terminators in the current window up to the
+         * given index.
+         *
+         * @param  index  index within the current window.
+         */
+        private void countTo(int index) {
+            for (int ii = (int) (counted - base); ii < index; ii++) {
+                if (buffer.get(ii) == '\n') {
+                    line++;
+                }
+            }
+            counted = base + index;
+        }
+
+        /**
+         * Returns the number of matches found.
+         *
+         * @return  match count.
+         */
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the locations found.
+         *
+         * @return  list of match locations.
+         */
+        List<MatchLocation> getMatches() {
+            return matches;
+        }
+
+        /**
+         * Returns the indices of the patterns found, if noting them.
+         *
+         * @return  patterns found, or null if not noting them.
+         */
+        BitSet getPatterns() {
+            return patterns;
+        }
+
+        /**
+         * Indicates if no more locations are wanted, because the
+         * maximum number was found.
+         *
+         * @return  true if no more locations are wanted.
+         */
+        boolean isFull() {
+            // The file was already claimed as a result, so its matches
+            // are located, counted, or identified in full, even once
+            // the search is stopping.
+            if (patterns != null) {
+                return patterns.cardinality() == patternSet.size();
+            }
+            return !counting && matches.size() >= maxLocations;
+        }
+
+        /**
+         * Remembers what has been found so far, so that what is found
+         * after it may be forgotten by rollback().
+         */
+        void mark() {
+            markedCount = count;
+            markedSize = matches.size();
+            if (patterns != null) {
+                markedPatterns = (BitSet) patterns.clone();
+            }
+        }
+
+        /**
+         * Forgets what was found since mark() was called, as when the
+         * matches lie in a final line that turns out to lack a line
+         * terminator.
+         */
+        void rollback() {
+            count = markedCount;
+            matches.subList(markedSize, matches.size()).clear();
+            if (patterns != null) {
+                patterns.clear();
+                patterns.or(markedPatterns);
+            }
+        }
+
+        /**
+         * Starts another pass over the file, from its beginning.
+         */
+        void restart() {
+            buffer = null;
+            base = 0;
+            counted = 0;
+            line = 1;
+            reported = 0;
+        }
+
+        /**
+         * Moves on to the next window. Lines in the previous window
+         * that precede the new window are counted first.
+         *
+         * @param  bb      bytes of the new window.
+         * @param  offset  offset in the file of the new window.
+         */
+        void setWindow(ByteBuffer bb, long offset) {
+            if (!counting && patterns == null && buffer != null
+                && counted < offset) {
+                countTo((int) (offset - base));
+            }
+            buffer = bb;
+            base = offset;
+        }
+    }
+
+    /**
+     * Raised within the scan of a file to cut it short, either because
+     * the search was stopped or because the file took too long. The
+     * few instances are shared, and have no stack trace.
+     */
+    private static class ScanInterrupted extends RuntimeException {
+        /** silence the compiler warnings */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructs a ScanInterrupted with the given reason.
+         *
+         * @param  reason  why the scan is cut short.
+         */
+        ScanInterrupted(String reason) {
+            super(reason, null, false, false);
+        }
+    } // ScanInterrupted
+
+    /**
+     * Searches one file after another for the pattern given to
+     * fileMatcher(), reusing the matchers and buffers of one thread.
+     */
+    class FileMatcher {
+        /** Matchers and buffers used for every file. */
+        private final ScanContext context = new ScanContext();
+
+        /**
+         * Searches the file for the pattern. Binary files are set
+         * aside as in a search, and do not match.
+         *
+         * @param  file  file to search.
+         * @return  true if the file matches.
+         * @exception  IOException
+         *             if reading the file failed.
+         */
+        boolean matches(File file) throws IOException {
+            return searchFile(file, file.getPath(), context);
+        }
+    } // FileMatcher
+
+    /**
+     * Holds the matchers and buffers used while searching. None of
+     * these are thread-safe, so every searching thread has a context
+     * of its own.
+     */
+    private class ScanContext {
+        /** Holds the first block of a file, to detect binary files. */
+        final ByteBuffer sniffBytes = ByteBuffer.allocate(SNIFF_SIZE);
+        /** Receives the decoded first block of a file. */
+        final CharBuffer sniffChars = CharBuffer.allocate(SNIFF_SIZE);
+        /** Charset of the file being searched, or null if its bytes
+         * are matched as they are. */
+        private Charset fileCharset;
+        /** True if the file charset encodes some characters as more
+         * than one byte. */
+        private boolean multiByte;
+        /** Decoder that reports invalid sequences, for the charset of
+         * the file, if created. */
+        private CharsetDecoder decoder;
+        /** Receives the text most recently decoded. */
+        private CharBuffer decoded = CharBuffer.allocate(SNIFF_SIZE);
+        /** True if the text most recently returned by text() was
+         * decoded, so its indices are not those of the bytes. */
+        private boolean textDecoded;
+        /** Number of bytes passed over at the start of the text most
+         * recently decoded. */
+        private int skipped;
+        /** Index of the character up to which the decoded text has
+         * been mapped to bytes. */
+        private int charCursor;
+        /** Index of the byte at which the character at the cursor
+         * begins. */
+        private int byteCursor;
+        /** True if the bytes being searched need decoding, as set by
+         * prepare(). */
+        boolean decoding;
+        /** Time by which the current file must be scanned, as given
+         * by System.nanoTime(), or zero if there is no limit. */
+        private long fileDeadline;
+        /** Work left until the next check for stopping. */
+        private int untilCheck = CHECK_INTERVAL;
+        /** True once the current file has been claimed as a result,
+         * after which stopping the search no longer cuts it short. */
+        boolean claimed;
+        /** True in the second pass over the content, which looks for
+         * the (?s) patterns searched for apart. */
+        boolean singleLine;
+
+        /**
+         * Starts the time allowed to scan a file.
+         */
+        void startFile() {
+            untilCheck = CHECK_INTERVAL;
+            claimed = false;
+            singleLine = false;
+            fileDeadline = 0;
+            if (fileTimeout > 0) {
+                // Zero means no limit, so steer clear of it.
+                fileDeadline = (System.nanoTime() + fileTimeout) | 1;
+            }
+        }
+
+        /**
+         * Starts a pass over the content of the current file. The
+         * first pass looks for the target pattern; the second, made
+         * only if there are (?s) patterns to search for apart, looks
+         * for those.
+         *
+         * @param  pass  number of the pass, from zero.
+         * @return  true if the pass is to be made, false if the
+         *          passes are over.
+         */
+        boolean startPass(int pass) {
+            if (pass > 1 || pass == 1 && singleLinePattern == null) {
+                return false;
+            }
+            singleLine = pass == 1;
+            return true;
+        }
+
+        /**
+         * Returns the pattern looked for in the current pass.
+         *
+         * @return  target pattern, or the (?s) patterns in the
+         *          second pass.
+         */
+        Pattern targetPattern() {
+            return singleLine ? singleLinePattern : targetPattern;
+        }
+
+        /**
+         * Notes an amount of work done in scanning the current file,
+         * and now and then checks whether the scan must stop.
+         *
+         * @param  work  number of characters examined.
+         * @throws  ScanInterrupted
+         *          if the search was stopped before the file was
+         *          claimed, or the file has taken too long.
+         */
+        void tick(int work) {
+            untilCheck -= work;
+            if (untilCheck <= 0) {
+                untilCheck = CHECK_INTERVAL;
+                if (stopSearch && !claimed) {
+                    throw SCAN_STOPPED;
+                }
+                if (fileDeadline != 0
+                    && System.nanoTime() - fileDeadline > 0) {
+                    throw SCAN_TIMED_OUT;
+                }
+            }
+        }
+
+        /**
+         * Returns input that a matcher may examine at length, so that
+         * the work done by the matcher is noted as it goes. Viewing the
+         * input this way slows matching by half, so it is done only
+         * when the search or the file has a time limit, which then
+         * holds even for a single line or a whole file that is slow
+         * to match. Otherwise the input is returned as it is, and the
+         * scan is checked only between lines, regions of lines, and
+         * windows.
+         *
+         * @param  input  input to be matched.
+         * @return  input to give the matcher.
+         */
+        private CharSequence checked(CharSequence input) {
+            if (fileDeadline == 0 && searchTimeout == 0) {
+                return input;
+            }
+            return new CheckedText(input);
+        }
+
+        /**
+         * A view of text that notes each character read from it as
+         * work done, so that a long-running match can be stopped.
+         */
+        private class CheckedText implements CharSequence {
+            /** Text being viewed. */
+            private final CharSequence text;
+
+            /**
+             * Constructs a CheckedText over the given text.
+             *
+             * @param  text  text to view.
+             */
+            CheckedText(CharSequence text) {
+                this.text = text;
+            }
+
+            public char charAt(int index) {
+                tick(1);
+                return text.charAt(index);
+            }
+
+            public int length() {
+                return text.length();
+            }
+
+            public CharSequence subSequence(int start, int end) {
+                return new CheckedText(text.subSequence(start, end));
+            }
+
+            public String toString() {
+                return text.toString();
+            }
+        }
+        /** End-of-line matcher, if created. */
+        private Matcher lineMatcher;
+        /** Target matcher, if created. */
+        private Matcher targetMatcher;
+        /** Matcher of the (?s) patterns searched for apart, if
+         * created. */
+        private Matcher singleLineMatcher;
+        /** Matchers for each of several patterns, if created. */
+        private Matcher[] patternMatchers;
+        /** Whole-buffer target matcher, if created. */
+        private Matcher bufferMatcher;
+        /** File filter matcher, if created. */
+        private Matcher filterMatcher;
+        /** Holds the relative path of the file being filtered. */
+        private final StringBuilder relativePath = new StringBuilder();
+        /** Buffer through which streams are read, if created. */
+        private ByteBuffer streamBuffer;
+        /** Directory exclude matcher, if created. */
+        private Matcher excludeMatcher;
+        /** True if the file last searched was found to be binary. */
+        boolean binary;
+
+        /**
+         * Matches the path of the file, relative to the starting
+         * directory, against the filename filter. The path is put
+         * together in a buffer that is reused from file to file.
+         *
+         * @param  directory  relative path of the directory holding
+         *                    the file, with a trailing separator.
+         * @param  name       name of the file.
+         * @return  true if the file should be searched.
+         */
+        boolean acceptFile(String directory, String name) {
+            relativePath.setLength(0);
+            relativePath.append(directory).append(name);
+            if (filterMatcher == null && nameFilter.needsMatcher()) {
+                filterMatcher = nameFilter.getPattern().matcher("");
+            }
+            return nameFilter.accept(relativePath, filterMatcher);
+        }
+
+        /**
+         * Decides if a file found in a directory is to be scanned. An
+         * archive is, when searching within archives, as the filter
+         * is then applied to its entries instead.
+         *
+         * @param  directory  relative path of the directory holding
+         *                    the file, with a trailing separator.
+         * @param  name       name of the file.
+         * @return  true if the file should be scanned.
+         */
+        boolean acceptListed(String directory, String name) {
+            if (searchArchives && replacer == null
+                && archiveKind(name) != ARCHIVE_NONE) {
+                return true;
+            }
+            return acceptFile(directory, name);
+        }
+
+        /**
+         * Matches the given path, relative to the starting directory,
+         * against the filename filter.
+         *
+         * @param  path  relative path of the file.
+         * @return  true if the file should be searched.
+         */
+        boolean acceptFile(String path) {
+            return acceptFile("", path);
+        }
+
+        /**
+         * Chooses the charset of a file, given its first block.
+         *
+         * @param  block  first block of the file; the block is consumed.
+         * @return  true if the block is valid in the chosen charset.
+         */
+        boolean chooseCharset(ByteBuffer block) {
+            if (autoEncoding) {
+                int pos = block.position();
+                useCharset(StandardCharsets.UTF_8);
+                if (block.remaining() >= 3 && block.get(pos) == (byte) 0xef
+                    && block.get(pos + 1) == (byte) 0xbb
+                    && block.get(pos + 2) == (byte) 0xbf) {
+                    // A UTF-8 byte order mark.
+                    return true;
+                }
+                if (!isValid(block)) {
+                    // Any bytes at all are valid ISO-8859-1.
+                    useCharset(null);
+                }
+                return true;
+            }
+            useCharset(encoding);
+            return encoding == null || isValid(block);
+        }
+
+        /**
+         * Sets the charset of the file being searched.
+         *
+         * @param  cs  charset, or null to match the bytes as they are.
+         */
+        private void useCharset(Charset cs) {
+            fileCharset = cs;
+            multiByte = StandardCharsets.UTF_8.equals(cs);
+            if (cs != null
+                && (decoder == null || !decoder.charset().equals(cs))) {
+                decoder = cs.newDecoder();
+            }
+        }
+
+        /**
+         * Decides if the block is valid in the charset of the file.
+         *
+         * @param  block  bytes to decode; the block is consumed.
+         * @return  true if there are no invalid sequences.
+         */
+        private boolean isValid(ByteBuffer block) {
+            CharBuffer chars = sniffChars;
+            chars.clear();
+            decoder.reset();
+            // Not the end of input, so a sequence cut short by the end
+            // of the block is not an error.
+            return !decoder.decode(block, chars, false).isError();
+        }
+
+        /**
+         * Notes whether the given range of bytes is to be decoded
+         * before it is matched, which it need not be if the file is
+         * matched as bytes or the range holds only ASCII.
+         *
+         * @param  bb    bytes to be searched.
+         * @param  from  index of the first byte.
+         * @param  to    index after the last byte.
+         */
+        void prepare(ByteBuffer bb, int from, int to) {
+            decoding = fileCharset != null
+                && !ByteCharSequence.isAscii(bb, from, to);
+        }
+
+        /**
+         * Returns the text to be matched for the given bytes, decoded
+         * if need be. The decoded text is held in a buffer that is
+         * reused by the next call. Bytes that cannot be decoded, as
+         * well as those that are all ASCII, are returned as they are.
+         *
+         * @param  cs  bytes within the range last prepared.
+         * @return  text to be matched.
+         */
+        CharSequence text(CharSequence cs) {
+            textDecoded = false;
+            if (!decoding || !(cs instanceof ByteCharSequence)) {
+                return cs;
+            }
+            ByteCharSequence bcs = (ByteCharSequence) cs;
+            if (bcs.isAscii()) {
+                return cs;
+            }
+            ByteBuffer in = bcs.bytes();
+            int skip = 0;
+            if (multiByte) {
+                // Pass over the tail of a character cut by the start
+                // of a window.
+                while (skip < 3 && in.hasRemaining()
+                       && (in.get(in.position()) & 0xc0) == 0x80) {
+                    in.position(in.position() + 1);
+                    skip++;
+                }
+            }
+            if (decoded.capacity() < in.remaining()) {
+                // Callers decode at most DECODE_CHUNK bytes (and a few
+                // either side) at once, so the buffer stays bounded.
+                decoded = CharBuffer.allocate(Math.max(in.remaining(),
+                    Math.min(decoded.capacity() * 2, DECODE_CHUNK)));
+            }
+            decoded.clear();
+            decoder.reset();
+            // Not the end of input, so a character cut short by the
+            // end of a window is left out rather than being an error.
+            CoderResult result = decoder.decode(in, decoded, false);
+            if (result.isError()) {
+                return cs;
+            }
+            decoded.flip();
+            textDecoded = true;
+            skipped = skip;
+            charCursor = 0;
+            byteCursor = skip;
+            return decoded;
+        }
+
+        /**
+         * Converts an index into the text last returned by text(),
+         * which may not be less than the index last converted, into
+         * the index of the corresponding byte.
+         *
+         * @param  index  index of a character.
+         * @return  index of the byte at which the character begins.
+         */
+        int byteIndex(int index) {
+            if (!textDecoded) {
+                return index;
+            }
+            if (!multiByte) {
+                return index;
+            }
+            if (index < charCursor) {
+                charCursor = 0;
+                byteCursor = skipped;
+            }
+            while (charCursor < index) {
+                advance();
+            }
+            return byteCursor;
+        }
+
+        /**
+         * Converts the index of a byte within the text last returned
+         * by text(), which may not be less than the index last
+         * converted, into the index of the first character that begins
+         * at or after that byte.
+         *
+         * @param  index  index of a byte.
+         * @return  index of the corresponding character.
+         */
+        int charIndex(int index) {
+            if (!textDecoded) {
+                return index;
+            }
+            if (!multiByte) {
+                return index;
+            }
+            if (index < byteCursor) {
+                charCursor = 0;
+                byteCursor = skipped;
+            }
+            while (byteCursor < index && charCursor < decoded.limit()) {
+                advance();
+            }
+            return charCursor;
+        }
+
+        /**
+         * Moves the cursors past the character at the cursor.
+         */
+        private void advance() {
+            char ch = decoded.get(charCursor);
+            if (ch < 0x80) {
+                byteCursor++;
+            } else if (ch < 0x800) {
+                byteCursor += 2;
+            } else if (Character.isHighSurrogate(ch)) {
+                // Both halves of the pair come from four bytes.
+                byteCursor += 4;
+                charCursor++;
+            } else {
+                byteCursor += 3;
+            }
+            charCursor++;
+        }
+
+        /**
+         * Returns the buffer through which streams are read.
+         *
+         * @return  stream buffer.
+         */
+        ByteBuffer streamBuffer() {
+            if (streamBuffer == null) {
+                streamBuffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+            }
+            return streamBuffer;
+        }
+
+        /**
+         * Matches the directory name against the exclude pattern.
+         *
+         * @param  dirname  simple name of the directory.
+         * @return  true if the directory should not be searched.
+         */
+        boolean excludeDirectory(String dirname) {
+            if (excludePattern == null) {
+                // There's no exclude pattern given.
+                return false;
+            }
+            if (excludeMatcher == null) {
+                excludeMatcher = excludePattern.matcher(dirname);
+            } else {
+                excludeMatcher.reset(dirname);
+            }
+            return excludeMatcher.find();
+        }
+
+        /**
+         * Returns the target matcher, reset to the given input.
+         *
+         * @param  input  character sequence to be matched.
+         * @return  target matcher.
+         */
+        Matcher target(CharSequence input) {
+            input = checked(input);
+            if (singleLine) {
+                if (singleLineMatcher == null) {
+                    singleLineMatcher = singleLinePattern.matcher(input);
+                } else {
+                    singleLineMatcher.reset(input);
+                }
+                return singleLineMatcher;
+            }
+            if (targetMatcher == null) {
+                targetMatcher = targetPattern.matcher(input);
+            } else {
+                targetMatcher.reset(input);
+            }
+            return targetMatcher;
+        }
+
+        /**
+         * Returns the matcher for one of several patterns, reset to
+         * the given input.
+         *
+         * @param  index  index of the pattern.
+         * @param  input  character sequence to be matched.
+         * @return  pattern matcher.
+         */
+        Matcher pattern(int index, CharSequence input) {
+            input = checked(input);
+            if (patternMatchers == null) {
+                patternMatchers = new Matcher[patternSet.size()];
+            }
+            Matcher matcher = patternMatchers[index];
+            if (matcher == null) {
+                matcher = patternSet.getPattern(index).matcher(input);
+                patternMatchers[index] = matcher;
+            } else {
+                matcher.reset(input);
+            }
+            return matcher;
+        }
+
+        /**
+         * Returns the whole-buffer target matcher, reset to the given
+         * input.
+         *
+         * @param  input  character sequence to be matched.
+         * @return  whole-buffer target matcher.
+         */
+        Matcher buffer(CharSequence input) {
+            input = checked(input);
+            if (bufferMatcher == null) {
+                bufferMatcher = bufferPattern.matcher(input);
+            } else {
+                bufferMatcher.reset(input);
+            }
+            return bufferMatcher;
+        }
+
+        /**
+         * Returns the end-of-line matcher, reset to the given input.
+         *
+         * @param  input  character sequence to be matched.
+         * @return  end-of-line matcher.
+         */
+        Matcher lines(CharSequence input) {
+            if (lineMatcher == null) {
+                lineMatcher = linePattern.matcher(input);
+            } else {
+                lineMatcher.reset(input);
+            }
+            // Leave out a final line that lacks a terminator, which is
+            // not searched, and would otherwise take quadratic time to
+            // pass over, as ".*" is tried from each of its characters.
+            int end = input.length();
+            while (end > 0 && input.charAt(end - 1) != '\n') {
+                end--;
+            }
+            lineMatcher.region(0, end);
+            return lineMatcher;
+        }
+
+        /**
+         * Resets the content matchers so they no longer refer to the
+         * file that was last searched.
+         */
+        void release() {
+            if (decoded.capacity() > KEPT_DECODED_SIZE) {
+                // Let go of a buffer grown for a long line or window.
+                decoded = CharBuffer.allocate(SNIFF_SIZE);
+            }
+            if (lineMatcher != null) {
+                lineMatcher.reset("");
+            }
+            if (bufferMatcher != null) {
+                bufferMatcher.reset("");
+            }
+            if (targetMatcher != null) {
+                targetMatcher.reset("");
+                targetMatcher.useAnchoringBounds(true);
+                targetMatcher.useTransparentBounds(false);
+            }
+            if (patternMatchers != null) {
+                for (Matcher matcher : patternMatchers) {
+                    if (matcher != null) {
+                        matcher.reset("");
+                    }
+                }
+            }
+        }
+    } // ScanContext
 } // Searcher
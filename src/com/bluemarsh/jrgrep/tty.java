@@ -22,7 +22,16 @@
 
 package com.bluemarsh.jrgrep;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -34,12 +43,75 @@ import java.util.regex.PatternSyntaxException;
  * @author  Nathan Fiedler
  */
 public class tty implements FileSearchListener {
+    /** Output format of lines of text, as for a person to read. */
+    private static final int OUTPUT_TEXT = 0;
+    /** Output format of text ending in NUL rather than newline. */
+    private static final int OUTPUT_NUL = 1;
+    /** Output format of one JSON object per line. */
+    private static final int OUTPUT_JSON = 2;
+    /** Milliseconds between flushes of waiting output. */
+    private static final long FLUSH_INTERVAL = 200;
     /** Argument index. */
     private static int argIndex;
+    /** True to search within gzip, zip, and jar archives. */
+    private static boolean archives;
+    /** How binary files are handled. */
+    private static int binaryMode = Searcher.BINARY_SKIP;
+    /** Charset in which files are decoded, or null for none. */
+    private static String encodingStr;
     /** Directory exclude string. */
     private static String excludeStr = "";
     /** Filename filter string. */
     private static String nameStr = "";
+    /** Patterns given by the -e and -f options, if any. */
+    private static List<String> targets = new ArrayList<String>();
+    /** Number of threads to search with. */
+    private static int threads = 1;
+    /** True to scan each file on a virtual thread. */
+    private static boolean virtual;
+    /** Maximum number of files open at once, if positive. */
+    private static int maxOpen;
+    /** Maximum number of megabytes mapped at once, if positive. */
+    private static int maxMapped;
+    /** Size in megabytes of the windows for large files, if positive. */
+    private static int window;
+    /** Maximum DOTALL match span in kilobytes, if positive. */
+    private static int span;
+    /** Directory of the content index to build, if any. */
+    private static String buildIndexStr;
+    /** Directory of the content index to search with, if any. */
+    private static String indexStr;
+    /** Directory of the content index to refresh, if any. */
+    private static String refreshIndexStr;
+    /** True to skip what .gitignore and .ignore files exclude. */
+    private static boolean gitignore;
+    /** True to keep watching for changes after the search. */
+    private static boolean follow;
+    /** Number of match locations to print for each file, if any. */
+    private static int locations;
+    /** What the search reports, one of the Searcher REPORT_ constants. */
+    private static int reportMode = Searcher.REPORT_MATCHING;
+    /** Number of files after which to stop, if positive. */
+    private static int maxFiles;
+    /** Text replacing each match, if replacing. */
+    private static String replaceStr;
+    /** True to count the replacements without changing any files. */
+    private static boolean dryRun;
+    /** True to print the statistics of the search when it is done. */
+    private static boolean printStats;
+    /** True to register the statistics of the search as an MBean. */
+    private static boolean jmx;
+    /** Format of the results, one of the OUTPUT_ constants. */
+    private static int outputFormat = OUTPUT_TEXT;
+    /** Writes the results of the search. */
+    private static ResultWriter out;
+    /** Seconds after which to stop the search, if positive. */
+    private static int timeout;
+    /** Milliseconds each file may take to search, if positive. */
+    private static int fileTimeout;
+
+    /** Searcher whose results are printed. */
+    private Searcher searcher;
 
     /**
      * Displays the program help screen.
@@ -55,13 +127,240 @@ public class tty implements FileSearchListener {
     }
 
     /**
-     * Invoked when a matching file has been found. Typically
+     * Invoked when matching files have been found. Typically
      * the listener will update some UI element here.
      *
-     * @param  event  indicates what file was found
+     * @param  events  indicate what files were found
+     */
+    public void filesFound(List<FileFoundEvent> events) {
+        for (FileFoundEvent event : events) {
+            if (outputFormat == OUTPUT_JSON) {
+                out.println(toJson(event));
+            } else if (event.isBinary()) {
+                note(MessageFormat.format(
+                    Bundle.getString("ttyBinaryFile"), event.getFile()));
+            } else if (event.isTimedOut()) {
+                note(MessageFormat.format(
+                    Bundle.getString("ttyTimedOutFile"), event.getFile()));
+            } else {
+                if (outputFormat == OUTPUT_NUL) {
+                    out.println(event.getFile());
+                }
+                String format = Bundle.getString("ttyMatchLocation");
+                for (MatchLocation loc : event.getMatches()) {
+                    note(MessageFormat.format(format,
+                        event.getFile(), loc.getLine(), loc.getOffset(),
+                        loc.getLength()));
+                }
+                if (replaceStr != null) {
+                    format = Bundle.getString(dryRun ? "ttyWouldReplace"
+                                              : "ttyReplaced");
+                    note(MessageFormat.format(format,
+                        event.getFile(), event.getReplacements()));
+                } else if (!event.getPatterns().isEmpty()) {
+                    StringBuilder sb = new StringBuilder();
+                    for (String pattern : event.getPatterns()) {
+                        if (sb.length() > 0) {
+                            sb.append(", ");
+                        }
+                        sb.append(pattern);
+                    }
+                    note(MessageFormat.format(
+                        Bundle.getString("ttyPatternsFound"),
+                        event.getFile(), sb));
+                } else if (event.getMatches().isEmpty()
+                           && outputFormat != OUTPUT_NUL) {
+                    out.println(event.getFile());
+                }
+            }
+        }
+        if (out.checkError()) {
+            // Nobody is reading the results any longer.
+            searcher.stopSearching();
+        }
+    }
+
+    /**
+     * Prints a line of the results other than the path of a matching
+     * file. With -0 the results are only the paths, each ended by NUL
+     * so that they may be passed to xargs -0, and such lines go to the
+     * standard error instead.
+     *
+     * @param  line  line to print.
+     */
+    private static void note(String line) {
+        if (outputFormat == OUTPUT_NUL) {
+            System.err.println(line);
+        } else {
+            out.println(line);
+        }
+    }
+
+    /**
+     * Formats the given event as a JSON object, giving its type
+     * (match, binary, timeout, or removed), the path of the file, and
+     * the match locations, patterns found, and replacements made,
+     * as far as they are known.
+     *
+     * @param  event  file found or removed.
+     * @return  JSON text of one line.
+     */
+    private static String toJson(FileFoundEvent event) {
+        String type;
+        if (event.isBinary()) {
+            type = "binary";
+        } else if (event.isTimedOut()) {
+            type = "timeout";
+        } else {
+            type = "match";
+        }
+        return toJson(event, type);
+    }
+
+    /**
+     * Formats the given event as a JSON object of the given type.
+     *
+     * @param  event  file found or removed.
+     * @param  type   type of the event.
+     * @return  JSON text of one line.
+     */
+    private static String toJson(FileFoundEvent event, String type) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("{\"type\":\"").append(type).append("\",\"path\":");
+        appendJson(sb, event.getFile());
+        if (!event.getMatches().isEmpty()) {
+            sb.append(",\"matches\":[");
+            boolean first = true;
+            for (MatchLocation loc : event.getMatches()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append("{\"line\":").append(loc.getLine());
+                sb.append(",\"offset\":").append(loc.getOffset());
+                sb.append(",\"length\":").append(loc.getLength());
+                sb.append('}');
+            }
+            sb.append(']');
+        }
+        if (!event.getPatterns().isEmpty()) {
+            sb.append(",\"patterns\":[");
+            boolean first = true;
+            for (String pattern : event.getPatterns()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendJson(sb, pattern);
+            }
+            sb.append(']');
+        }
+        if (replaceStr != null && type.equals("match")) {
+            sb.append(",\"replacements\":").append(event.getReplacements());
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * Appends the given text as a JSON string, quoting and escaping
+     * it as needed.
+     *
+     * @param  sb    builder to append to.
+     * @param  text  text to append.
      */
-    public void fileFound(FileFoundEvent event) {
-        System.out.println(event.getFile());
+    private static void appendJson(StringBuilder sb, String text) {
+        sb.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+                break;
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Builds a content index of the directory given by the remaining
+     * arguments, honoring the name filter and directory exclusion.
+     *
+     * @param  args  command-line arguments.
+     */
+    protected static void buildIndex(String[] args) {
+        String dirStr = argIndex == args.length ? "." : args[argIndex];
+        File dir = new File(dirStr);
+        if (!dir.isDirectory()) {
+            System.err.println(Bundle.getString("pathDoesNotExist"));
+            return;
+        }
+        try {
+            IndexBuilder builder = new IndexBuilder(new File(buildIndexStr));
+            int count = builder.build(dir, nameStr, excludeStr);
+            System.out.println(MessageFormat.format(
+                Bundle.getString("ttyIndexBuilt"), count));
+        } catch (PatternSyntaxException pse) {
+            System.err.println(Bundle.getString("invalidRegexPattern"));
+            System.err.println(pse.getMessage());
+        } catch (IOException ioe) {
+            System.err.println(Bundle.getString("exceptionOccurred"));
+            System.err.println(ioe.getMessage());
+        }
+    }
+
+    /**
+     * Refreshes the content index with the changes made to the files
+     * since it was built or last refreshed. If the index has gathered
+     * many segments, they are compacted in the background.
+     */
+    protected static void refreshIndex() {
+        try {
+            IndexBuilder builder = new IndexBuilder(new File(refreshIndexStr));
+            int count = builder.refresh();
+            System.out.println(MessageFormat.format(
+                Bundle.getString("ttyIndexRefreshed"), count));
+            if (builder.needsCompaction()) {
+                // The program exits once the compaction finishes.
+                builder.startCompaction();
+            }
+        } catch (IOException ioe) {
+            System.err.println(Bundle.getString("exceptionOccurred"));
+            System.err.println(ioe.getMessage());
+        }
+    }
+
+    /**
+     * Invoked when a file found earlier no longer matches.
+     *
+     * @param  event  indicates what file no longer matches
+     */
+    public void fileRemoved(FileFoundEvent event) {
+        if (outputFormat == OUTPUT_JSON) {
+            out.println(toJson(event, "removed"));
+        } else {
+            note(MessageFormat.format(
+                Bundle.getString("ttyFileRemoved"), event.getFile()));
+        }
     }
 
     /**
@@ -74,19 +373,135 @@ public class tty implements FileSearchListener {
         // Look for optional arguments.
         while (argIndex < args.length) {
             String arg = args[argIndex];
-            if (arg.equals("-exclude")) {
+            if (arg.equals("-0")) {
+                // End each result with NUL rather than newline.
+                outputFormat = OUTPUT_NUL;
+            } else if (arg.equals("-archives")) {
+                // Search within compressed files and archives.
+                archives = true;
+            } else if (arg.equals("-buildindex")) {
+                // Build a content index instead of searching.
+                argIndex++;
+                buildIndexStr = args[argIndex];
+            } else if (arg.equals("-binary")) {
+                // How to handle binary files.
+                argIndex++;
+                String mode = args[argIndex];
+                if (mode.equals("skip")) {
+                    binaryMode = Searcher.BINARY_SKIP;
+                } else if (mode.equals("text")) {
+                    binaryMode = Searcher.BINARY_TEXT;
+                } else if (mode.equals("report")) {
+                    binaryMode = Searcher.BINARY_REPORT;
+                } else {
+                    throw new IllegalArgumentException(mode);
+                }
+            } else if (arg.equals("-count")) {
+                // Count the matches instead of listing the files.
+                reportMode = Searcher.REPORT_COUNT;
+            } else if (arg.equals("-dryrun")) {
+                // Show what would be replaced, without doing so.
+                dryRun = true;
+            } else if (arg.equals("-e")) {
+                // One of several patterns to look for.
+                argIndex++;
+                targets.add(args[argIndex]);
+            } else if (arg.equals("-encoding")) {
+                // Charset in which to decode files, or "auto".
+                argIndex++;
+                encodingStr = args[argIndex];
+            } else if (arg.equals("-exclude")) {
                 // Exclude a certain directory.
                 argIndex++;
                 excludeStr = args[argIndex];
+            } else if (arg.equals("-f")) {
+                // Patterns to look for, one per line.
+                argIndex++;
+                readPatterns(args[argIndex]);
+            } else if (arg.equals("-filetimeout")) {
+                // Milliseconds allowed for each file.
+                argIndex++;
+                fileTimeout = parsePositive(args[argIndex]);
+            } else if (arg.equals("-follow")) {
+                // Keep watching for changes after the search.
+                follow = true;
+            } else if (arg.equals("-gitignore")) {
+                // Skip what ignore files exclude.
+                gitignore = true;
             } else if (arg.equals("-h")
                        || arg.equals("-help")
                        || arg.equals("--help")) {
                 displayHelp();
                 return false;
+            } else if (arg.equals("-index")) {
+                // Use a content index to rule out files.
+                argIndex++;
+                indexStr = args[argIndex];
+            } else if (arg.equals("-jmx")) {
+                // Let the running search be watched through JMX.
+                jmx = true;
+            } else if (arg.equals("-json")) {
+                // Print each result as a line of JSON.
+                outputFormat = OUTPUT_JSON;
+            } else if (arg.equals("-matches")) {
+                // Print where the matches are in each file.
+                argIndex++;
+                if (args[argIndex].equals("all")) {
+                    locations = Integer.MAX_VALUE;
+                } else {
+                    locations = parsePositive(args[argIndex]);
+                }
+            } else if (arg.equals("-maxfiles")) {
+                // Stop after this many files.
+                argIndex++;
+                maxFiles = parsePositive(args[argIndex]);
+            } else if (arg.equals("-maxmapped")) {
+                // Limit on megabytes mapped by virtual threads.
+                argIndex++;
+                maxMapped = parsePositive(args[argIndex]);
+            } else if (arg.equals("-maxopen")) {
+                // Limit on files opened by virtual threads.
+                argIndex++;
+                maxOpen = parsePositive(args[argIndex]);
             } else if (arg.equals("-name")) {
                 // The file pattern to look for.
                 argIndex++;
                 nameStr = args[argIndex];
+            } else if (arg.equals("-nonmatching")) {
+                // List the files that do not match.
+                reportMode = Searcher.REPORT_NONMATCHING;
+            } else if (arg.equals("-refreshindex")) {
+                // Bring a content index up to date.
+                argIndex++;
+                refreshIndexStr = args[argIndex];
+            } else if (arg.equals("-replace")) {
+                // Replace the matches with this text.
+                argIndex++;
+                replaceStr = args[argIndex];
+            } else if (arg.equals("-span")) {
+                // Longest match spanning windows, in kilobytes.
+                argIndex++;
+                span = parsePositive(args[argIndex],
+                                     Integer.MAX_VALUE / 1024);
+            } else if (arg.equals("-stats") || arg.equals("--stats")) {
+                // Summarize how the search went.
+                printStats = true;
+            } else if (arg.equals("-threads")) {
+                // Number of threads to search with.
+                argIndex++;
+                threads = parsePositive(args[argIndex]);
+            } else if (arg.equals("-timeout")) {
+                // Seconds allowed for the whole search.
+                argIndex++;
+                timeout = parsePositive(args[argIndex]);
+            } else if (arg.equals("-virtual")) {
+                // Scan each file on a virtual thread.
+                virtual = true;
+            } else if (arg.equals("-window")) {
+                // Scan large files through windows of this many MB.
+                argIndex++;
+                // Each window must be mapped whole.
+                window = parsePositive(args[argIndex], 2047);
             } else {
                 // End of options.
                 break;
@@ -97,9 +512,120 @@ public class tty implements FileSearchListener {
     }
 
     /**
-     * Invoked when the search has been completed.
+     * Reads the patterns in the given file, one per line, adding them
+     * to those to look for. Blank lines are ignored.
+     *
+     * @param  name  name of the file of patterns.
+     * @throws  IllegalArgumentException
+     *          if the file could not be read.
+     */
+    private static void readPatterns(String name) {
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(name));
+            try {
+                String line = br.readLine();
+                while (line != null) {
+                    if (line.length() > 0) {
+                        targets.add(line);
+                    }
+                    line = br.readLine();
+                }
+            } finally {
+                br.close();
+            }
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException(ioe.getMessage());
+        }
+    }
+
+    /**
+     * Parses the option argument as a positive integer.
+     *
+     * @param  arg  option argument.
+     * @return  parsed value.
+     * @throws  NumberFormatException
+     *          if the argument is not a positive integer.
+     */
+    private static int parsePositive(String arg) {
+        return parsePositive(arg, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Parses the option argument as a positive integer no larger than
+     * the given maximum.
+     *
+     * @param  arg  option argument.
+     * @param  max  largest value allowed.
+     * @return  parsed value.
+     * @throws  NumberFormatException
+     *          if the argument is not a positive integer, or is
+     *          larger than the maximum.
      */
-    public void searchComplete() {
+    private static int parsePositive(String arg, int max) {
+        int value = Integer.parseInt(arg);
+        if (value < 1 || value > max) {
+            throw new NumberFormatException(arg);
+        }
+        return value;
+    }
+
+    /**
+     * Invoked when the search has been completed. Prints the count of
+     * matches, if counting, what was not searched, and the statistics
+     * of the search, if asked for.
+     *
+     * @param  stats  statistics of the completed search.
+     */
+    public void searchComplete(SearchStats stats) {
+        if (reportMode == Searcher.REPORT_COUNT) {
+            if (outputFormat == OUTPUT_JSON) {
+                out.println("{\"type\":\"count\",\"matches\":"
+                            + stats.getMatches() + ",\"files\":"
+                            + stats.getMatchingFiles() + "}");
+            } else {
+                note(MessageFormat.format(
+                    Bundle.getString("ttyMatchCount"), stats.getMatches(),
+                    stats.getMatchingFiles()));
+            }
+        }
+        // Let the results precede the messages that follow.
+        out.flush();
+
+        // Summarize what was not searched.
+        long binaries = stats.getBinaryFiles();
+        if (binaries > 0) {
+            System.err.println(MessageFormat.format(
+                Bundle.getString("ttyBinarySkipped"), binaries));
+        }
+        long timedOut = stats.getTimedOutFiles();
+        if (timedOut > 0) {
+            System.err.println(MessageFormat.format(
+                Bundle.getString("ttyFilesTimedOut"), timedOut));
+        }
+        if (stats.isTimedOut()) {
+            System.err.println(MessageFormat.format(
+                Bundle.getString("ttySearchTimedOut"), timeout));
+        }
+
+        if (printStats) {
+            System.err.println(MessageFormat.format(
+                Bundle.getString("ttyStatsListed"), stats.getDirectories(),
+                stats.getFilesListed(), stats.getFilesFiltered()));
+            System.err.println(MessageFormat.format(
+                Bundle.getString("ttyStatsScanned"), stats.getFilesScanned(),
+                stats.getBytesScanned(), stats.getFilesSkipped(),
+                stats.getErrors()));
+            System.err.println(MessageFormat.format(
+                Bundle.getString("ttyStatsMatched"),
+                stats.getMatchingFiles()));
+            System.err.println(MessageFormat.format(
+                Bundle.getString("ttyStatsPhases"), stats.getListingMillis(),
+                stats.getOpeningMillis(), stats.getMatchingMillis(),
+                stats.getReportingMillis()));
+            System.err.println(MessageFormat.format(
+                Bundle.getString("ttyStatsElapsed"), stats.getElapsedMillis(),
+                stats.getBytesPerSecond() / (1024.0 * 1024.0)));
+        }
     }
 
     /**
@@ -108,6 +634,7 @@ public class tty implements FileSearchListener {
      * @param  t  throwable indicating cause of failure.
      */
     public void searchFailed(Throwable t) {
+        out.flush();
         System.err.println(Bundle.getString("exceptionOccurred"));
         System.err.println(t.getMessage());
     }
@@ -126,16 +653,37 @@ public class tty implements FileSearchListener {
             // Missing argument.
             System.err.println(Bundle.getString("ttyMissingArguments"));
             return;
+        } catch (NumberFormatException nfe) {
+            // Invalid numeric argument.
+            System.err.println(Bundle.getString("ttyInvalidNumber"));
+            System.err.println(nfe.getMessage());
+            return;
+        } catch (IllegalArgumentException iae) {
+            // Invalid choice of argument.
+            System.err.println(Bundle.getString("ttyInvalidArgument"));
+            System.err.println(iae.getMessage());
+            return;
         }
 
-        // Look for the required arguments.
-        if (argIndex == args.length) {
-            System.err.println(Bundle.getString("ttyMissingRequired"));
+        if (buildIndexStr != null) {
+            buildIndex(args);
+            return;
+        }
+        if (refreshIndexStr != null) {
+            refreshIndex();
             return;
         }
 
-        String target = args[argIndex];
-        argIndex++;
+        // Look for the required arguments, the pattern being one of
+        // them only if no -e or -f option was given.
+        if (targets.isEmpty()) {
+            if (argIndex == args.length) {
+                System.err.println(Bundle.getString("ttyMissingRequired"));
+                return;
+            }
+            targets.add(args[argIndex]);
+            argIndex++;
+        }
 
         String dirStr = null;
         if (argIndex == args.length) {
@@ -152,20 +700,100 @@ public class tty implements FileSearchListener {
         }
 
         // Validate the regex patterns.
+        PatternSet patterns;
         try {
-            Pattern.compile(target);
+            patterns = new PatternSet(targets);
             Pattern.compile(nameStr);
         } catch (PatternSyntaxException pse) {
             System.err.println(Bundle.getString("invalidRegexPattern"));
             System.err.println(pse.getMessage());
             return;
         }
+        if (replaceStr != null) {
+            try {
+                new Replacer(patterns.getPattern(), replaceStr, dryRun);
+                if (patterns.getSingleLinePattern() != null) {
+                    new Replacer(patterns.getSingleLinePattern(),
+                                 replaceStr, dryRun);
+                }
+            } catch (IllegalArgumentException iae) {
+                System.err.println(Bundle.getString("ttyInvalidReplacement"));
+                System.err.println(iae.getMessage());
+                return;
+            }
+        }
 
         // Perform the search.
         Searcher searcher = new Searcher();
+        searcher.setParallelism(threads);
+        searcher.setBinaryMode(binaryMode);
+        try {
+            searcher.setEncoding(encodingStr);
+        } catch (IllegalArgumentException iae) {
+            System.err.println(Bundle.getString("ttyInvalidArgument"));
+            System.err.println(iae.getMessage());
+            return;
+        }
+        searcher.setVirtualThreads(virtual);
+        searcher.setIgnoreFiles(gitignore);
+        searcher.setArchives(archives);
+        searcher.setWatch(follow);
+        searcher.setManaged(jmx);
+        searcher.setTimeout(timeout * 1000L);
+        searcher.setFileTimeout(fileTimeout);
+        searcher.setMaxLocations(locations);
+        searcher.setReportMode(reportMode);
+        searcher.setReplacement(replaceStr);
+        searcher.setDryRun(dryRun);
+        if (maxFiles > 0) {
+            searcher.setMaxFiles(maxFiles);
+        }
+        if (maxOpen > 0) {
+            searcher.setMaxOpenFiles(maxOpen);
+        }
+        if (maxMapped > 0) {
+            searcher.setMaxMappedBytes(maxMapped * 1024L * 1024L);
+        }
+        if (window > 0) {
+            searcher.setWindowSize(window * 1024L * 1024L);
+        }
+        if (span > 0) {
+            searcher.setMaxMatchSpan(span * 1024);
+        }
+        if (indexStr != null) {
+            try {
+                searcher.setIndex(ContentIndex.open(new File(indexStr)));
+            } catch (IOException ioe) {
+                System.err.println(Bundle.getString("ttyIndexUnreadable"));
+                System.err.println(ioe.getMessage());
+                return;
+            }
+        }
+        // Write the results through a buffer, straight to the channel.
+        Charset charset = outputFormat == OUTPUT_JSON
+            ? Charset.forName("UTF-8") : Charset.defaultCharset();
+        String terminator = System.getProperty("line.separator");
+        if (outputFormat == OUTPUT_NUL) {
+            terminator = "\0";
+        } else if (outputFormat == OUTPUT_JSON) {
+            terminator = "\n";
+        }
+        out = new ResultWriter(
+            new FileOutputStream(FileDescriptor.out).getChannel(),
+            charset, terminator, FLUSH_INTERVAL);
+        if (follow) {
+            // Watching ends only when the program is interrupted.
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    out.flush();
+                }
+            });
+        }
         tty instance = new tty();
+        instance.searcher = searcher;
         searcher.addSearchListener(instance);
-        searcher.search(dir, target, nameStr, true, excludeStr);
+        searcher.search(dir, targets, nameStr, true, excludeStr);
         searcher.removeSearchListener(instance);
+        out.close();
     }
 }
@@ -0,0 +1,119 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that replacing through windows, including in lines longer
+ * than a window, writes the same files as replacing in files mapped
+ * whole.
+ *
+ * @author  Nathan Fiedler
+ */
+public class ReplacerTest {
+    /** Holds the files of each test. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    /** Directory holding the original files. */
+    private File plain;
+
+    @Before
+    public void setUp() throws IOException {
+        plain = folder.newFolder("plain");
+        TestFiles.write(plain);
+    }
+
+    /**
+     * Replaces the pattern in a copy of the original files, both when
+     * mapped whole and through windows, and compares the results.
+     *
+     * @param  pattern      pattern to replace.
+     * @param  replacement  replacement text.
+     */
+    private void assertReplacedAlike(String pattern, String replacement)
+        throws IOException {
+        File whole = folder.newFolder();
+        TestFiles.copy(plain, whole);
+        Searcher searcher = new Searcher();
+        searcher.setReplacement(replacement);
+        TestFiles.Collector expected = new TestFiles.Collector();
+        searcher.addSearchListener(expected);
+        searcher.search(whole, pattern, ".*", false, "");
+        assertTrue(pattern, expected.replacements() > 0);
+
+        File windowed = folder.newFolder();
+        TestFiles.copy(plain, windowed);
+        searcher = new Searcher();
+        searcher.setReplacement(replacement);
+        searcher.setWindowSize(TestFiles.WINDOW_SIZE);
+        TestFiles.Collector actual = new TestFiles.Collector();
+        searcher.addSearchListener(actual);
+        searcher.search(windowed, pattern, ".*", false, "");
+
+        assertEquals(pattern, expected.results().keySet(),
+                     actual.results().keySet());
+        assertEquals(pattern, expected.replacements(),
+                     actual.replacements());
+        for (File file : plain.listFiles()) {
+            assertArrayEquals(pattern + " in " + file.getName(),
+                Files.readAllBytes(new File(whole, file.getName()).toPath()),
+                Files.readAllBytes(
+                    new File(windowed, file.getName()).toPath()));
+        }
+    }
+
+    @Test
+    public void testLiteral() throws IOException {
+        assertReplacedAlike("needle", "pin");
+    }
+
+    @Test
+    public void testAnchored() throws IOException {
+        assertReplacedAlike("^needle$", "NEEDLE");
+    }
+
+    @Test
+    public void testLookaround() throws IOException {
+        assertReplacedAlike("(?<=a)needle(?=b)", "<$0>");
+    }
+
+    @Test
+    public void testGroups() throws IOException {
+        assertReplacedAlike("([c-v])(needle)", "$2$1");
+    }
+
+    @Test
+    public void testDotAll() throws IOException {
+        assertReplacedAlike("(?s)needle\\s+needle", "needles");
+    }
+}
@@ -0,0 +1,152 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the files are scanned alike however they are read: mapped
+ * whole, through windows, decompressed from gzip files, or narrowed by
+ * a content index. The whole-file scan is taken as the reference,
+ * once it has been checked against a plain scan of each line.
+ *
+ * @author  Nathan Fiedler
+ */
+public class SearcherTest {
+    /** Patterns searched for in every test. */
+    private static final String[] PATTERNS = {
+        "needle",
+        "^needle$",
+        "(?<=a)needle(?=b)",
+        "e{2}dle\\b",
+        "[^c-w ]needle",
+        "(?s)needle\\s+needle",
+    };
+    /** Holds the files of each test. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    /** Directory holding the plain files. */
+    private File plain;
+
+    @Before
+    public void setUp() throws IOException {
+        plain = folder.newFolder("plain");
+        TestFiles.write(plain);
+    }
+
+    /**
+     * Returns the matches found in the plain files, mapped whole.
+     *
+     * @param  pattern  pattern to look for.
+     * @return  match locations of each file found.
+     */
+    private Map<String, List<String>> wholeFile(String pattern) {
+        Map<String, List<String>> found = TestFiles.search(
+            new Searcher(), plain, pattern);
+        assertFalse(pattern, found.isEmpty());
+        return found;
+    }
+
+    @Test
+    public void testWholeFile() throws IOException {
+        for (String pattern : PATTERNS) {
+            if (pattern.startsWith("(?s)")) {
+                continue;
+            }
+            Map<String, List<String>> found = wholeFile(pattern);
+            for (File file : plain.listFiles()) {
+                List<String> expected = TestFiles.scanLines(file, pattern);
+                if (expected.isEmpty()) {
+                    assertFalse(pattern, found.containsKey(file.getName()));
+                } else {
+                    assertEquals(pattern, expected,
+                                 found.get(file.getName()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWindowed() {
+        for (String pattern : PATTERNS) {
+            Searcher searcher = new Searcher();
+            searcher.setWindowSize(TestFiles.WINDOW_SIZE);
+            assertEquals(pattern, wholeFile(pattern),
+                         TestFiles.search(searcher, plain, pattern));
+        }
+    }
+
+    @Test
+    public void testWindowedEncoded() {
+        Searcher searcher = new Searcher();
+        searcher.setEncoding("UTF-8");
+        String pattern = "(?<=\u4e2d)needle(?=\u6587)";
+        Map<String, List<String>> expected = TestFiles.search(
+            searcher, plain, pattern);
+        assertTrue(expected.containsKey("utf8.txt"));
+        searcher = new Searcher();
+        searcher.setEncoding("UTF-8");
+        searcher.setWindowSize(TestFiles.WINDOW_SIZE);
+        assertEquals(expected, TestFiles.search(searcher, plain, pattern));
+    }
+
+    @Test
+    public void testArchives() throws IOException {
+        File gzipped = folder.newFolder("gzipped");
+        TestFiles.gzip(plain, gzipped);
+        for (String pattern : PATTERNS) {
+            Searcher searcher = new Searcher();
+            searcher.setArchives(true);
+            assertEquals(pattern, wholeFile(pattern),
+                         TestFiles.search(searcher, gzipped, pattern));
+        }
+    }
+
+    @Test
+    public void testIndexed() throws IOException {
+        File indexDir = folder.newFolder("index");
+        new IndexBuilder(indexDir).build(plain, ".*", "");
+        ContentIndex index = ContentIndex.open(indexDir);
+        for (String pattern : PATTERNS) {
+            Searcher searcher = new Searcher();
+            searcher.setIndex(index);
+            assertEquals(pattern, wholeFile(pattern),
+                         TestFiles.search(searcher, plain, pattern));
+            searcher = new Searcher();
+            searcher.setIndex(index);
+            searcher.setWindowSize(TestFiles.WINDOW_SIZE);
+            assertEquals(pattern, wholeFile(pattern),
+                         TestFiles.search(searcher, plain, pattern));
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*********************************************************************
+ *
+ *      Copyright (C) 2005 Nathan Fiedler
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * $Id$
+ *
+ ********************************************************************/
+
+package com.bluemarsh.jrgrep;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the files searched by the tests, and runs searches over them
+ * to collect what is found. Some of the files hold lines far longer
+ * than the windows and buffers through which they are scanned, with
+ * matches placed across the boundaries of those windows.
+ *
+ * @author  Nathan Fiedler
+ */
+class TestFiles {
+    /** Size of the windows through which the tests scan files. */
+    static final long WINDOW_SIZE = 64 * 1024;
+    /** Length of the line longer than the stream buffer. */
+    static final int LONG_LINE = 1200 * 1024 + 17;
+    /** Length of the line longer than the window, but not the buffer. */
+    static final int MEDIUM_LINE = 150 * 1024 + 3;
+
+    /**
+     * Not instantiated.
+     */
+    private TestFiles() {
+    }
+
+    /**
+     * Writes the test files into the given directory.
+     *
+     * @param  dir  directory to hold the files.
+     * @exception  IOException
+     *             if the files could not be written.
+     */
+    static void write(File dir) throws IOException {
+        write(new File(dir, "short.txt"),
+              "needle in a haystack\n"
+              + "needle\n"
+              + "a needle b aneedleb\r\n"
+              + "no match here\n"
+              + "needle\n"
+              + "needle at the end\n"
+              + "unterminated needle");
+        write(new File(dir, "none.txt"),
+              "nothing to see here\nor here\n");
+        StringBuilder sb = new StringBuilder();
+        sb.append("needle\n");
+        sb.append(longLine(MEDIUM_LINE, 4093, "aneedleb")).append('\n');
+        sb.append("needle\n");
+        sb.append(longLine(LONG_LINE, 9973, "needle")).append('\n');
+        sb.append("the end, aneedleb\n");
+        sb.append(longLine(MEDIUM_LINE, 65536 - 3, "needle")).append('\n');
+        // Place a match across each window boundary, which are also
+        // the boundaries of the stream buffer, within the long lines.
+        for (int ii = (int) WINDOW_SIZE; ii < sb.length(); ii += WINDOW_SIZE) {
+            if (sb.substring(ii - 4, ii + 4).indexOf('\n') < 0) {
+                sb.replace(ii - 3, ii + 3, "needle");
+            }
+        }
+        write(new File(dir, "long.txt"), sb.toString());
+        // A line of nothing but matches, nine bytes apart, so that one
+        // spans any boundary of a window or buffer within the line.
+        sb.setLength(0);
+        sb.append("needle\n");
+        while (sb.length() < LONG_LINE) {
+            sb.append("aneedleb ");
+        }
+        sb.append("\nneedle\n");
+        write(new File(dir, "dense.txt"), sb.toString());
+        sb.setLength(0);
+        for (int ii = 0; ii < 40000; ii++) {
+            sb.append("\u4e2d\u6587 ");
+            if (ii % 997 == 0) {
+                sb.append("\u4e2dneedle\u6587 ");
+            }
+        }
+        write(new File(dir, "utf8.txt"),
+              "\u4e2d\u6587\n" + sb + "\n\u6587\u4e2dneedle\n");
+    }
+
+    /**
+     * Returns a line of the given length, of filler with the given
+     * text placed at every stride characters.
+     *
+     * @param  length  length of the line.
+     * @param  stride  distance between the occurrences of the text.
+     * @param  text    text to be placed in the line.
+     * @return  the line, without its terminator.
+     */
+    private static String longLine(int length, int stride, String text) {
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append((char) ('c' + sb.length() % 20));
+            if (sb.length() % stride == 0) {
+                sb.append(text);
+            }
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    /**
+     * Writes the text to a file, encoded as UTF-8.
+     *
+     * @param  file  file to write.
+     * @param  text  contents of the file.
+     * @exception  IOException
+     *             if the file could not be written.
+     */
+    private static void write(File file, String text) throws IOException {
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Copies each file in one directory to another, compressed with
+     * gzip.
+     *
+     * @param  from  directory holding the files.
+     * @param  to    directory to hold the compressed copies.
+     * @exception  IOException
+     *             if the files could not be copied.
+     */
+    static void gzip(File from, File to) throws IOException {
+        for (File file : from.listFiles()) {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(
+                new File(to, file.getName() + ".gz")));
+            try {
+                Files.copy(file.toPath(), out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Copies each file in one directory to another.
+     *
+     * @param  from  directory holding the files.
+     * @param  to    directory to hold the copies.
+     * @exception  IOException
+     *             if the files could not be copied.
+     */
+    static void copy(File from, File to) throws IOException {
+        for (File file : from.listFiles()) {
+            Files.copy(file.toPath(), new File(to, file.getName()).toPath());
+        }
+    }
+
+    /**
+     * Finds the matches of the pattern in each line of the file, one
+     * line at a time, as the searcher matches them when each byte is
+     * taken as one character. A last line without a terminator is not
+     * searched, as the searcher does not search it either.
+     *
+     * @param  file     file to scan.
+     * @param  pattern  pattern to look for.
+     * @return  location of each match, as strings.
+     * @exception  IOException
+     *             if the file could not be read.
+     */
+    static List<String> scanLines(File file, String pattern)
+        throws IOException {
+        String text = new String(Files.readAllBytes(file.toPath()),
+                                 StandardCharsets.ISO_8859_1);
+        Matcher matcher = Pattern.compile(pattern).matcher("");
+        List<String> matches = new ArrayList<String>();
+        int start = 0;
+        int line = 1;
+        int end = text.indexOf('\n');
+        while (end >= 0) {
+            matcher.reset(text.substring(start, end + 1));
+            while (matcher.find()) {
+                matches.add(new MatchLocation(
+                    line, start + matcher.start(),
+                    matcher.end() - matcher.start()).toString());
+            }
+            start = end + 1;
+            line++;
+            end = text.indexOf('\n', start);
+        }
+        return matches;
+    }
+
+    /**
+     * Searches the directory for the pattern, collecting the location
+     * of every match. The files are named without their directory, or
+     * any .gz suffix, so that the results of different directories may
+     * be compared.
+     *
+     * @param  searcher  searcher with its options set.
+     * @param  dir       directory to search.
+     * @param  pattern   pattern to look for.
+     * @return  match locations of each file found, as strings.
+     */
+    static Map<String, List<String>> search(Searcher searcher, File dir,
+                                            String pattern) {
+        searcher.setMaxLocations(Integer.MAX_VALUE);
+        Collector collector = new Collector();
+        searcher.addSearchListener(collector);
+        try {
+            searcher.search(dir, pattern, ".*", false, "");
+        } finally {
+            searcher.removeSearchListener(collector);
+        }
+        return collector.results();
+    }
+
+    /**
+     * Collects the files found by a search.
+     */
+    static class Collector implements FileSearchListener {
+        /** Match locations of each file found. */
+        private final Map<String, List<String>> found =
+            new TreeMap<String, List<String>>();
+        /** Number of matches replaced in all of the files. */
+        private int replacements;
+        /** Cause of the search failing, if it failed. */
+        private Throwable failure;
+
+        /**
+         * Returns the files found, raising the failure of the search,
+         * if any.
+         *
+         * @return  match locations of each file found, as strings.
+         * @throws  IllegalStateException
+         *          if the search failed.
+         */
+        synchronized Map<String, List<String>> results() {
+            if (failure != null) {
+                throw new IllegalStateException(failure);
+            }
+            return found;
+        }
+
+        /**
+         * Returns the number of matches replaced in all of the files.
+         *
+         * @return  number of replacements.
+         */
+        synchronized int replacements() {
+            return replacements;
+        }
+
+        public synchronized void filesFound(List<FileFoundEvent> events) {
+            for (FileFoundEvent event : events) {
+                String name = new File(event.getFile()).getName();
+                if (name.endsWith(".gz")) {
+                    name = name.substring(0, name.length() - 3);
+                }
+                List<String> matches = new ArrayList<String>();
+                for (MatchLocation location : event.getMatches()) {
+                    matches.add(location.toString());
+                }
+                found.put(name, Collections.unmodifiableList(matches));
+                replacements += event.getReplacements();
+            }
+        }
+
+        public void fileRemoved(FileFoundEvent event) {
+        }
+
+        public void searchComplete(SearchStats stats) {
+        }
+
+        public synchronized void searchFailed(Throwable t) {
+            if (failure == null) {
+                failure = t;
+            }
+        }
+    }
+}